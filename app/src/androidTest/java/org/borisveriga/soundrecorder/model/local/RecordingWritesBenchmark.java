@@ -0,0 +1,123 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.borisveriga.soundrecorder.model.local.DBHelper.DBHelperItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 10k inserts followed by 10k deletes, one operation per transaction as the import and
+ * cleanup jobs issue them: the way DBHelper used to write (ContentValues, SQL built per call,
+ * rollback journal) against the way it writes now (WAL, {@link RecordingStatements}).
+ * Runs on scratch databases, never the app's own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RecordingWritesBenchmark {
+
+    private static final String LOG_TAG = "RecordingWritesBenchmark";
+    private static final int ROWS = 10000;
+
+    private Context mContext;
+    private File mFile;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mFile = new File(mContext.getCacheDir(), "benchmark.db");
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @After
+    public void tearDown() {
+        if (mDb != null) {
+            mDb.close();
+        }
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @Test
+    public void compiledStatementsWithWal() {
+        final long contentValues = run(false);
+        tearDown();
+        final long compiled = run(true);
+        Log.i(LOG_TAG, String.format(Locale.ENGLISH,
+                "%d inserts + %d deletes: ContentValues/journal %d ms (%.0f ops/s), "
+                        + "compiled/WAL %d ms (%.0f ops/s), %.1fx",
+                ROWS, ROWS, contentValues / 1000000, opsPerSecond(contentValues),
+                compiled / 1000000, opsPerSecond(compiled), (double) contentValues / compiled));
+    }
+
+    /** @return nanoseconds taken by the inserts and deletes */
+    private long run(boolean compiled) {
+        mDb = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        if (compiled) {
+            mDb.enableWriteAheadLogging();
+        }
+        new DBHelper(mContext).onCreate(mDb);
+        final long[] ids = new long[ROWS];
+
+        final long started = System.nanoTime();
+        if (compiled) {
+            final RecordingStatements statements = new RecordingStatements(mDb);
+            for (int i = 0; i < ROWS; i++) {
+                ids[i] = statements.insert(name(i), path(i), 60000, i, 1 << 20, "audio/mp4a-latm",
+                        44100, 128000, i, null, null);
+            }
+            for (long id : ids) {
+                assertEquals(1, statements.delete(id));
+            }
+            statements.close();
+        } else {
+            final ContentValues cv = new ContentValues();
+            for (int i = 0; i < ROWS; i++) {
+                cv.clear();
+                cv.put(DBHelperItem.COLUMN_NAME_RECORDING_NAME, name(i));
+                cv.put(DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH, path(i));
+                cv.put(DBHelperItem.COLUMN_NAME_RECORDING_LENGTH, 60000);
+                cv.put(DBHelperItem.COLUMN_NAME_TIME_ADDED, i);
+                cv.put(DBHelperItem.COLUMN_NAME_SIZE_BYTES, 1 << 20);
+                cv.put(DBHelperItem.COLUMN_NAME_CODEC, "audio/mp4a-latm");
+                cv.put(DBHelperItem.COLUMN_NAME_SAMPLE_RATE, 44100);
+                cv.put(DBHelperItem.COLUMN_NAME_BITRATE, 128000);
+                cv.put(DBHelperItem.COLUMN_NAME_FILE_MODIFIED, i);
+                ids[i] = mDb.insert(DBHelperItem.TABLE_NAME, null, cv);
+            }
+            for (long id : ids) {
+                assertEquals(1, mDb.delete(DBHelperItem.TABLE_NAME,
+                        DBHelperItem._ID + "=" + id, null));
+            }
+        }
+        final long elapsed = System.nanoTime() - started;
+
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, DBHelperItem.TABLE_NAME));
+        return elapsed;
+    }
+
+    private static String name(int i) {
+        return "My Recording_" + i + ".mp4";
+    }
+
+    private static String path(int i) {
+        return "/storage/emulated/0/Music/SoundRecorder/" + name(i);
+    }
+
+    private static double opsPerSecond(long nanos) {
+        return 2.0 * ROWS * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,134 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.borisveriga.soundrecorder.model.dao.RecordingItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Search as the user types, one query per keystroke, over 50k recordings: every page has to
+ * come back within a frame. Runs on a scratch database, never the app's own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SearchLatencyTest {
+
+    private static final String LOG_TAG = "SearchLatencyTest";
+    private static final int ROWS = 50000;
+    private static final int PAGE_SIZE = 100;
+    private static final long FRAME_NANOS = 16000000L;
+    private static final int RUNS = 7;
+
+    private static final String[] WORDS = {
+            "meeting", "interview", "lecture", "standup", "call", "notes", "idea", "song",
+            "guitar", "piano", "voice", "memo", "podcast", "episode", "draft", "review",
+            "client", "budget", "planning", "weekly", "monday", "friday", "kitchen", "birthday"
+    };
+
+    private File mFile;
+    private SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mFile = new File(context.getCacheDir(), "search.db");
+        SQLiteDatabase.deleteDatabase(mFile);
+        mDb = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        mDb.enableWriteAheadLogging();
+        new DBHelper(context).onCreate(mDb);
+
+        // Mostly default names, the rest made up of a few words, as a real library would be.
+        final Random random = new Random(7);
+        final RecordingStatements statements = new RecordingStatements(mDb);
+        mDb.beginTransaction();
+        try {
+            for (int i = 1; i <= ROWS; i++) {
+                final String name;
+                if (random.nextInt(10) < 6) {
+                    name = "My Recording_" + i + ".mp4";
+                } else {
+                    final StringBuilder words = new StringBuilder();
+                    for (int w = random.nextInt(4); w >= 0; w--) {
+                        words.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                    }
+                    name = words.append(random.nextInt(999) + 1).append(".m4a").toString();
+                }
+                statements.insert(name, "/storage/emulated/0/Music/SoundRecorder/" + name,
+                        60000, i, 1 << 20, null, 0, 0, 0, null, null);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        statements.close();
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @Test
+    public void everyKeystrokeWithinAFrame() {
+        for (String typed : new String[]{"my recording 42", "meeting weekly", "guitar 1", "zzz"}) {
+            for (int length = 1; length <= typed.length(); length++) {
+                final String text = typed.substring(0, length);
+                if (text.endsWith(" ")) {
+                    continue;
+                }
+                final long nanos = medianNanos(text, 0);
+                Log.i(LOG_TAG, String.format(Locale.ENGLISH, "\"%s\": %.2f ms", text, nanos / 1e6));
+                assertTrue("\"" + text + "\" took " + nanos / 1000000 + " ms",
+                        nanos < FRAME_NANOS);
+            }
+        }
+    }
+
+    @Test
+    public void laterPagesWithinAFrame() {
+        // Matches every default name; the tenth page is as deep as anyone scrolls.
+        final long nanos = medianNanos("m", 10 * PAGE_SIZE);
+        Log.i(LOG_TAG, String.format(Locale.ENGLISH, "\"m\", page 11: %.2f ms", nanos / 1e6));
+        assertTrue(nanos < FRAME_NANOS);
+    }
+
+    @Test
+    public void pagesFollowEachOther() {
+        final List<RecordingItem> first = DBHelper.search(mDb, "my rec", 0, PAGE_SIZE);
+        final List<RecordingItem> second = DBHelper.search(mDb, "my rec", PAGE_SIZE, PAGE_SIZE);
+        assertEquals(PAGE_SIZE, first.size());
+        assertEquals(PAGE_SIZE, second.size());
+        assertTrue(first.get(PAGE_SIZE - 1).getId() < second.get(0).getId());
+        for (RecordingItem item : second) {
+            assertTrue(item.getName().startsWith("My Recording_"));
+        }
+    }
+
+    private long medianNanos(String text, int offset) {
+        final long[] nanos = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            final long started = System.nanoTime();
+            DBHelper.search(mDb, text, offset, PAGE_SIZE);
+            nanos[run] = System.nanoTime() - started;
+        }
+        Arrays.sort(nanos);
+        return nanos[RUNS / 2];
+    }
+}
@@ -4,6 +4,9 @@ import android.app.Application;
 
 import com.squareup.leakcanary.LeakCanary;
 
+import org.borisveriga.soundrecorder.model.local.RecordingsReconciler;
+import org.borisveriga.soundrecorder.services.RecordingRecovery;
+
 
 public class SoundRecorderApplication extends Application {
 
@@ -25,5 +28,8 @@ public class SoundRecorderApplication extends Application {
             return;
         }
         LeakCanary.install(this);
+
+        RecordingsReconciler.getInstance(this).scheduleFullScan();
+        RecordingRecovery.schedule(this);
     }
 }
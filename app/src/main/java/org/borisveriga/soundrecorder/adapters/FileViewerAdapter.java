@@ -11,6 +11,7 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.webkit.MimeTypeMap;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ImageView;
@@ -20,10 +21,20 @@ import android.widget.Toast;
 import com.google.android.material.textfield.TextInputEditText;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
+import androidx.cardview.widget.CardView;
+import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 import androidx.fragment.app.FragmentActivity;
 import androidx.fragment.app.FragmentTransaction;
@@ -31,18 +42,21 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import org.borisveriga.soundrecorder.BuildConfig;
 import org.borisveriga.soundrecorder.model.local.DBHelper;
+import org.borisveriga.soundrecorder.model.local.DatabaseExecutor;
 import org.borisveriga.soundrecorder.R;
 import org.borisveriga.soundrecorder.model.dao.RecordingItem;
 import org.borisveriga.soundrecorder.fragments.PlaybackFragment;
-import org.borisveriga.soundrecorder.model.local.OnDatabaseChangedListener;
+import org.borisveriga.soundrecorder.model.local.RecordingsChangeFeed;
+import org.borisveriga.soundrecorder.model.local.RecordingsReconciler;
 import org.borisveriga.soundrecorder.listeners.OnSingleClickListener;
 import org.borisveriga.soundrecorder.util.EventBroadcaster;
+import org.borisveriga.soundrecorder.util.FileIoPool;
 import org.borisveriga.soundrecorder.util.Paths;
 import org.borisveriga.soundrecorder.util.TimeUtils;
 
 
 public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.RecordingsViewHolder>
-        implements OnDatabaseChangedListener {
+        implements RecordingsChangeFeed.Subscriber {
 
     private static final String LOG_TAG = "FileViewerAdapter";
 
@@ -51,18 +65,49 @@ public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.Re
     private Context mContext;
     private final LinearLayoutManager llm;
 
+    /** Selected rows by adapter position, in ascending order. */
+    private final TreeMap<Integer, RecordingItem> mSelection = new TreeMap<>();
+    private SelectionListener mSelectionListener;
+
+    private static final int SEARCH_PAGE_SIZE = 100;
+    private static final int SEARCH_PREFETCH_DISTANCE = 10;
+    /** Rows matching {@link #mSearchQuery}, or null when the list isn't filtered. */
+    private List<RecordingItem> mSearchResults;
+    private String mSearchQuery;
+    private int mSearchGeneration;
+    private boolean mSearchLoading;
+    private boolean mSearchExhausted;
+
+    public interface SelectionListener {
+        void onSelectionChanged(int selectedCount);
+    }
+
     public FileViewerAdapter(Context context, LinearLayoutManager linearLayoutManager) {
         super();
         mContext = context;
-        mDatabase = new DBHelper(mContext);
-        DBHelper.setOnDatabaseChangedListener(this);
+        mDatabase = DBHelper.getInstance(mContext);
         llm = linearLayoutManager;
     }
 
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        RecordingsChangeFeed.getInstance().subscribe(this);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        RecordingsChangeFeed.getInstance().unsubscribe(this);
+        super.onDetachedFromRecyclerView(recyclerView);
+    }
+
     @Override
     public void onBindViewHolder(@NonNull final RecordingsViewHolder holder, int position) {
 
         RecordingItem item = getItem(position);
+        if (item == null) {
+            return;
+        }
         long itemDuration = item.getLength();
 
         holder.vName.setText(item.getName());
@@ -75,9 +120,17 @@ public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.Re
                 )
         );
 
+        final boolean selected = mSelection.containsKey(position);
+        ((CardView) holder.cardView).setCardBackgroundColor(ContextCompat.getColor(mContext,
+                selected ? R.color.selected_item : R.color.white));
+
         holder.cardView.setOnClickListener(new OnSingleClickListener() {
             @Override
             public void onSingleClick(View view) {
+                if (isSelectionMode()) {
+                    toggleSelection(holder.getAdapterPosition());
+                    return;
+                }
                 try {
                     PlaybackFragment playbackFragment =
                             new PlaybackFragment().newInstance(getItem(holder.getPosition()));
@@ -103,7 +156,8 @@ public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.Re
         holder.cardView.setOnLongClickListener(new View.OnLongClickListener() {
             @Override
             public boolean onLongClick(View v) {
-                return presentFileOptions(holder);
+                toggleSelection(holder.getAdapterPosition());
+                return true;
             }
         });
     }
@@ -175,30 +229,232 @@ public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.Re
 
     @Override
     public int getItemCount() {
+        if (mSearchResults != null) {
+            return mSearchResults.size();
+        }
         return mDatabase.getCount();
     }
 
     public RecordingItem getItem(int position) {
+        if (mSearchResults != null) {
+            if (position >= mSearchResults.size() - SEARCH_PREFETCH_DISTANCE) {
+                loadMoreSearchResults();
+            }
+            return position >= 0 && position < mSearchResults.size()
+                    ? mSearchResults.get(position) : null;
+        }
         return mDatabase.getItemAt(position);
     }
 
-    @Override
-    public void onNewDatabaseEntryAdded() {
-        notifyItemInserted(getItemCount() - 1);
-        llm.scrollToPosition(getItemCount() - 1);
+    /**
+     * Filters the list down to recordings matching {@code query}; an empty query shows
+     * everything again. Results arrive page by page from the reader pool, and a result for a
+     * query the user has already typed past is dropped.
+     */
+    public void search(String query) {
+        final String trimmed = query.trim();
+        clearSelection();
+        mSearchGeneration++;
+        if (trimmed.isEmpty()) {
+            mSearchQuery = null;
+            if (mSearchResults != null) {
+                mSearchResults = null;
+                notifyDataSetChanged();
+            }
+            return;
+        }
+        mSearchQuery = trimmed;
+        mSearchExhausted = false;
+        mSearchLoading = true;
+        final int generation = mSearchGeneration;
+        mDatabase.searchAsync(trimmed, 0, SEARCH_PAGE_SIZE, new DatabaseExecutor.Callback<List<RecordingItem>>() {
+            @Override
+            public void onResult(List<RecordingItem> page) {
+                if (generation != mSearchGeneration) {
+                    return;
+                }
+                mSearchLoading = false;
+                mSearchExhausted = page.size() < SEARCH_PAGE_SIZE;
+                mSearchResults = page;
+                notifyDataSetChanged();
+            }
+        });
+    }
+
+    public boolean isSearching() {
+        return mSearchQuery != null;
+    }
+
+    private void loadMoreSearchResults() {
+        if (mSearchLoading || mSearchExhausted || mSearchQuery == null) {
+            return;
+        }
+        mSearchLoading = true;
+        final int generation = mSearchGeneration;
+        final int offset = mSearchResults.size();
+        mDatabase.searchAsync(mSearchQuery, offset, SEARCH_PAGE_SIZE, new DatabaseExecutor.Callback<List<RecordingItem>>() {
+            @Override
+            public void onResult(List<RecordingItem> page) {
+                if (generation != mSearchGeneration || mSearchResults == null) {
+                    return;
+                }
+                mSearchLoading = false;
+                mSearchExhausted = page.size() < SEARCH_PAGE_SIZE;
+                mSearchResults.addAll(page);
+                notifyItemRangeInserted(offset, page.size());
+            }
+        });
+    }
+
+    /**
+     * Re-checks the cached row count against the database, e.g. after the app was in the
+     * background. If something else changed the table meanwhile the change feed tells us to
+     * reload.
+     */
+    public void resyncWithDatabase(final Runnable onSynced) {
+        mDatabase.verifyCount(new DatabaseExecutor.Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean changed) {
+                onSynced.run();
+            }
+        });
     }
 
     @Override
-    public void onDatabaseEntryRenamed() {
+    public void onChanges(List<RecordingsChangeFeed.Change> changes) {
+        if (isSearching()) {
+            applyToSearchResults(changes);
+            return;
+        }
+        for (RecordingsChangeFeed.Change change : changes) {
+            switch (change.type) {
+                case RecordingsChangeFeed.Change.INSERTED:
+                    shiftSelection(change.position, 1);
+                    notifyItemInserted(change.position);
+                    if (change.position >= getItemCount() - 1) {
+                        llm.scrollToPosition(change.position);
+                    }
+                    break;
+                case RecordingsChangeFeed.Change.DELETED:
+                    shiftSelection(change.position, -change.count);
+                    notifyItemRangeRemoved(change.position, change.count);
+                    break;
+                case RecordingsChangeFeed.Change.UPDATED:
+                    notifyItemChanged(change.position);
+                    break;
+                default:
+                    reload();
+                    return;
+            }
+        }
+    }
 
+    /**
+     * Search results are a snapshot keyed by their own positions, so changes are matched by
+     * id. A new row may or may not match the query; the search is simply run again.
+     */
+    private void applyToSearchResults(List<RecordingsChangeFeed.Change> changes) {
+        for (RecordingsChangeFeed.Change change : changes) {
+            final int index;
+            switch (change.type) {
+                case RecordingsChangeFeed.Change.DELETED:
+                    removeSearchResults(change);
+                    break;
+                case RecordingsChangeFeed.Change.UPDATED:
+                    index = indexOfSearchResult(change.id);
+                    if (index != -1) {
+                        notifyItemChanged(index);
+                    }
+                    break;
+                default:
+                    search(mSearchQuery);
+                    return;
+            }
+        }
     }
 
-    public void remove(int position) {
-        File file = new File(getItem(position).getFilePath());
-        if (!file.delete()) {
+    /** Removes the deleted rows that are among the results, one range per adjacent run. */
+    private void removeSearchResults(RecordingsChangeFeed.Change change) {
+        final int[] indexes = new int[change.count];
+        int found = 0;
+        for (int i = 0; i < change.count; i++) {
+            final int index = indexOfSearchResult(change.idAt(i));
+            if (index != -1) {
+                indexes[found++] = index;
+            }
+        }
+        Arrays.sort(indexes, 0, found);
+        // From the end, so the indexes of the runs still to go stay valid.
+        int end = found;
+        while (end > 0) {
+            int start = end - 1;
+            while (start > 0 && indexes[start - 1] == indexes[start] - 1) {
+                start--;
+            }
+            final int position = indexes[start];
+            final int count = end - start;
+            shiftSelection(position, -count);
+            mSearchResults.subList(position, position + count).clear();
+            notifyItemRangeRemoved(position, count);
+            end = start;
+        }
+    }
+
+    private int indexOfSearchResult(int id) {
+        if (mSearchResults == null) {
+            return -1;
+        }
+        for (int i = 0; i < mSearchResults.size(); i++) {
+            if (mSearchResults.get(i).getId() == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void reload() {
+        // Positions held by the selection are no longer meaningful.
+        mSelection.clear();
+        onSelectionChanged();
+        if (isSearching()) {
+            search(mSearchQuery);
+            return;
+        }
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Keeps the selection on the same rows when one is inserted ({@code delta} 1) or
+     * {@code -delta} are removed from {@code position} on.
+     */
+    private void shiftSelection(int position, int delta) {
+        if (mSelection.isEmpty()) {
+            return;
+        }
+        boolean removed = false;
+        if (delta < 0) {
+            final Map<Integer, RecordingItem> gone = mSelection.subMap(position, position - delta);
+            removed = !gone.isEmpty();
+            gone.clear();
+        }
+        final TreeMap<Integer, RecordingItem> tail =
+                new TreeMap<>(mSelection.tailMap(position, true));
+        mSelection.keySet().removeAll(tail.keySet());
+        for (Map.Entry<Integer, RecordingItem> entry : tail.entrySet()) {
+            mSelection.put(entry.getKey() + delta, entry.getValue());
+        }
+        if (removed) {
+            onSelectionChanged();
+        }
+    }
+
+    public void remove(final int position) {
+        final RecordingItem item = getItem(position);
+        File file = new File(item.getFilePath());
+        if (!(item.isSegmented() ? deleteSegments(item) : file.delete())) {
             Toast.makeText(mContext,
                     String.format(mContext.getString(R.string.toast_file_delete_failed),
-                            getItem(position).getName()),
+                            item.getName()),
                     Toast.LENGTH_LONG).show();
             return;
         }
@@ -207,16 +463,20 @@ public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.Re
                 mContext,
                 String.format(
                         mContext.getString(R.string.toast_file_delete),
-                        getItem(position).getName()
+                        item.getName()
                 ),
                 Toast.LENGTH_SHORT
         ).show();
 
-        mDatabase.removeItemWithId(getItem(position).getId());
-        notifyItemRemoved(position);
+        mDatabase.removeItemWithId(item.getId());
     }
 
-    public void rename(int position, String name) {
+    public void rename(final int position, final String name) {
+        if (getItem(position).isSegmented()) {
+            // Only the listed name changes; the segments keep their files.
+            renameRow(getItem(position), name, getItem(position).getFilePath());
+            return;
+        }
         final String mFilePath = Paths.combine(
                 Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
                 Paths.SOUND_RECORDER_FOLDER, name);
@@ -234,20 +494,378 @@ public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.Re
                         Toast.LENGTH_LONG).show();
                 return;
             }
-            mDatabase.renameItem(getItem(position), name, mFilePath);
-            notifyItemChanged(position);
+            renameRow(getItem(position), name, mFilePath);
         }
     }
 
+    private void renameRow(final RecordingItem item, final String name, final String filePath) {
+        mDatabase.renameItem(item, name, filePath, new DatabaseExecutor.Callback<Integer>() {
+            @Override
+            public void onResult(Integer updated) {
+                // Search results are a snapshot, so patch the row they hold as well.
+                item.setName(name);
+                item.setFilePath(filePath);
+            }
+        });
+    }
+
+    /**
+     * @return the files that make up {@code item}: its own, or those of every segment in the
+     * folder of a split recording, in recording order
+     */
+    private static List<File> filesOf(RecordingItem item) {
+        final File file = new File(item.getFilePath());
+        if (!item.isSegmented()) {
+            return Collections.singletonList(file);
+        }
+        final File[] listing = file.getParentFile().listFiles();
+        if (listing == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(listing);
+        return Arrays.asList(listing);
+    }
+
+    /** Removes a split recording's folder with every segment in it. */
+    private static boolean deleteSegments(RecordingItem item) {
+        for (File segment : filesOf(item)) {
+            if (!segment.delete() && segment.exists()) {
+                return false;
+            }
+        }
+        final File folder = new File(item.getFilePath()).getParentFile();
+        return folder.delete() || !folder.exists();
+    }
+
+    public void setSelectionListener(SelectionListener listener) {
+        mSelectionListener = listener;
+    }
+
+    public boolean isSelectionMode() {
+        return !mSelection.isEmpty();
+    }
+
+    public int getSelectedCount() {
+        return mSelection.size();
+    }
+
+    private void toggleSelection(int position) {
+        if (position == RecyclerView.NO_POSITION) {
+            return;
+        }
+        if (mSelection.remove(position) == null) {
+            final RecordingItem item = getItem(position);
+            if (item == null) {
+                return;
+            }
+            mSelection.put(position, item);
+        }
+        notifyItemChanged(position);
+        onSelectionChanged();
+    }
+
+    public void clearSelection() {
+        if (mSelection.isEmpty()) {
+            return;
+        }
+        final List<Integer> positions = new ArrayList<>(mSelection.keySet());
+        mSelection.clear();
+        for (int[] range : toRanges(positions)) {
+            notifyItemRangeChanged(range[0], range[1]);
+        }
+        onSelectionChanged();
+    }
+
+    private void onSelectionChanged() {
+        if (mSelectionListener != null) {
+            mSelectionListener.onSelectionChanged(mSelection.size());
+        }
+    }
+
+    /**
+     * Unlinks the selected files on the background pool and removes their rows in one
+     * transaction; the list hears about the removals from the change feed.
+     */
+    public void deleteSelected() {
+        final List<RecordingItem> items = new ArrayList<>(mSelection.values());
+        clearSelection();
+
+        forEachFile(items, new FileAction() {
+            @Override
+            public boolean apply(RecordingItem item) {
+                if (item.isSegmented()) {
+                    return deleteSegments(item);
+                }
+                final File file = new File(item.getFilePath());
+                return !file.exists() || file.delete();
+            }
+        }, new FilesDone() {
+            @Override
+            public void onDone(boolean[] succeeded) {
+                final List<Integer> ids = new ArrayList<>();
+                for (int i = 0; i < succeeded.length; i++) {
+                    if (succeeded[i]) {
+                        ids.add(items.get(i).getId());
+                    }
+                }
+                final int failed = succeeded.length - ids.size();
+                mDatabase.removeItemsWithIds(ids, new DatabaseExecutor.Callback<Integer>() {
+                    @Override
+                    public void onResult(Integer deleted) {
+                        showBatchResult(R.string.toast_files_deleted,
+                                R.string.toast_files_delete_failed, ids.size(), failed);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Moves the selected files into {@code folderName} below the recordings folder and
+     * updates their rows in one transaction. Names that would reach outside the recordings
+     * folder leave the selection as it is.
+     */
+    public void moveSelected(String folderName) {
+        final File recordings = new File(Paths.combine(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
+                Paths.SOUND_RECORDER_FOLDER));
+        final File folder = new File(recordings, folderName);
+        boolean inside;
+        try {
+            inside = Paths.isPlainName(folderName) && Paths.isDirectlyInside(folder, recordings);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not resolve " + folder, e);
+            inside = false;
+        }
+        if (!inside) {
+            Toast.makeText(mContext,
+                    String.format(mContext.getString(R.string.toast_folder_name_invalid),
+                            folderName),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+        final List<RecordingItem> items = new ArrayList<>(mSelection.values());
+        clearSelection();
+        // The folder sees each move as a file leaving it; until the rows have their new
+        // paths, that must not be taken for a delete.
+        final RecordingsReconciler reconciler = RecordingsReconciler.getInstance(mContext);
+        final List<String> sources = new ArrayList<>(items.size());
+        for (RecordingItem item : items) {
+            sources.add(sourceOf(item).getPath());
+        }
+        reconciler.hold(sources);
+
+        forEachFile(items, new FileAction() {
+            @Override
+            public boolean apply(RecordingItem item) {
+                if (!folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory()) {
+                    return false;
+                }
+                final File source = sourceOf(item);
+                final File target = new File(folder, source.getName());
+                return !target.exists() && source.renameTo(target);
+            }
+        }, new FilesDone() {
+            @Override
+            public void onDone(boolean[] succeeded) {
+                final List<Integer> ids = new ArrayList<>();
+                final List<String> paths = new ArrayList<>();
+                final List<RecordingItem> movedItems = new ArrayList<>();
+                for (int i = 0; i < succeeded.length; i++) {
+                    if (succeeded[i]) {
+                        final RecordingItem item = items.get(i);
+                        ids.add(item.getId());
+                        final File moved = new File(folder, sourceOf(item).getName());
+                        paths.add(item.isSegmented()
+                                ? new File(moved, new File(item.getFilePath()).getName()).getPath()
+                                : moved.getPath());
+                        movedItems.add(item);
+                    }
+                }
+                final int failed = succeeded.length - ids.size();
+                mDatabase.updateFilePaths(ids, paths, new DatabaseExecutor.Callback<Integer>() {
+                    @Override
+                    public void onResult(Integer updated) {
+                        reconciler.release(sources);
+                        for (int i = 0; i < movedItems.size(); i++) {
+                            movedItems.get(i).setFilePath(paths.get(i));
+                        }
+                        showBatchResult(R.string.toast_files_moved,
+                                R.string.toast_files_move_failed, ids.size(), failed);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        super.onError(e);
+                        // The next full scan drops the rows left pointing at the old paths.
+                        reconciler.release(sources);
+                    }
+                });
+            }
+        });
+    }
+
+    /** What moving {@code item} moves: its file, or a split recording's whole folder. */
+    private static File sourceOf(RecordingItem item) {
+        final File file = new File(item.getFilePath());
+        return item.isSegmented() ? file.getParentFile() : file;
+    }
+
+    public void shareSelected() {
+        final ArrayList<Uri> uris = new ArrayList<>(mSelection.size());
+        for (RecordingItem item : mSelection.values()) {
+            for (File file : filesOf(item)) {
+                uris.add(getShareUri(file));
+            }
+        }
+        clearSelection();
+
+        Intent shareIntent = new Intent();
+        shareIntent.setAction(Intent.ACTION_SEND_MULTIPLE);
+        shareIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        shareIntent.setType("audio/*");
+        mContext.startActivity(Intent.createChooser(shareIntent, mContext.getText(R.string.send_to)));
+    }
+
+    private interface FileAction {
+        /** Runs on the file pool. */
+        boolean apply(RecordingItem item);
+    }
+
+    private interface FilesDone {
+        /** Runs on the file pool once every item was handled. */
+        void onDone(boolean[] succeeded);
+    }
+
+    private static void forEachFile(final List<RecordingItem> items, final FileAction action,
+                                    final FilesDone done) {
+        final boolean[] succeeded = new boolean[items.size()];
+        if (items.isEmpty()) {
+            done.onDone(succeeded);
+            return;
+        }
+        final AtomicInteger remaining = new AtomicInteger(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            final int index = i;
+            FileIoPool.get().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        succeeded[index] = action.apply(items.get(index));
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "File operation failed", e);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        done.onDone(succeeded);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Collapses ascending positions into {start, count} runs, last run first, so removing
+     * them one after another doesn't shift the runs still to come.
+     */
+    private static List<int[]> toRanges(List<Integer> positions) {
+        final List<int[]> ranges = new ArrayList<>();
+        int i = positions.size() - 1;
+        while (i >= 0) {
+            final int end = positions.get(i);
+            int start = end;
+            while (i > 0 && positions.get(i - 1) == start - 1) {
+                start--;
+                i--;
+            }
+            ranges.add(new int[]{start, end - start + 1});
+            i--;
+        }
+        return ranges;
+    }
+
+    private void showBatchResult(int successMessage, int failureMessage, int succeeded, int failed) {
+        if (failed > 0) {
+            Toast.makeText(mContext, String.format(mContext.getString(failureMessage), failed),
+                    Toast.LENGTH_LONG).show();
+        } else {
+            Toast.makeText(mContext, String.format(mContext.getString(successMessage), succeeded),
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    public void deleteSelectedDialog() {
+        AlertDialog.Builder confirmDelete = new AlertDialog.Builder(mContext);
+        confirmDelete.setTitle(mContext.getString(R.string.dialog_title_delete));
+        confirmDelete.setMessage(String.format(
+                mContext.getString(R.string.dialog_text_delete_selected), mSelection.size()));
+        confirmDelete.setCancelable(true);
+        confirmDelete.setPositiveButton(mContext.getString(R.string.dialog_action_yes_delete),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        deleteSelected();
+                        dialog.cancel();
+                    }
+                });
+        confirmDelete.setNegativeButton(mContext.getString(R.string.dialog_action_no),
+                new CancelDialogListener());
+
+        confirmDelete.create().show();
+    }
+
+    public void moveSelectedDialog() {
+        AlertDialog.Builder moveBuilder = new AlertDialog.Builder(mContext);
+
+        View view = LayoutInflater.from(mContext).inflate(R.layout.dialog_move_files, null);
+        final TextInputEditText input = view.findViewById(R.id.folder_name);
+
+        moveBuilder.setTitle(mContext.getString(R.string.dialog_title_move));
+        moveBuilder.setCancelable(true);
+        moveBuilder.setPositiveButton(mContext.getString(R.string.dialog_action_ok),
+                new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int id) {
+                        final Editable editable = input.getText();
+                        if (editable != null) {
+                            moveSelected(editable.toString().trim());
+                        }
+                        dialog.cancel();
+                    }
+                });
+        moveBuilder.setNegativeButton(mContext.getString(R.string.dialog_action_cancel),
+                new CancelDialogListener());
+
+        moveBuilder.setView(view);
+        moveBuilder.create().show();
+    }
+
+    private Uri getShareUri(File file) {
+        return FileProvider.getUriForFile(mContext,
+                BuildConfig.APPLICATION_ID + ".fileprovider", file);
+    }
+
+    private static String shareTypeOf(RecordingItem item) {
+        final String extension = Paths.extensionOf(item.getFilePath());
+        final String type = extension.isEmpty() ? null : MimeTypeMap.getSingleton()
+                .getMimeTypeFromExtension(extension.substring(1).toLowerCase(Locale.ENGLISH));
+        return type != null ? type : "audio/*";
+    }
+
     private void shareFileDialog(int position) {
         Intent shareIntent = new Intent();
-        shareIntent.setAction(Intent.ACTION_SEND);
-        final Uri uri = FileProvider.getUriForFile(mContext,
-                BuildConfig.APPLICATION_ID + ".fileprovider",
-                new File(getItem(position).getFilePath()));
-        shareIntent.putExtra(Intent.EXTRA_STREAM, uri);
+        if (getItem(position).isSegmented()) {
+            final ArrayList<Uri> uris = new ArrayList<>();
+            for (File file : filesOf(getItem(position))) {
+                uris.add(getShareUri(file));
+            }
+            shareIntent.setAction(Intent.ACTION_SEND_MULTIPLE);
+            shareIntent.putParcelableArrayListExtra(Intent.EXTRA_STREAM, uris);
+        } else {
+            shareIntent.setAction(Intent.ACTION_SEND);
+            shareIntent.putExtra(Intent.EXTRA_STREAM,
+                    getShareUri(new File(getItem(position).getFilePath())));
+        }
         shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
-        shareIntent.setType("audio/mp4");
+        shareIntent.setType(shareTypeOf(getItem(position)));
         mContext.startActivity(Intent.createChooser(shareIntent, mContext.getText(R.string.send_to)));
     }
 
@@ -268,7 +886,11 @@ public class FileViewerAdapter extends RecyclerView.Adapter<FileViewerAdapter.Re
                             final Editable editable = input.getText();
                             if (editable == null)
                                 return;
-                            final String value = editable.toString().trim() + ".mp4";
+                            // Recordings come in several formats; keep the one this one has.
+                            // Split recordings are listed by folder name, without one.
+                            final String value = editable.toString().trim()
+                                    + (getItem(position).isSegmented() ? ""
+                                    : Paths.extensionOf(getItem(position).getFilePath()));
                             rename(position, value);
                         } catch (Exception e) {
                             e.printStackTrace();
@@ -3,20 +3,27 @@ package org.borisveriga.soundrecorder.fragments;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.FileObserver;
-import android.util.Log;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.view.ActionMode;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.DefaultItemAnimator;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import org.borisveriga.soundrecorder.R;
 import org.borisveriga.soundrecorder.adapters.FileViewerAdapter;
+import org.borisveriga.soundrecorder.model.local.RecordingsReconciler;
 import org.borisveriga.soundrecorder.util.Paths;
 
 
@@ -27,6 +34,8 @@ public class FileViewerFragment extends Fragment {
     private RecyclerView mRecyclerView;
     private TextView mTextView;
     private RecyclerView.AdapterDataObserver adapterDataObserver;
+    private FileObserver observer;
+    private ActionMode mActionMode;
 
     public static FileViewerFragment newInstance() {
         FileViewerFragment f = new FileViewerFragment();
@@ -39,6 +48,15 @@ public class FileViewerFragment extends Fragment {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        final RecordingsReconciler reconciler = RecordingsReconciler.getInstance(getActivity());
+        observer = new FileObserver(Paths.combine(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
+                Paths.SOUND_RECORDER_FOLDER), RecordingsReconciler.WATCHED_EVENTS) {
+            @Override
+            public void onEvent(int event, String file) {
+                reconciler.onFileEvent(event, file);
+            }
+        };
         observer.startWatching();
     }
 
@@ -55,6 +73,7 @@ public class FileViewerFragment extends Fragment {
 
         mRecyclerView = v.findViewById(R.id.recyclerView);
         mTextView = v.findViewById(R.id.noRecordView);
+        final EditText searchView = v.findViewById(R.id.searchView);
 
         mRecyclerView.setHasFixedSize(true);
 
@@ -81,12 +100,116 @@ public class FileViewerFragment extends Fragment {
                 changeVisibilityRecycleView();
                 super.onItemRangeRemoved(positionStart, itemCount);
             }
+
+            @Override
+            public void onChanged() {
+                changeVisibilityRecycleView();
+                super.onChanged();
+            }
         };
 
         mFileViewerAdapter.registerAdapterDataObserver(adapterDataObserver);
+        searchView.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (mFileViewerAdapter != null) {
+                    mFileViewerAdapter.search(s.toString());
+                }
+            }
+        });
+        mFileViewerAdapter.setSelectionListener(new FileViewerAdapter.SelectionListener() {
+            @Override
+            public void onSelectionChanged(int selectedCount) {
+                updateActionMode(selectedCount);
+            }
+        });
         return v;
     }
 
+    private void updateActionMode(int selectedCount) {
+        if (selectedCount == 0) {
+            if (mActionMode != null) {
+                mActionMode.finish();
+            }
+            return;
+        }
+        if (mActionMode == null) {
+            final AppCompatActivity activity = (AppCompatActivity) getActivity();
+            if (activity == null) {
+                return;
+            }
+            mActionMode = activity.startSupportActionMode(mActionModeCallback);
+        }
+        if (mActionMode != null) {
+            mActionMode.setTitle(getString(R.string.selection_count, selectedCount));
+        }
+    }
+
+    private final ActionMode.Callback mActionModeCallback = new ActionMode.Callback() {
+        @Override
+        public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+            mode.getMenuInflater().inflate(R.menu.menu_file_selection, menu);
+            return true;
+        }
+
+        @Override
+        public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+            return false;
+        }
+
+        @Override
+        public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+            if (mFileViewerAdapter == null) {
+                return false;
+            }
+            switch (item.getItemId()) {
+                case R.id.action_share_selected:
+                    mFileViewerAdapter.shareSelected();
+                    return true;
+                case R.id.action_move_selected:
+                    mFileViewerAdapter.moveSelectedDialog();
+                    return true;
+                case R.id.action_delete_selected:
+                    mFileViewerAdapter.deleteSelectedDialog();
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void onDestroyActionMode(ActionMode mode) {
+            mActionMode = null;
+            if (mFileViewerAdapter != null) {
+                mFileViewerAdapter.clearSelection();
+            }
+        }
+    };
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        // Picks up the startup scan if the folder couldn't be read then.
+        RecordingsReconciler.getInstance(getActivity()).resync();
+        if (mFileViewerAdapter != null) {
+            mFileViewerAdapter.resyncWithDatabase(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFileViewerAdapter != null) {
+                        changeVisibilityRecycleView();
+                    }
+                }
+            });
+        }
+    }
+
     private void changeVisibilityRecycleView() {
         if (mFileViewerAdapter.getItemCount() == 0) {
             mRecyclerView.setVisibility(View.GONE);
@@ -100,26 +223,11 @@ public class FileViewerFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        if (mActionMode != null) {
+            mActionMode.finish();
+        }
+        mFileViewerAdapter.setSelectionListener(null);
         mFileViewerAdapter.unregisterAdapterDataObserver(adapterDataObserver);
         mFileViewerAdapter = null;
     }
-
-    private final FileObserver observer =
-            new FileObserver(Paths.combine(
-                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
-                    Paths.SOUND_RECORDER_FOLDER)) {
-                @Override
-                public void onEvent(int event, String file) {
-                    if (event == FileObserver.DELETE) {
-                        final String filePath = Paths.combine(
-                                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
-                                Paths.SOUND_RECORDER_FOLDER, file);
-                        Log.d(LOG_TAG, "File deleted [" + filePath + "]");
-                    }
-                }
-            };
 }
-
-
-
-
@@ -22,12 +22,16 @@ import android.widget.TextView;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatDialogFragment;
 import org.borisveriga.soundrecorder.R;
 import org.borisveriga.soundrecorder.model.dao.RecordingItem;
+import org.borisveriga.soundrecorder.model.local.DBHelper;
+import org.borisveriga.soundrecorder.model.local.DatabaseExecutor;
 import org.borisveriga.soundrecorder.listeners.HeadsetListener;
 import org.borisveriga.soundrecorder.listeners.OnSingleClickListener;
 import org.borisveriga.soundrecorder.util.AudioManagerCompat;
@@ -53,6 +57,18 @@ public class PlaybackFragment extends AppCompatDialogFragment {
 
     private MediaPlayer mMediaPlayer = null;
 
+    /**
+     * Files played one after another as a single timeline: the recording's own file, or the
+     * segments of a split recording. Null while those are still being loaded.
+     */
+    private List<RecordingItem> mSegments = null;
+    /** Where each of {@link #mSegments} starts on the timeline, in ms. */
+    private long[] mSegmentStarts;
+    /** Index of the segment {@link #mMediaPlayer} plays. */
+    private int mSegment;
+    /** Player for the following segment, handed over to without a gap. */
+    private MediaPlayer mNextPlayer = null;
+
     private SeekBar mSeekBar = null;
     private FloatingActionButton mPlayButton = null;
     private TextView mCurrentProgressTextView = null;
@@ -105,6 +121,32 @@ public class PlaybackFragment extends AppCompatDialogFragment {
             return;
 
         itemDurationMs = item.getLength();
+
+        if (item.isSegmented()) {
+            DBHelper.getInstance(requireContext()).getSegmentsAsync(item.getId(),
+                    new DatabaseExecutor.Callback<List<RecordingItem>>() {
+                        @Override
+                        public void onResult(List<RecordingItem> segments) {
+                            setSegments(segments.isEmpty()
+                                    ? Collections.singletonList(item) : segments);
+                        }
+                    });
+        } else {
+            setSegments(Collections.singletonList(item));
+        }
+    }
+
+    private void setSegments(List<RecordingItem> segments) {
+        mSegments = segments;
+        mSegmentStarts = new long[segments.size()];
+        long start = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            mSegmentStarts[i] = start;
+            start += segments.get(i).getLength();
+        }
+        if (mPlayButton != null) {
+            mPlayButton.setEnabled(true);
+        }
     }
 
     @Override
@@ -137,13 +179,13 @@ public class PlaybackFragment extends AppCompatDialogFragment {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 if (mMediaPlayer != null && fromUser) {
-                    mMediaPlayer.seekTo(progress);
+                    seekTo(progress);
                     mHandler.removeCallbacks(mRunnable);
 
-                    final int currentPosition = mMediaPlayer.getCurrentPosition();
+                    final int currentPosition = getPosition();
                     mCurrentProgressTextView.setText(TimeUtils.formatDuration(currentPosition));
                     updateSeekBar();
-                } else if (mMediaPlayer == null && fromUser) {
+                } else if (mMediaPlayer == null && mSegments != null && fromUser) {
                     prepareMediaPlayerFromPoint(progress);
                     updateSeekBar();
                 }
@@ -160,9 +202,9 @@ public class PlaybackFragment extends AppCompatDialogFragment {
             public void onStopTrackingTouch(SeekBar seekBar) {
                 if (mMediaPlayer != null) {
                     mHandler.removeCallbacks(mRunnable);
-                    mMediaPlayer.seekTo(seekBar.getProgress());
+                    seekTo(seekBar.getProgress());
 
-                    final int currentPosition = mMediaPlayer.getCurrentPosition();
+                    final int currentPosition = getPosition();
                     mCurrentProgressTextView.setText(TimeUtils.formatDuration(currentPosition));
                     updateSeekBar();
                 }
@@ -170,6 +212,7 @@ public class PlaybackFragment extends AppCompatDialogFragment {
         });
 
         mPlayButton = view.findViewById(R.id.fab_play);
+        mPlayButton.setEnabled(mSegments != null);
         mPlayButton.setOnClickListener(new OnSingleClickListener() {
             @Override
             public void onSingleClick(View v) {
@@ -305,6 +348,10 @@ public class PlaybackFragment extends AppCompatDialogFragment {
     }
 
     private void startOrResumePlaying() {
+        if (mSegments == null) {
+            // A split recording whose segments haven't loaded yet.
+            return;
+        }
         if (mMediaPlayer == null) {
             startPlaying();
         } else {
@@ -314,69 +361,152 @@ public class PlaybackFragment extends AppCompatDialogFragment {
 
     private void startPlaying() {
         mPlayButton.setImageResource(R.drawable.ic_media_pause);
-        mMediaPlayer = new MediaPlayer();
 
         try {
-            mMediaPlayer.setDataSource(item.getFilePath());
-            mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mMediaPlayer.prepare();
-            mSeekBar.setMax(mMediaPlayer.getDuration());
+            openSegment(0);
+            mSeekBar.setMax(getTimelineDuration());
             requestAudioFocus();
-
-            mMediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
-                @Override
-                public void onPrepared(MediaPlayer mp) {
-                    mMediaPlayer.start();
-                }
-            });
+            mMediaPlayer.start();
         } catch (IOException e) {
             e.printStackTrace();
             EventBroadcaster.send(getContext(), R.string.error_prepare_playback);
         }
 
-        mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
-            @Override
-            public void onCompletion(MediaPlayer mp) {
-                stopPlaying();
-            }
-        });
-
         updateSeekBar();
         ScreenLock.keepScreenOn(getActivity());
     }
 
     private void prepareMediaPlayerFromPoint(int progress) {
+        try {
+            openSegment(segmentAt(progress));
+            mSeekBar.setMax(getTimelineDuration());
+            mMediaPlayer.seekTo((int) (progress - mSegmentStarts[mSegment]));
+            requestAudioFocus();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        ScreenLock.keepScreenOn(getActivity());
+    }
 
-        mMediaPlayer = new MediaPlayer();
+    /**
+     * Makes {@code segment} the one playing, with a freshly prepared player, and prepares the
+     * one after it. The current player is only replaced once the new one is ready.
+     */
+    private void openSegment(int segment) throws IOException {
+        final MediaPlayer player = createPlayer(mSegments.get(segment).getFilePath());
+        releasePlayers();
+        mMediaPlayer = player;
+        mSegment = segment;
+        prepareNextSegment();
+    }
 
+    private MediaPlayer createPlayer(String filePath) throws IOException {
+        final MediaPlayer player = new MediaPlayer();
         try {
-            mMediaPlayer.setDataSource(item.getFilePath());
+            player.setDataSource(filePath);
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                 final AudioAttributes attributes = new AudioAttributes.Builder()
                         .setUsage(AudioAttributes.USAGE_MEDIA)
                         .setContentType(AudioAttributes.CONTENT_TYPE_UNKNOWN)
                         .build();
-                mMediaPlayer.setAudioAttributes(attributes);
+                player.setAudioAttributes(attributes);
             } else {
-                mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+                player.setAudioStreamType(AudioManager.STREAM_MUSIC);
             }
-            mMediaPlayer.prepare();
-            mSeekBar.setMax(mMediaPlayer.getDuration());
-            mMediaPlayer.seekTo(progress);
-            requestAudioFocus();
+            player.prepare();
+        } catch (IOException | RuntimeException e) {
+            player.release();
+            throw e;
+        }
+        player.setOnCompletionListener(mCompletionListener);
+        return player;
+    }
 
-            mMediaPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
+    private void prepareNextSegment() {
+        final int next = mSegment + 1;
+        if (next >= mSegments.size()) {
+            return;
+        }
+        try {
+            mNextPlayer = createPlayer(mSegments.get(next).getFilePath());
+            mMediaPlayer.setNextMediaPlayer(mNextPlayer);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not prepare segment " + (next + 1), e);
+            mNextPlayer = null;
+        }
+    }
+
+    private final MediaPlayer.OnCompletionListener mCompletionListener =
+            new MediaPlayer.OnCompletionListener() {
                 @Override
                 public void onCompletion(MediaPlayer mp) {
-                    stopPlaying();
+                    if (mp != mMediaPlayer) {
+                        return;
+                    }
+                    if (mNextPlayer == null) {
+                        stopPlaying();
+                        return;
+                    }
+                    // The next player has already started; it becomes the current one.
+                    mMediaPlayer.release();
+                    mMediaPlayer = mNextPlayer;
+                    mNextPlayer = null;
+                    mSegment++;
+                    prepareNextSegment();
                 }
-            });
+            };
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void releasePlayers() {
+        if (mNextPlayer != null) {
+            mNextPlayer.release();
+            mNextPlayer = null;
+        }
+        if (mMediaPlayer != null) {
+            mMediaPlayer.reset();
+            mMediaPlayer.release();
+            mMediaPlayer = null;
         }
+    }
 
-        ScreenLock.keepScreenOn(getActivity());
+    private int segmentAt(long position) {
+        int segment = mSegmentStarts.length - 1;
+        while (segment > 0 && mSegmentStarts[segment] > position) {
+            segment--;
+        }
+        return segment;
+    }
+
+    /** Playback position on the timeline of the whole recording. */
+    private int getPosition() {
+        return (int) (mSegmentStarts[mSegment] + mMediaPlayer.getCurrentPosition());
+    }
+
+    private int getTimelineDuration() {
+        if (mSegments.size() == 1) {
+            return mMediaPlayer.getDuration();
+        }
+        final int last = mSegments.size() - 1;
+        return (int) (mSegmentStarts[last] + mSegments.get(last).getLength());
+    }
+
+    /** Seeks on the timeline of the whole recording, moving to another segment if needed. */
+    private void seekTo(int position) {
+        final int segment = segmentAt(position);
+        if (segment != mSegment) {
+            final boolean playing = mMediaPlayer.isPlaying();
+            try {
+                openSegment(segment);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not open segment " + (segment + 1), e);
+                EventBroadcaster.send(getContext(), R.string.error_prepare_playback);
+                return;
+            }
+            if (playing) {
+                mMediaPlayer.start();
+            }
+        }
+        mMediaPlayer.seekTo((int) (position - mSegmentStarts[segment]));
     }
 
     private void pausePlaying() {
@@ -418,9 +548,7 @@ public class PlaybackFragment extends AppCompatDialogFragment {
         mPlayButton.setImageResource(R.drawable.ic_media_play);
         mHandler.removeCallbacks(mRunnable);
         mMediaPlayer.stop();
-        mMediaPlayer.reset();
-        mMediaPlayer.release();
-        mMediaPlayer = null;
+        releasePlayers();
 
         abandonAudioFocus();
 
@@ -508,7 +636,7 @@ public class PlaybackFragment extends AppCompatDialogFragment {
         @Override
         public void run() {
             if (mMediaPlayer != null) {
-                int currentPosition = mMediaPlayer.getCurrentPosition();
+                int currentPosition = getPosition();
                 mSeekBar.setProgress(currentPosition);
                 mCurrentProgressTextView.setText(TimeUtils.formatDuration(currentPosition));
                 updateSeekBar();
@@ -33,6 +33,8 @@ import com.melnykov.fab.FloatingActionButton;
 
 import org.borisveriga.soundrecorder.R;
 import org.borisveriga.soundrecorder.model.dao.RecorderState;
+import org.borisveriga.soundrecorder.recorder.LevelMeter;
+import org.borisveriga.soundrecorder.recorder.RecorderEngines;
 import org.borisveriga.soundrecorder.activities.MainActivity;
 import org.borisveriga.soundrecorder.listeners.OnSingleClickListener;
 import org.borisveriga.soundrecorder.services.RecordingService;
@@ -42,6 +44,8 @@ import org.borisveriga.soundrecorder.util.MyIntentBuilder;
 import org.borisveriga.soundrecorder.util.Paths;
 import org.borisveriga.soundrecorder.util.PermissionsHelper;
 import org.borisveriga.soundrecorder.util.ScreenLock;
+import org.borisveriga.soundrecorder.util.StorageBudget;
+import org.borisveriga.soundrecorder.views.LevelMeterView;
 
 import java.io.File;
 
@@ -56,9 +60,12 @@ public class RecordFragment extends Fragment {
     private boolean isPauseButtonInState1 = true;
 
     private CircularProgressBar mProgressBar;
+    private LevelMeterView mLevelMeter;
+    private boolean mPollingLevels = false;
 
     private TextView mRecordingPrompt;
     private int mRecordPromptCount = 0;
+    private TextView mStorageLeft;
 
     private Chronometer mChronometer = null;
     long timeWhenPaused = 0;
@@ -81,17 +88,14 @@ public class RecordFragment extends Fragment {
         mMessageReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                if (EventBroadcaster.FINALIZATION.equals(intent.getAction())) {
+                    onFinalizationEvent(intent);
+                    return;
+                }
                 final RecorderState newState = (RecorderState) intent.getSerializableExtra(
                         EventBroadcaster.NEW_STATE);
                 if (RecorderState.STOPPED.equals(newState)) {
                     updateUI(newState, SystemClock.elapsedRealtime());
-
-                    if (intent.getStringExtra(EventBroadcaster.LAST_AUDIO_LOCATION) != null && MainActivity.REQUEST_INTENTS.contains(requireActivity().getIntent().getAction())) {
-
-                        getActivity().setResult(Activity.RESULT_OK, new Intent().setData(Uri.fromFile(new File(intent.getStringExtra(EventBroadcaster.LAST_AUDIO_LOCATION)))));
-                        getActivity().finish();
-
-                    }
                 } else if (RecorderState.RECORDING.equals(newState)) {
                     long chronometerTime = intent.getLongExtra(
                             EventBroadcaster.CHRONOMETER_TIME,
@@ -103,6 +107,30 @@ public class RecordFragment extends Fragment {
         };
     }
 
+    private void onFinalizationEvent(Intent intent) {
+        if (getActivity() == null || !isAdded()) {
+            return;
+        }
+        final String filePath = intent.getStringExtra(EventBroadcaster.LAST_AUDIO_LOCATION);
+        if (intent.hasExtra(EventBroadcaster.FINALIZATION_PROGRESS)) {
+            if (isRecordButtonInState1) {
+                mRecordingPrompt.setText(getString(R.string.record_saving,
+                        intent.getIntExtra(EventBroadcaster.FINALIZATION_PROGRESS, 0)));
+            }
+            return;
+        }
+
+        if (isRecordButtonInState1
+                && intent.getIntExtra(EventBroadcaster.FINALIZATION_PENDING, 0) == 0) {
+            mRecordingPrompt.setText(getString(R.string.record_prompt));
+        }
+        // Hand the file to the requesting app only once it has been fully written.
+        if (filePath != null && MainActivity.REQUEST_INTENTS.contains(requireActivity().getIntent().getAction())) {
+            getActivity().setResult(Activity.RESULT_OK, new Intent().setData(Uri.fromFile(new File(filePath))));
+            getActivity().finish();
+        }
+    }
+
     @Override
     public void onAttach(Context context) {
         super.onAttach(context);
@@ -160,11 +188,13 @@ public class RecordFragment extends Fragment {
         mChronometer = recordView.findViewById(R.id.chronometer);
 
         mRecordingPrompt = recordView.findViewById(R.id.recording_status_text);
+        mStorageLeft = recordView.findViewById(R.id.storage_left_text);
 
         mRecordButton = recordView.findViewById(R.id.btnRecord);
         mRecordButton.setOnClickListener(createRecordButtonClickListener());
 
         mProgressBar = recordView.findViewById(R.id.recordProgressBar);
+        mLevelMeter = recordView.findViewById(R.id.levelMeter);
         mPauseButton = recordView.findViewById(R.id.btnPause);
         mPauseButton.setVisibility(View.GONE);
         mPauseButton.setOnClickListener(createPauseButtonClickListener());
@@ -185,9 +215,59 @@ public class RecordFragment extends Fragment {
             }
 
             ++mRecordPromptCount;
+
+            final RecordingService service = mRecordingService;
+            if (service != null) {
+                showStorageLeft(service.getRecordableMillis());
+            }
+        }
+    };
+
+    /** Projects the recording time left before a recording starts. */
+    private long getIdleStorageLeftMillis() {
+        final StorageBudget budget = new StorageBudget(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC));
+        return StorageBudget.toMillis(budget.getRecordableBytes(0),
+                RecorderEngines.getProfile(requireContext()).getEstimatedBitrate());
+    }
+
+    private void showStorageLeft(long millis) {
+        if (millis < 0 || millis == Long.MAX_VALUE) {
+            mStorageLeft.setVisibility(View.INVISIBLE);
+            return;
+        }
+        final long minutes = millis / 60000;
+        mStorageLeft.setText(minutes >= 120
+                ? getString(R.string.storage_left_hours, minutes / 60)
+                : getString(R.string.storage_left_minutes, minutes));
+        mStorageLeft.setVisibility(View.VISIBLE);
+    }
+
+    /** Reads the level from the bound service once per frame; no Intents involved. */
+    private final Runnable mLevelPoller = new Runnable() {
+        @Override
+        public void run() {
+            if (!mPollingLevels) {
+                return;
+            }
+            final RecordingService service = mRecordingService;
+            mLevelMeter.setLevels(service != null ? service.getLevels() : LevelMeter.SILENT);
+            mLevelMeter.postOnAnimation(this);
         }
     };
 
+    private void startLevelPolling() {
+        if (!mPollingLevels && isResumed()) {
+            mPollingLevels = true;
+            mLevelMeter.postOnAnimation(mLevelPoller);
+        }
+    }
+
+    private void stopLevelPolling() {
+        mPollingLevels = false;
+        mLevelMeter.removeCallbacks(mLevelPoller);
+    }
+
     private View.OnClickListener createPauseButtonClickListener() {
         return new OnSingleClickListener() {
             @Override
@@ -262,6 +342,10 @@ public class RecordFragment extends Fragment {
                 mChronometer.stop();
 
                 mProgressBar.setIndeterminate(false);
+                stopLevelPolling();
+                mLevelMeter.setLevels(LevelMeter.SILENT);
+                mLevelMeter.setVisibility(View.INVISIBLE);
+                showStorageLeft(getIdleStorageLeftMillis());
                 break;
 
             case PREPARING:
@@ -285,6 +369,8 @@ public class RecordFragment extends Fragment {
                 mChronometer.start();
 
                 mProgressBar.setIndeterminate(true);
+                mLevelMeter.setVisibility(View.VISIBLE);
+                startLevelPolling();
                 break;
 
             case PAUSED:
@@ -303,6 +389,8 @@ public class RecordFragment extends Fragment {
                 mChronometer.stop();
 
                 mProgressBar.setIndeterminate(false);
+                stopLevelPolling();
+                mLevelMeter.setLevels(LevelMeter.SILENT);
                 break;
         }
     }
@@ -331,6 +419,10 @@ public class RecordFragment extends Fragment {
                 return;
             }
         }
+        if (getIdleStorageLeftMillis() == 0) {
+            EventBroadcaster.send(getContext(), R.string.error_storage_full);
+            return;
+        }
 
         final FragmentActivity activity = getActivity();
         if (activity == null) {
@@ -363,15 +455,23 @@ public class RecordFragment extends Fragment {
     @Override
     public void onResume() {
         super.onResume();
+        final IntentFilter filter = new IntentFilter(EventBroadcaster.CHANGE_STATE);
+        filter.addAction(EventBroadcaster.FINALIZATION);
         LocalBroadcastManager.getInstance(requireContext()).registerReceiver(
                 mMessageReceiver,
-                new IntentFilter(EventBroadcaster.CHANGE_STATE)
+                filter
         );
+        if (mRecordingService != null && mRecordingService.getState() == RecorderState.RECORDING) {
+            startLevelPolling();
+        } else if (isRecordButtonInState1) {
+            showStorageLeft(getIdleStorageLeftMillis());
+        }
     }
 
     @Override
     public void onPause() {
         super.onPause();
+        stopLevelPolling();
         try {
             LocalBroadcastManager.getInstance(requireContext()).unregisterReceiver(mMessageReceiver);
         } catch (Exception exc) {
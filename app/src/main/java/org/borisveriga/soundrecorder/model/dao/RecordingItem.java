@@ -10,6 +10,7 @@ public class RecordingItem implements Parcelable {
     private int mId;
     private int mLength;
     private long mTime;
+    private int mSegmentCount;
 
     public RecordingItem() {
     }
@@ -20,6 +21,7 @@ public class RecordingItem implements Parcelable {
         mId = in.readInt();
         mLength = in.readInt();
         mTime = in.readLong();
+        mSegmentCount = in.readInt();
     }
 
 
@@ -63,6 +65,22 @@ public class RecordingItem implements Parcelable {
         mTime = time;
     }
 
+    /**
+     * @return how many files a long recording was split into, or 0 for an ordinary one whose
+     * only file is {@link #getFilePath()}
+     */
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    public void setSegmentCount(int segmentCount) {
+        mSegmentCount = segmentCount;
+    }
+
+    public boolean isSegmented() {
+        return mSegmentCount > 0;
+    }
+
     public static final Parcelable.Creator<RecordingItem> CREATOR = new Parcelable.Creator<RecordingItem>() {
         public RecordingItem createFromParcel(Parcel in) {
             return new RecordingItem(in);
@@ -75,11 +93,12 @@ public class RecordingItem implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mName);
+        dest.writeString(mFilePath);
         dest.writeInt(mId);
         dest.writeInt(mLength);
         dest.writeLong(mTime);
-        dest.writeString(mFilePath);
-        dest.writeString(mName);
+        dest.writeInt(mSegmentCount);
     }
 
     @Override
@@ -1,20 +1,50 @@
 package org.borisveriga.soundrecorder.model.local;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
+import android.util.Log;
 
 import org.borisveriga.soundrecorder.model.dao.RecordingItem;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class DBHelper extends SQLiteOpenHelper {
-    private static OnDatabaseChangedListener mOnDatabaseChangedListener;
-    
+    private static final String LOG_TAG = "DBHelper";
+
+    /**
+     * Bumped on every write so that caches of the table, such as the list's window, notice the
+     * change.
+     */
+    private static final AtomicInteger sGeneration = new AtomicInteger();
+
+    private static final int COUNT_UNKNOWN = -1;
+    /**
+     * Row count kept in memory. Seeded once with COUNT(*) and then adjusted by our own writes;
+     * {@link #verifyCount(DatabaseExecutor.Callback)} re-syncs it if something outside this
+     * class touched the table. Writes land in {@link #sPendingDelta} when they commit and move
+     * into {@link #sCount} once they are published on the main thread, so the adapter never
+     * sees a count it hasn't been notified about. Both are guarded by
+     * {@link DatabaseExecutor#COMMIT_LOCK}.
+     */
+    private static int sCount = COUNT_UNKNOWN;
+    private static int sPendingDelta = 0;
+
+    private static final AtomicBoolean sBackfillStarted = new AtomicBoolean();
+
     public static final String DATABASE_NAME = "audio_records.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = Migrations.LATEST_VERSION;
     public static abstract class DBHelperItem implements BaseColumns {
         public static final String TABLE_NAME = "saved_recordings";
 
@@ -22,8 +52,43 @@ public class DBHelper extends SQLiteOpenHelper {
         public static final String COLUMN_NAME_RECORDING_FILE_PATH = "file_path";
         public static final String COLUMN_NAME_RECORDING_LENGTH = "length";
         public static final String COLUMN_NAME_TIME_ADDED = "time_added";
+        // v2
+        public static final String COLUMN_NAME_SIZE_BYTES = "size_bytes";
+        public static final String COLUMN_NAME_CODEC = "codec";
+        public static final String COLUMN_NAME_SAMPLE_RATE = "sample_rate";
+        public static final String COLUMN_NAME_BITRATE = "bitrate";
+        // v4
+        public static final String COLUMN_NAME_FILE_MODIFIED = "file_modified";
+        // v5
+        /**
+         * Silence left out while recording, as {@code position+length} pairs in ms; see
+         * {@link org.borisveriga.soundrecorder.recorder.SilenceDetector#getSkippedRanges()}.
+         */
+        public static final String COLUMN_NAME_SKIPPED_SILENCE = "skipped_silence";
+        // v6
+        /** Name of the {@link org.borisveriga.soundrecorder.recorder.EncodingProfile} used. */
+        public static final String COLUMN_NAME_ENCODING_PROFILE = "encoding_profile";
     }
 
+    /** Files of a recording that was split while being recorded; v7. */
+    public static abstract class DBHelperSegment implements BaseColumns {
+        public static final String TABLE_NAME = "recording_segments";
+
+        /** {@code _id} of the saved_recordings row the segment belongs to. */
+        public static final String COLUMN_NAME_PARENT_ID = "parent_id";
+        /** Position within the recording, starting at 1. */
+        public static final String COLUMN_NAME_SEGMENT_INDEX = "segment_index";
+        public static final String COLUMN_NAME_FILE_PATH = "file_path";
+        public static final String COLUMN_NAME_LENGTH = "length";
+        public static final String COLUMN_NAME_SIZE_BYTES = "size_bytes";
+    }
+
+    /** Rows of saved_recordings that stand for a recording split into segments. */
+    static final String IS_SEGMENTED = DBHelperItem._ID + " IN (SELECT "
+            + DBHelperSegment.COLUMN_NAME_PARENT_ID + " FROM " + DBHelperSegment.TABLE_NAME + ")";
+
+    static final String FTS_TABLE_NAME = "recordings_fts";
+
     private static final String TEXT_TYPE = " TEXT";
     private static final String COMMA_SEP = ",";
 
@@ -35,89 +100,531 @@ public class DBHelper extends SQLiteOpenHelper {
                     DBHelperItem.COLUMN_NAME_RECORDING_LENGTH + " INTEGER " + COMMA_SEP +
                     DBHelperItem.COLUMN_NAME_TIME_ADDED + " INTEGER " + ")";
 
+    private static final String[] PROJECTION = {
+            DBHelperItem._ID,
+            DBHelperItem.COLUMN_NAME_RECORDING_NAME,
+            DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH,
+            DBHelperItem.COLUMN_NAME_RECORDING_LENGTH,
+            DBHelperItem.COLUMN_NAME_TIME_ADDED,
+            "(SELECT COUNT(*) FROM " + DBHelperSegment.TABLE_NAME + " WHERE "
+                    + DBHelperSegment.COLUMN_NAME_PARENT_ID + " = " + DBHelperItem.TABLE_NAME
+                    + "." + DBHelperItem._ID + ") AS segment_count"
+    };
+
+    private static final String[] SEGMENT_PROJECTION = {
+            DBHelperSegment._ID,
+            DBHelperSegment.COLUMN_NAME_SEGMENT_INDEX,
+            DBHelperSegment.COLUMN_NAME_FILE_PATH,
+            DBHelperSegment.COLUMN_NAME_LENGTH
+    };
+
+    private final RecordingsWindow mWindow = new RecordingsWindow(this);
+
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        Migrations.migrate(db, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        Migrations.migrate(db, oldVersion, newVersion);
+    }
 
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly() && sBackfillStarted.compareAndSet(false, true)) {
+            new MetadataBackfill(this).start();
+        }
     }
 
-    public DBHelper(Context context) {
+    private final Context mContext;
+
+    /**
+     * @return the helper of the process, owned by the {@link DatabaseExecutor}, so the
+     * database is opened once and every caller shares its connections and cached statements
+     */
+    public static DBHelper getInstance(Context context) {
+        return DatabaseExecutor.getInstance(context).getHelper();
+    }
+
+    /** Use {@link #getInstance}; only the executor and tests that need the schema create one. */
+    DBHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context.getApplicationContext();
+        // Readers no longer block behind the writer, and commits append to the log instead of
+        // rewriting pages in place.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    DatabaseExecutor getExecutor() {
+        return DatabaseExecutor.getInstance(mContext);
+    }
+
+    static int getGeneration() {
+        return sGeneration.get();
+    }
+
+    static void notifyTableChanged() {
+        sGeneration.incrementAndGet();
     }
 
-    public static void setOnDatabaseChangedListener(OnDatabaseChangedListener listener) {
-        mOnDatabaseChangedListener = listener;
+    /**
+     * Tells subscribers that rows changed in ways that weren't tracked one by one. Main
+     * thread only.
+     */
+    static void notifyDatabaseChanged() {
+        notifyTableChanged();
+        RecordingsChangeFeed.getInstance().publishReset();
     }
 
     public RecordingItem getItemAt(int position) {
-        SQLiteDatabase db = getReadableDatabase();
-        String[] projection = {
-                DBHelperItem._ID,
-                DBHelperItem.COLUMN_NAME_RECORDING_NAME,
-                DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH,
-                DBHelperItem.COLUMN_NAME_RECORDING_LENGTH,
-                DBHelperItem.COLUMN_NAME_TIME_ADDED
-        };
-        Cursor c = db.query(DBHelperItem.TABLE_NAME, projection, null, null, null, null, null);
-        if (c.moveToPosition(position)) {
-            RecordingItem item = new RecordingItem();
-            item.setId(c.getInt(c.getColumnIndex(DBHelperItem._ID)));
-            item.setName(c.getString(c.getColumnIndex(DBHelperItem.COLUMN_NAME_RECORDING_NAME)));
-            item.setFilePath(c.getString(c.getColumnIndex(DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH)));
-            item.setLength(c.getInt(c.getColumnIndex(DBHelperItem.COLUMN_NAME_RECORDING_LENGTH)));
-            item.setTime(c.getLong(c.getColumnIndex(DBHelperItem.COLUMN_NAME_TIME_ADDED)));
+        return mWindow.getItemAt(position);
+    }
+
+    List<RecordingItem> queryPage(int offset, int limit) {
+        return query(null, null, DBHelperItem._ID + " ASC", offset + "," + limit);
+    }
+
+    List<RecordingItem> queryPageAfter(int id, int limit) {
+        return query(DBHelperItem._ID + ">?", new String[]{String.valueOf(id)},
+                DBHelperItem._ID + " ASC", String.valueOf(limit));
+    }
+
+    List<RecordingItem> queryPageBefore(int id, int limit) {
+        return query(DBHelperItem._ID + "<?", new String[]{String.valueOf(id)},
+                DBHelperItem._ID + " DESC", String.valueOf(limit));
+    }
+
+    /**
+     * Full-text search over recording names. Every word of {@code text} is matched as a
+     * prefix, so results narrow down while the user is still typing.
+     */
+    public List<RecordingItem> search(String text, int offset, int limit) {
+        return search(getReadableDatabase(), text, offset, limit);
+    }
+
+    static List<RecordingItem> search(SQLiteDatabase db, String text, int offset, int limit) {
+        final String match = toMatchExpression(text);
+        if (match.isEmpty()) {
+            return new ArrayList<>();
+        }
+        // The page is cut inside the index, which yields docids in order, so a prefix that
+        // matches most rows stops after one page instead of collecting every match first.
+        return query(db, DBHelperItem._ID + " IN (SELECT docid FROM " + FTS_TABLE_NAME
+                        + " WHERE " + FTS_TABLE_NAME + " MATCH ? ORDER BY docid LIMIT "
+                        + offset + "," + limit + ")",
+                new String[]{match}, DBHelperItem._ID + " ASC", null);
+    }
+
+    public Future<List<RecordingItem>> searchAsync(final String text, final int offset, final int limit,
+                                                   DatabaseExecutor.Callback<List<RecordingItem>> callback) {
+        return getExecutor().read(new Callable<List<RecordingItem>>() {
+            @Override
+            public List<RecordingItem> call() {
+                return search(text, offset, limit);
+            }
+        }, callback);
+    }
+
+    private static String toMatchExpression(String text) {
+        final StringBuilder match = new StringBuilder();
+        for (String token : text.split("[^\\p{L}\\p{N}]+")) {
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(token).append('*');
+        }
+        return match.toString();
+    }
+
+    private List<RecordingItem> query(String selection, String[] selectionArgs,
+                                      String orderBy, String limit) {
+        return query(getReadableDatabase(), selection, selectionArgs, orderBy, limit);
+    }
+
+    private static List<RecordingItem> query(SQLiteDatabase db, String selection,
+                                             String[] selectionArgs, String orderBy,
+                                             String limit) {
+        Cursor c = db.query(DBHelperItem.TABLE_NAME, PROJECTION, selection, selectionArgs,
+                null, null, orderBy, limit);
+        List<RecordingItem> items = new ArrayList<>(c.getCount());
+        try {
+            final int idIndex = c.getColumnIndex(DBHelperItem._ID);
+            final int nameIndex = c.getColumnIndex(DBHelperItem.COLUMN_NAME_RECORDING_NAME);
+            final int pathIndex = c.getColumnIndex(DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH);
+            final int lengthIndex = c.getColumnIndex(DBHelperItem.COLUMN_NAME_RECORDING_LENGTH);
+            final int timeIndex = c.getColumnIndex(DBHelperItem.COLUMN_NAME_TIME_ADDED);
+            final int segmentsIndex = c.getColumnIndex("segment_count");
+            while (c.moveToNext()) {
+                RecordingItem item = new RecordingItem();
+                item.setId(c.getInt(idIndex));
+                item.setName(c.getString(nameIndex));
+                item.setFilePath(c.getString(pathIndex));
+                item.setLength(c.getInt(lengthIndex));
+                item.setTime(c.getLong(timeIndex));
+                item.setSegmentCount(c.getInt(segmentsIndex));
+                items.add(item);
+            }
+        } finally {
             c.close();
-            return item;
         }
-        return null;
+        return items;
+    }
+
+    /**
+     * Loads the files of a recording split into segments, in playback order, as items with
+     * their path and length set.
+     */
+    public Future<List<RecordingItem>> getSegmentsAsync(final int parentId,
+                                                        DatabaseExecutor.Callback<List<RecordingItem>> callback) {
+        return getExecutor().read(new Callable<List<RecordingItem>>() {
+            @Override
+            public List<RecordingItem> call() {
+                final Cursor c = getReadableDatabase().query(DBHelperSegment.TABLE_NAME,
+                        SEGMENT_PROJECTION, DBHelperSegment.COLUMN_NAME_PARENT_ID + "=?",
+                        new String[]{String.valueOf(parentId)}, null, null,
+                        DBHelperSegment.COLUMN_NAME_SEGMENT_INDEX + " ASC");
+                final List<RecordingItem> segments = new ArrayList<>(c.getCount());
+                try {
+                    while (c.moveToNext()) {
+                        final RecordingItem segment = new RecordingItem();
+                        segment.setId(c.getInt(0));
+                        segment.setName(new File(c.getString(2)).getName());
+                        segment.setFilePath(c.getString(2));
+                        segment.setLength(c.getInt(3));
+                        segments.add(segment);
+                    }
+                } finally {
+                    c.close();
+                }
+                return segments;
+            }
+        }, callback);
+    }
+
+    public Future<Integer> removeItemWithId(int id) {
+        return removeItemWithId(id, null);
+    }
+
+    public Future<Integer> removeItemWithId(final int id, DatabaseExecutor.Callback<Integer> callback) {
+        return getExecutor().write(new CountingWrite<Integer>(callback) {
+            @Override
+            Integer execute(SQLiteDatabase db, RecordingStatements statements) {
+                return delete(statements, id);
+            }
+        });
+    }
+
+    /**
+     * Removes all given rows in a single transaction.
+     */
+    public Future<Integer> removeItemsWithIds(final List<Integer> ids,
+                                              DatabaseExecutor.Callback<Integer> callback) {
+        return getExecutor().write(new CountingWrite<Integer>(callback) {
+            @Override
+            Integer execute(SQLiteDatabase db, RecordingStatements statements) {
+                // In list order, so adjacent rows are published as one removed range.
+                final List<Integer> sorted = new ArrayList<>(ids);
+                Collections.sort(sorted);
+                int deleted = 0;
+                for (int id : sorted) {
+                    deleted += delete(statements, id);
+                }
+                return deleted;
+            }
+        });
+    }
+
+    /**
+     * Points the given rows at new file locations in a single transaction. {@code ids} and
+     * {@code filePaths} are parallel lists.
+     */
+    public Future<Integer> updateFilePaths(final List<Integer> ids, final List<String> filePaths,
+                                           DatabaseExecutor.Callback<Integer> callback) {
+        return getExecutor().write(new CountingWrite<Integer>(callback) {
+            @Override
+            Integer execute(SQLiteDatabase db, RecordingStatements statements) {
+                int updated = 0;
+                for (int i = 0; i < ids.size(); i++) {
+                    final int id = ids.get(i);
+                    // Segments move with their folder; the row points at the first of them.
+                    statements.moveSegments(id, new File(filePaths.get(i)).getParent());
+                    if (statements.updatePath(id, filePaths.get(i)) > 0) {
+                        mChanges.updated(id);
+                        updated++;
+                    }
+                }
+                return updated;
+            }
+        });
     }
 
-    public void removeItemWithId(int id) {
-        SQLiteDatabase db = getWritableDatabase();
-        String[] whereArgs = { String.valueOf(id) };
-        db.delete(DBHelperItem.TABLE_NAME, "_ID=?", whereArgs);
+    /**
+     * Renames {@code source} to {@code target} and points the row at {@code rowPath} to
+     * {@code target}, as one step: if the row update doesn't commit, the file is renamed back,
+     * so the row never points at a file that isn't there. If {@code source} is gone and
+     * {@code target} already has the expected length, the rename is taken to have happened
+     * before and only the row is updated.
+     *
+     * @param rowPath path the row has now; {@code source} itself, or the file a copy was
+     *                made from
+     * @param length  size of the recording, to tell it from anything else at {@code target}
+     * @return 1 if the file and its row were moved, 0 if there is no row at {@code rowPath}
+     * and nothing was done, or -1 if the file could not be renamed
+     */
+    public Future<Integer> moveFile(final String rowPath, final File source, final File target,
+                                    final long length) {
+        return getExecutor().write(new CountingWrite<Integer>(null) {
+            /** Whether this write renamed the file, and has to undo that if it doesn't commit. */
+            private boolean mRenamed;
+
+            @Override
+            Integer execute(SQLiteDatabase db, RecordingStatements statements) {
+                final long id = statements.findByPath(rowPath);
+                if (id == -1) {
+                    return 0;
+                }
+                final boolean movedBefore = !source.exists() && target.length() == length;
+                if (!movedBefore) {
+                    if (!source.renameTo(target)) {
+                        return -1;
+                    }
+                    mRenamed = true;
+                }
+                statements.updatePath(id, target.getPath());
+                mChanges.updated((int) id);
+                return 1;
+            }
+
+            @Override
+            void onRolledBack() {
+                if (mRenamed && !target.renameTo(source)) {
+                    Log.e(LOG_TAG, "Could not move " + target + " back to " + source);
+                }
+            }
+        });
     }
 
     public int getCount() {
-        SQLiteDatabase db = getReadableDatabase();
-        String[] projection = { DBHelperItem._ID };
-        Cursor c = db.query(DBHelperItem.TABLE_NAME, projection, null, null, null, null, null);
-        int count = c.getCount();
-        c.close();
-        return count;
-    }
-
-    public void addRecording(String recordingName, String filePath, long length) {
-
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues cv = new ContentValues();
-        cv.put(DBHelperItem.COLUMN_NAME_RECORDING_NAME, recordingName);
-        cv.put(DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH, filePath);
-        cv.put(DBHelperItem.COLUMN_NAME_RECORDING_LENGTH, length);
-        cv.put(DBHelperItem.COLUMN_NAME_TIME_ADDED, System.currentTimeMillis());
-        db.insert(DBHelperItem.TABLE_NAME, null, cv);
-
-        if (mOnDatabaseChangedListener != null) {
-            mOnDatabaseChangedListener.onNewDatabaseEntryAdded();
+        synchronized (DatabaseExecutor.COMMIT_LOCK) {
+            if (sCount == COUNT_UNKNOWN) {
+                sCount = queryCount() - sPendingDelta;
+            }
+            return sCount;
         }
     }
 
-    public void renameItem(RecordingItem item, String recordingName, String filePath) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues cv = new ContentValues();
-        cv.put(DBHelperItem.COLUMN_NAME_RECORDING_NAME, recordingName);
-        cv.put(DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH, filePath);
-        db.update(DBHelperItem.TABLE_NAME, cv,
-                DBHelperItem._ID + "=" + item.getId(), null);
+    /**
+     * Compares the cached count against COUNT(*) on a reader thread and re-syncs it when they
+     * disagree. The callback receives true if the cached count was stale.
+     */
+    public void verifyCount(final DatabaseExecutor.Callback<Boolean> callback) {
+        getExecutor().read(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                synchronized (DatabaseExecutor.COMMIT_LOCK) {
+                    if (sCount == COUNT_UNKNOWN) {
+                        return 0;
+                    }
+                    return queryCount() - sPendingDelta - sCount;
+                }
+            }
+        }, new DatabaseExecutor.Callback<Integer>() {
+            @Override
+            public void onResult(Integer correction) {
+                if (correction != 0) {
+                    adjustCount(correction);
+                    notifyDatabaseChanged();
+                }
+                if (callback != null) {
+                    callback.onResult(correction != 0);
+                }
+            }
+        });
+    }
+
+    private int queryCount() {
+        return (int) DatabaseUtils.queryNumEntries(getReadableDatabase(), DBHelperItem.TABLE_NAME);
+    }
+
+    private static void adjustCount(int delta) {
+        synchronized (DatabaseExecutor.COMMIT_LOCK) {
+            if (sCount != COUNT_UNKNOWN) {
+                sCount += delta;
+            }
+        }
+    }
+
+    /**
+     * A write that changes rows. Subclasses set {@link #mDelta} when the number of rows
+     * changes and record each changed row in {@link #mChanges}, which goes out on the
+     * {@link RecordingsChangeFeed} right after the count is updated. The rows' positions are
+     * worked out together once the write has made all its changes.
+     */
+    static abstract class CountingWrite<T> extends DatabaseExecutor.Write<T> {
+        int mDelta;
+        final RecordingsChangeFeed.Batch mChanges = new RecordingsChangeFeed.Batch();
+
+        CountingWrite(DatabaseExecutor.Callback<T> callback) {
+            super(callback);
+        }
+
+        @Override
+        void onExecuted(RecordingStatements statements) {
+            mChanges.resolvePositions(statements);
+        }
+
+        @Override
+        void onCommitted(T result) {
+            sPendingDelta += mDelta;
+        }
+
+        @Override
+        void onPublished(T result) {
+            synchronized (DatabaseExecutor.COMMIT_LOCK) {
+                sPendingDelta -= mDelta;
+                if (sCount != COUNT_UNKNOWN) {
+                    sCount += mDelta;
+                }
+            }
+            notifyTableChanged();
+            RecordingsChangeFeed.getInstance().publish(mChanges);
+        }
 
-        if (mOnDatabaseChangedListener != null) {
-            mOnDatabaseChangedListener.onDatabaseEntryRenamed();
+        /** Deletes row {@code id} and records it; returns the number of rows deleted. */
+        int delete(RecordingStatements statements, long id) {
+            final int deleted = statements.delete(id);
+            if (deleted > 0) {
+                mDelta -= deleted;
+                mChanges.deleted((int) id);
+            }
+            return deleted;
         }
     }
 
+    public Future<Long> addRecording(String recordingName, String filePath, long length) {
+        return addRecording(recordingName, filePath, length, null, 0, 0, null, null);
+    }
+
+    /**
+     * @param encodingProfile name of the profile recorded with, or null if unknown
+     * @param skippedSilence  silence left out of the recording, or null
+     */
+    public Future<Long> addRecording(final String recordingName, final String filePath, final long length,
+                                     final String codec, final int sampleRate, final int bitrate,
+                                     final String encodingProfile, final String skippedSilence) {
+
+        final long timeAdded = System.currentTimeMillis();
+        final File file = new File(filePath);
+        final long sizeBytes = file.length();
+        final long fileModified = file.lastModified();
+
+        return getExecutor().write(new CountingWrite<Long>(null) {
+            @Override
+            Long execute(SQLiteDatabase db, RecordingStatements statements) {
+                // The reconciler may have picked the file up before we got here; keep one row.
+                long id = statements.findByPath(filePath);
+                if (id != -1) {
+                    statements.updateFileInfo(id, length, sizeBytes, fileModified);
+                    if (encodingProfile != null) {
+                        statements.updateEncodingProfile(id, encodingProfile);
+                    }
+                    if (skippedSilence != null) {
+                        statements.updateSkippedSilence(id, skippedSilence);
+                    }
+                    mChanges.updated((int) id);
+                    return id;
+                }
+                id = statements.insert(recordingName, filePath, length, timeAdded, sizeBytes,
+                        codec, sampleRate, bitrate, fileModified, encodingProfile, skippedSilence);
+                if (id != -1) {
+                    mDelta = 1;
+                    mChanges.inserted((int) id);
+                }
+                return id;
+            }
+        });
+    }
+
+    /**
+     * Adds one segment of a recording split while it was recorded. The first segment to
+     * arrive creates the row the list shows, keyed by {@code parentPath}; its length and size
+     * are kept at the sum of the segments.
+     *
+     * @param parentPath path of the recording's first segment
+     * @param index      position of this segment, starting at 1
+     */
+    public Future<Long> addSegment(final String recordingName, final String parentPath,
+                                   final int index, final String filePath, final long length,
+                                   final String codec, final int sampleRate, final int bitrate,
+                                   final String encodingProfile) {
+        final long timeAdded = System.currentTimeMillis();
+        final long sizeBytes = new File(filePath).length();
+
+        return getExecutor().write(new CountingWrite<Long>(null) {
+            @Override
+            Long execute(SQLiteDatabase db, RecordingStatements statements) {
+                long parentId = statements.findByPath(parentPath);
+                final boolean created = parentId == -1;
+                if (created) {
+                    parentId = statements.insert(recordingName, parentPath, 0, timeAdded, 0,
+                            codec, sampleRate, bitrate, 0, encodingProfile, null);
+                    if (parentId == -1) {
+                        return -1L;
+                    }
+                }
+                statements.insertSegment(parentId, index, filePath, length, sizeBytes);
+                statements.updateTotals(parentId);
+                if (created) {
+                    mDelta = 1;
+                    mChanges.inserted((int) parentId);
+                } else {
+                    mChanges.updated((int) parentId);
+                }
+                return parentId;
+            }
+        });
+    }
+
+    public Future<Integer> renameItem(RecordingItem item, String recordingName, String filePath) {
+        return renameItem(item, recordingName, filePath, null);
+    }
+
+    public Future<Integer> renameItem(final RecordingItem item, final String recordingName,
+                                      final String filePath, DatabaseExecutor.Callback<Integer> callback) {
+        return getExecutor().write(new CountingWrite<Integer>(callback) {
+            @Override
+            Integer execute(SQLiteDatabase db, RecordingStatements statements) {
+                final int updated = statements.rename(item.getId(), recordingName, filePath);
+                if (updated > 0) {
+                    mChanges.updated(item.getId());
+                }
+                return updated;
+            }
+
+            @Override
+            void onPublished(Integer updated) {
+                super.onPublished(updated);
+                if (updated == 0) {
+                    // The row vanished underneath us, so the cached count can't be trusted either.
+                    verifyCount(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Blocking variant of {@link DatabaseExecutor#write(DatabaseExecutor.Write)} for callers
+     * that already run on a background thread.
+     */
+    <T> T writeAndWait(DatabaseExecutor.Write<T> write) throws Exception {
+        return getExecutor().write(write).get();
+    }
+
 }
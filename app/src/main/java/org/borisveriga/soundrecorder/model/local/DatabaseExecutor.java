@@ -0,0 +1,302 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps database I/O off the main thread. All writes go through a single writer thread which
+ * drains whatever has queued up since the last commit and applies it in one transaction, so a
+ * burst of operations costs one fsync. Every write runs under a savepoint of its own: one that
+ * fails is rolled back alone, and the rest of the batch still commits. Reads run on a small
+ * pool of their own.
+ * <p>
+ * Results are handed back as {@link Future}s and, optionally, {@link Callback}s on the main thread.
+ */
+public class DatabaseExecutor {
+
+    private static final String LOG_TAG = "DatabaseExecutor";
+
+    private static final int READER_THREADS = 2;
+    private static final int MAX_BATCH = 256;
+    private static final String SAVEPOINT = "batch_write";
+
+    /**
+     * Held by the writer while a batch commits. Anything that has to see committed rows and
+     * the in-memory bookkeeping of those rows at the same time synchronizes on it.
+     */
+    static final Object COMMIT_LOCK = new Object();
+
+    private static DatabaseExecutor sInstance;
+
+    private final DBHelper mHelper;
+    private final BlockingQueue<Write<?>> mWrites = new LinkedBlockingQueue<>();
+    private final ExecutorService mReaders;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    /** Only touched by the writer thread. */
+    private RecordingStatements mStatements;
+
+    public static abstract class Callback<T> {
+        public abstract void onResult(T result);
+
+        public void onError(Exception e) {
+            Log.e(LOG_TAG, "Database operation failed", e);
+        }
+    }
+
+    /**
+     * A unit of work for the writer thread.
+     */
+    static abstract class Write<T> {
+        private final Callback<T> mCallback;
+        private T mResult;
+        private Exception mError;
+        private final FutureTask<T> mFuture = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if (mError != null) {
+                    throw mError;
+                }
+                return mResult;
+            }
+        });
+
+        Write(Callback<T> callback) {
+            mCallback = callback;
+        }
+
+        /** Runs on the writer thread, inside the batch transaction. */
+        abstract T execute(SQLiteDatabase db, RecordingStatements statements);
+
+        /**
+         * Runs on the writer thread once {@link #execute} has returned, under the same
+         * savepoint, so whatever it reads still belongs to this write.
+         */
+        void onExecuted(RecordingStatements statements) {
+        }
+
+        /** Runs on the writer thread right after the batch committed, under {@link #COMMIT_LOCK}. */
+        void onCommitted(T result) {
+        }
+
+        /**
+         * Runs on the writer thread if nothing this write did to the database was committed,
+         * because it threw or the batch failed to commit. Undoes whatever it did outside the
+         * database.
+         */
+        void onRolledBack() {
+        }
+
+        /** Runs on the main thread before the callback is invoked. */
+        void onPublished(T result) {
+        }
+    }
+
+    public static synchronized DatabaseExecutor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DatabaseExecutor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DatabaseExecutor(Context context) {
+        mHelper = new DBHelper(context);
+        mReaders = Executors.newFixedThreadPool(READER_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "DatabaseReader-" + mCount.incrementAndGet());
+            }
+        });
+
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runWriter();
+            }
+        }, "DatabaseWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    DBHelper getHelper() {
+        return mHelper;
+    }
+
+    <T> Future<T> write(Write<T> write) {
+        mWrites.add(write);
+        return write.mFuture;
+    }
+
+    public <T> Future<T> read(final Callable<T> query, final Callback<T> callback) {
+        return mReaders.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    final T result = query.call();
+                    postResult(callback, result);
+                    return result;
+                } catch (final Exception e) {
+                    postError(callback, e);
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private void runWriter() {
+        final List<Write<?>> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(mWrites.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            mWrites.drainTo(batch, MAX_BATCH - 1);
+            applyBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void applyBatch(List<Write<?>> batch) {
+        final SQLiteDatabase db;
+        try {
+            db = mHelper.getWritableDatabase();
+        } catch (Exception e) {
+            for (Write<?> write : batch) {
+                write.mError = e;
+                publish(write);
+            }
+            return;
+        }
+
+        if (mStatements == null || !mStatements.belongsTo(db)) {
+            if (mStatements != null) {
+                mStatements.close();
+            }
+            mStatements = new RecordingStatements(db);
+        }
+
+        Exception batchError = null;
+        db.beginTransaction();
+        try {
+            for (Write<?> write : batch) {
+                execute(db, mStatements, write);
+            }
+            db.setTransactionSuccessful();
+        } catch (Exception e) {
+            // A savepoint could not be set or rolled back; nothing of the batch is kept.
+            batchError = e;
+        } finally {
+            synchronized (COMMIT_LOCK) {
+                Exception commitError = batchError;
+                try {
+                    db.endTransaction();
+                } catch (Exception e) {
+                    if (commitError == null) {
+                        commitError = e;
+                    }
+                }
+                for (Write<?> write : batch) {
+                    if (commitError != null) {
+                        if (write.mError == null) {
+                            write.onRolledBack();
+                        }
+                        write.mError = commitError;
+                    } else if (write.mError == null) {
+                        commit(write);
+                    }
+                }
+            }
+        }
+
+        for (Write<?> write : batch) {
+            publish(write);
+        }
+    }
+
+    /**
+     * Runs one write of the batch. If it throws, what it changed is rolled back to where it
+     * started, so nothing commits that its {@link Write#onCommitted} bookkeeping doesn't cover.
+     */
+    private static <T> void execute(SQLiteDatabase db, RecordingStatements statements, Write<T> write) {
+        db.execSQL("SAVEPOINT " + SAVEPOINT);
+        try {
+            write.mResult = write.execute(db, statements);
+            write.onExecuted(statements);
+        } catch (Exception e) {
+            write.mError = e;
+            write.onRolledBack();
+            // Throws if the rollback itself fails, which fails the whole batch.
+            db.execSQL("ROLLBACK TO " + SAVEPOINT);
+        }
+        db.execSQL("RELEASE " + SAVEPOINT);
+    }
+
+    private static <T> void commit(Write<T> write) {
+        write.onCommitted(write.mResult);
+    }
+
+    private <T> void publish(final Write<T> write) {
+        write.mFuture.run();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (write.mError != null) {
+                    if (write.mCallback != null) {
+                        write.mCallback.onError(write.mError);
+                    } else {
+                        Log.e(LOG_TAG, "Database write failed", write.mError);
+                    }
+                    return;
+                }
+                write.onPublished(write.mResult);
+                if (write.mCallback != null) {
+                    write.mCallback.onResult(write.mResult);
+                }
+            }
+        });
+    }
+
+    private <T> void postResult(final Callback<T> callback, final T result) {
+        if (callback == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    private <T> void postError(final Callback<T> callback, final Exception e) {
+        if (callback == null) {
+            Log.e(LOG_TAG, "Database read failed", e);
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onError(e);
+            }
+        });
+    }
+}
@@ -0,0 +1,101 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.model.local.DBHelper.DBHelperItem;
+import org.borisveriga.soundrecorder.util.MediaProbe;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Fills the metadata columns added in schema v2 for rows recorded before the upgrade. Works
+ * through the table in small batches so the writer is never held up for long and an
+ * interrupted run simply picks up where it stopped the next time the database is opened.
+ * Each batch runs as a read of its own and queues the next, so reads behind it wait for one
+ * batch at most.
+ */
+class MetadataBackfill implements Callable<Void> {
+
+    private static final String LOG_TAG = "MetadataBackfill";
+    private static final int BATCH_SIZE = 100;
+
+    private final DBHelper mHelper;
+    /** Only touched by the batch running. */
+    private int mTotal;
+
+    MetadataBackfill(DBHelper helper) {
+        mHelper = helper;
+    }
+
+    void start() {
+        mHelper.getExecutor().read(this, null);
+    }
+
+    @Override
+    public Void call() {
+        final int batch = runBatch();
+        mTotal += batch;
+        if (batch == BATCH_SIZE) {
+            start();
+        } else if (mTotal > 0) {
+            Log.i(LOG_TAG, "Backfilled metadata of " + mTotal + " recordings");
+        }
+        return null;
+    }
+
+    private int runBatch() {
+        final Cursor c = mHelper.getReadableDatabase().query(DBHelperItem.TABLE_NAME,
+                new String[]{DBHelperItem._ID, DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH},
+                DBHelperItem.COLUMN_NAME_SIZE_BYTES + " IS NULL", null,
+                null, null, DBHelperItem._ID, String.valueOf(BATCH_SIZE));
+
+        final int count = c.getCount();
+        final long[] ids = new long[count];
+        final ContentValues[] values = new ContentValues[count];
+        try {
+            // Probe before handing the batch to the writer; it is file I/O and may be slow.
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+                values[i] = toContentValues(MediaProbe.probe(c.getString(1)));
+            }
+        } finally {
+            c.close();
+        }
+
+        try {
+            mHelper.writeAndWait(new DatabaseExecutor.Write<Void>(null) {
+                @Override
+                Void execute(SQLiteDatabase db, RecordingStatements statements) {
+                    for (int i = 0; i < count; i++) {
+                        db.update(DBHelperItem.TABLE_NAME, values[i],
+                                DBHelperItem._ID + "=?", new String[]{String.valueOf(ids[i])});
+                    }
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Backfill stopped", e);
+            return 0;
+        }
+        return count;
+    }
+
+    private static ContentValues toContentValues(MediaProbe probe) {
+        final ContentValues cv = new ContentValues();
+        // A missing file still gets 0 so the row is not probed again on every start.
+        cv.put(DBHelperItem.COLUMN_NAME_SIZE_BYTES, probe.sizeBytes);
+        if (probe.codec != null) {
+            cv.put(DBHelperItem.COLUMN_NAME_CODEC, probe.codec);
+        }
+        if (probe.sampleRate > 0) {
+            cv.put(DBHelperItem.COLUMN_NAME_SAMPLE_RATE, probe.sampleRate);
+        }
+        if (probe.bitrate > 0) {
+            cv.put(DBHelperItem.COLUMN_NAME_BITRATE, probe.bitrate);
+        }
+        return cv;
+    }
+}
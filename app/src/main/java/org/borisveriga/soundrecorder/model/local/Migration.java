@@ -0,0 +1,20 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the recordings schema, taking the database from {@code version - 1} to
+ * {@code version}. Steps run inside the transaction {@link android.database.sqlite.SQLiteOpenHelper}
+ * opens for onCreate/onUpgrade, so they must stay cheap: anything proportional to the number of
+ * rows belongs in a background job started from {@link DBHelper#onOpen(SQLiteDatabase)}.
+ */
+abstract class Migration {
+
+    final int version;
+
+    Migration(int version) {
+        this.version = version;
+    }
+
+    abstract void migrate(SQLiteDatabase db);
+}
@@ -0,0 +1,139 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.model.local.DBHelper.DBHelperItem;
+import org.borisveriga.soundrecorder.model.local.DBHelper.DBHelperSegment;
+
+class Migrations {
+
+    private static final String LOG_TAG = "Migrations";
+
+    static final int LATEST_VERSION = 8;
+
+    private static final Migration[] MIGRATIONS = {
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    addColumn(db, DBHelperItem.COLUMN_NAME_SIZE_BYTES, "INTEGER");
+                    addColumn(db, DBHelperItem.COLUMN_NAME_CODEC, "TEXT");
+                    addColumn(db, DBHelperItem.COLUMN_NAME_SAMPLE_RATE, "INTEGER");
+                    addColumn(db, DBHelperItem.COLUMN_NAME_BITRATE, "INTEGER");
+
+                    createIndex(db, "idx_time_added", DBHelperItem.COLUMN_NAME_TIME_ADDED);
+                    createIndex(db, "idx_recording_name", DBHelperItem.COLUMN_NAME_RECORDING_NAME);
+                    createIndex(db, "idx_file_path", DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH);
+                }
+            },
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // External-content FTS4 index: the text lives only in saved_recordings and
+                    // the triggers keep the index in step with it. Add searchable columns (notes,
+                    // tags) to FTS_COLUMNS in a later step and rebuild.
+                    final String fts = DBHelper.FTS_TABLE_NAME;
+                    final String table = DBHelperItem.TABLE_NAME;
+                    final String columns = TextUtils.join(", ", FTS_COLUMNS);
+                    final String newValues = "new." + TextUtils.join(", new.", FTS_COLUMNS);
+                    final String watched = " UPDATE OF " + columns + " ON " + table;
+
+                    db.execSQL("CREATE VIRTUAL TABLE " + fts + " USING fts4(content=\"" + table
+                            + "\", " + columns + ")");
+                    db.execSQL("CREATE TRIGGER " + fts + "_bd BEFORE DELETE ON " + table
+                            + " BEGIN DELETE FROM " + fts + " WHERE docid = old._id; END");
+                    db.execSQL("CREATE TRIGGER " + fts + "_bu BEFORE" + watched
+                            + " BEGIN DELETE FROM " + fts + " WHERE docid = old._id; END");
+                    db.execSQL("CREATE TRIGGER " + fts + "_ai AFTER INSERT ON " + table
+                            + " BEGIN INSERT INTO " + fts + " (docid, " + columns + ")"
+                            + " VALUES (new._id, " + newValues + "); END");
+                    db.execSQL("CREATE TRIGGER " + fts + "_au AFTER" + watched
+                            + " BEGIN INSERT INTO " + fts + " (docid, " + columns + ")"
+                            + " VALUES (new._id, " + newValues + "); END");
+                    db.execSQL("INSERT INTO " + fts + " (" + fts + ") VALUES ('rebuild')");
+                }
+            },
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Filled in by the first full scan of RecordingsReconciler.
+                    addColumn(db, DBHelperItem.COLUMN_NAME_FILE_MODIFIED, "INTEGER");
+                }
+            },
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    addColumn(db, DBHelperItem.COLUMN_NAME_SKIPPED_SILENCE, "TEXT");
+                }
+            },
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Older rows were all recorded with the AAC defaults and stay NULL.
+                    addColumn(db, DBHelperItem.COLUMN_NAME_ENCODING_PROFILE, "TEXT");
+                }
+            },
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // A long recording is one row in saved_recordings for the list, plus one
+                    // row here per file it was split into.
+                    final String segments = DBHelperSegment.TABLE_NAME;
+                    db.execSQL("CREATE TABLE " + segments + " ("
+                            + DBHelperSegment._ID + " INTEGER PRIMARY KEY, "
+                            + DBHelperSegment.COLUMN_NAME_PARENT_ID + " INTEGER NOT NULL, "
+                            + DBHelperSegment.COLUMN_NAME_SEGMENT_INDEX + " INTEGER NOT NULL, "
+                            + DBHelperSegment.COLUMN_NAME_FILE_PATH + " TEXT, "
+                            + DBHelperSegment.COLUMN_NAME_LENGTH + " INTEGER, "
+                            + DBHelperSegment.COLUMN_NAME_SIZE_BYTES + " INTEGER, "
+                            + "UNIQUE (" + DBHelperSegment.COLUMN_NAME_PARENT_ID + ", "
+                            + DBHelperSegment.COLUMN_NAME_SEGMENT_INDEX + "))");
+                    // Foreign keys are off on Android by default, so cascade by hand.
+                    db.execSQL("CREATE TRIGGER " + segments + "_parent_ad AFTER DELETE ON "
+                            + DBHelperItem.TABLE_NAME + " BEGIN DELETE FROM " + segments
+                            + " WHERE " + DBHelperSegment.COLUMN_NAME_PARENT_ID
+                            + " = old._id; END");
+                }
+            },
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Prefix indexes, so a query of one to three letters reads one list of
+                    // rows instead of merging those of every word it starts. The triggers
+                    // refer to the table by name and carry on as they are.
+                    final String fts = DBHelper.FTS_TABLE_NAME;
+                    db.execSQL("DROP TABLE " + fts);
+                    db.execSQL("CREATE VIRTUAL TABLE " + fts + " USING fts4(content=\""
+                            + DBHelperItem.TABLE_NAME + "\", " + TextUtils.join(", ", FTS_COLUMNS)
+                            + ", prefix=\"1,2,3\")");
+                    db.execSQL("INSERT INTO " + fts + " (" + fts + ") VALUES ('rebuild')");
+                }
+            },
+    };
+
+    private static final String[] FTS_COLUMNS = {
+            DBHelperItem.COLUMN_NAME_RECORDING_NAME,
+    };
+
+    private Migrations() {
+    }
+
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > oldVersion && migration.version <= newVersion) {
+                Log.i(LOG_TAG, "Migrating recordings database to v" + migration.version);
+                migration.migrate(db);
+            }
+        }
+    }
+
+    private static void addColumn(SQLiteDatabase db, String column, String type) {
+        db.execSQL("ALTER TABLE " + DBHelperItem.TABLE_NAME + " ADD COLUMN " + column + " " + type);
+    }
+
+    private static void createIndex(SQLiteDatabase db, String name, String column) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + name
+                + " ON " + DBHelperItem.TABLE_NAME + " (" + column + ")");
+    }
+}
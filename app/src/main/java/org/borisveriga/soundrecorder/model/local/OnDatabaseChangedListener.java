@@ -1,6 +0,0 @@
-package org.borisveriga.soundrecorder.model.local;
-
-public interface OnDatabaseChangedListener{
-    void onNewDatabaseEntryAdded();
-    void onDatabaseEntryRenamed();
-}
\ No newline at end of file
@@ -0,0 +1,241 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+
+import org.borisveriga.soundrecorder.model.local.DBHelper.DBHelperItem;
+import org.borisveriga.soundrecorder.model.local.DBHelper.DBHelperSegment;
+
+/**
+ * Statements for the hot write paths, compiled once per connection instead of parsing SQL
+ * for every operation. {@link SQLiteStatement} is not thread safe; an instance belongs to the
+ * {@link DatabaseExecutor} writer thread and must only be used from there.
+ */
+class RecordingStatements {
+
+    private final SQLiteDatabase mDb;
+    private final SQLiteStatement mInsert;
+    private final SQLiteStatement mRename;
+    private final SQLiteStatement mUpdatePath;
+    private final SQLiteStatement mUpdateFileInfo;
+    private final SQLiteStatement mUpdateFileModified;
+    private final SQLiteStatement mUpdateEncodingProfile;
+    private final SQLiteStatement mUpdateSkippedSilence;
+    private final SQLiteStatement mInsertSegment;
+    private final SQLiteStatement mUpdateTotals;
+    private final SQLiteStatement mMoveSegments;
+    private final SQLiteStatement mDelete;
+    private final SQLiteStatement mFindByPath;
+    private final SQLiteStatement mCountBetween;
+
+    RecordingStatements(SQLiteDatabase db) {
+        mDb = db;
+        mInsert = db.compileStatement("INSERT INTO " + DBHelperItem.TABLE_NAME + " ("
+                + DBHelperItem.COLUMN_NAME_RECORDING_NAME + ", "
+                + DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH + ", "
+                + DBHelperItem.COLUMN_NAME_RECORDING_LENGTH + ", "
+                + DBHelperItem.COLUMN_NAME_TIME_ADDED + ", "
+                + DBHelperItem.COLUMN_NAME_SIZE_BYTES + ", "
+                + DBHelperItem.COLUMN_NAME_CODEC + ", "
+                + DBHelperItem.COLUMN_NAME_SAMPLE_RATE + ", "
+                + DBHelperItem.COLUMN_NAME_BITRATE + ", "
+                + DBHelperItem.COLUMN_NAME_FILE_MODIFIED + ", "
+                + DBHelperItem.COLUMN_NAME_ENCODING_PROFILE + ", "
+                + DBHelperItem.COLUMN_NAME_SKIPPED_SILENCE
+                + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        mRename = db.compileStatement("UPDATE " + DBHelperItem.TABLE_NAME + " SET "
+                + DBHelperItem.COLUMN_NAME_RECORDING_NAME + " = ?, "
+                + DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH + " = ? WHERE "
+                + DBHelperItem._ID + " = ?");
+        mUpdatePath = db.compileStatement("UPDATE " + DBHelperItem.TABLE_NAME + " SET "
+                + DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH + " = ? WHERE "
+                + DBHelperItem._ID + " = ?");
+        mUpdateFileInfo = db.compileStatement("UPDATE " + DBHelperItem.TABLE_NAME + " SET "
+                + DBHelperItem.COLUMN_NAME_RECORDING_LENGTH + " = ?, "
+                + DBHelperItem.COLUMN_NAME_SIZE_BYTES + " = ?, "
+                + DBHelperItem.COLUMN_NAME_FILE_MODIFIED + " = ? WHERE "
+                + DBHelperItem._ID + " = ?");
+        mUpdateFileModified = db.compileStatement("UPDATE " + DBHelperItem.TABLE_NAME + " SET "
+                + DBHelperItem.COLUMN_NAME_FILE_MODIFIED + " = ? WHERE "
+                + DBHelperItem._ID + " = ?");
+        mUpdateEncodingProfile = db.compileStatement("UPDATE " + DBHelperItem.TABLE_NAME + " SET "
+                + DBHelperItem.COLUMN_NAME_ENCODING_PROFILE + " = ? WHERE "
+                + DBHelperItem._ID + " = ?");
+        mUpdateSkippedSilence = db.compileStatement("UPDATE " + DBHelperItem.TABLE_NAME + " SET "
+                + DBHelperItem.COLUMN_NAME_SKIPPED_SILENCE + " = ? WHERE "
+                + DBHelperItem._ID + " = ?");
+        // Replaces, so a segment finalized again after a crash doesn't count twice.
+        mInsertSegment = db.compileStatement("INSERT OR REPLACE INTO " + DBHelperSegment.TABLE_NAME
+                + " (" + DBHelperSegment.COLUMN_NAME_PARENT_ID + ", "
+                + DBHelperSegment.COLUMN_NAME_SEGMENT_INDEX + ", "
+                + DBHelperSegment.COLUMN_NAME_FILE_PATH + ", "
+                + DBHelperSegment.COLUMN_NAME_LENGTH + ", "
+                + DBHelperSegment.COLUMN_NAME_SIZE_BYTES + ") VALUES (?, ?, ?, ?, ?)");
+        final String ofParent = " FROM " + DBHelperSegment.TABLE_NAME + " WHERE "
+                + DBHelperSegment.COLUMN_NAME_PARENT_ID + " = ?1)";
+        mUpdateTotals = db.compileStatement("UPDATE " + DBHelperItem.TABLE_NAME + " SET "
+                + DBHelperItem.COLUMN_NAME_RECORDING_LENGTH + " = (SELECT SUM("
+                + DBHelperSegment.COLUMN_NAME_LENGTH + ")" + ofParent + ", "
+                + DBHelperItem.COLUMN_NAME_SIZE_BYTES + " = (SELECT SUM("
+                + DBHelperSegment.COLUMN_NAME_SIZE_BYTES + ")" + ofParent
+                + " WHERE " + DBHelperItem._ID + " = ?1");
+        // rtrim() with every character but '/' leaves the directory, so this swaps it for ?1.
+        final String path = DBHelperSegment.COLUMN_NAME_FILE_PATH;
+        mMoveSegments = db.compileStatement("UPDATE " + DBHelperSegment.TABLE_NAME + " SET "
+                + path + " = ?1 || substr(" + path + ", length(rtrim(" + path + ", replace("
+                + path + ", '/', ''))))"
+                + " WHERE " + DBHelperSegment.COLUMN_NAME_PARENT_ID + " = ?2");
+        mDelete = db.compileStatement("DELETE FROM " + DBHelperItem.TABLE_NAME
+                + " WHERE " + DBHelperItem._ID + " = ?");
+        mFindByPath = db.compileStatement("SELECT " + DBHelperItem._ID
+                + " FROM " + DBHelperItem.TABLE_NAME
+                + " WHERE " + DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH + " = ? LIMIT 1");
+        mCountBetween = db.compileStatement("SELECT COUNT(*) FROM " + DBHelperItem.TABLE_NAME
+                + " WHERE " + DBHelperItem._ID + " >= ?1 AND " + DBHelperItem._ID + " < ?2");
+    }
+
+    boolean belongsTo(SQLiteDatabase db) {
+        return mDb == db;
+    }
+
+    long insert(String name, String filePath, long length, long timeAdded, long sizeBytes,
+                String codec, int sampleRate, int bitrate, long fileModified,
+                String encodingProfile, String skippedSilence) {
+        mInsert.clearBindings();
+        bindString(mInsert, 1, name);
+        bindString(mInsert, 2, filePath);
+        mInsert.bindLong(3, length);
+        mInsert.bindLong(4, timeAdded);
+        mInsert.bindLong(5, sizeBytes);
+        bindString(mInsert, 6, codec);
+        bindPositive(mInsert, 7, sampleRate);
+        bindPositive(mInsert, 8, bitrate);
+        bindPositive(mInsert, 9, fileModified);
+        bindString(mInsert, 10, encodingProfile);
+        bindString(mInsert, 11, skippedSilence);
+        return mInsert.executeInsert();
+    }
+
+    int rename(long id, String name, String filePath) {
+        mRename.clearBindings();
+        bindString(mRename, 1, name);
+        bindString(mRename, 2, filePath);
+        mRename.bindLong(3, id);
+        return mRename.executeUpdateDelete();
+    }
+
+    int updatePath(long id, String filePath) {
+        bindString(mUpdatePath, 1, filePath);
+        mUpdatePath.bindLong(2, id);
+        return mUpdatePath.executeUpdateDelete();
+    }
+
+    int updateFileInfo(long id, long length, long sizeBytes, long fileModified) {
+        mUpdateFileInfo.bindLong(1, length);
+        mUpdateFileInfo.bindLong(2, sizeBytes);
+        bindPositive(mUpdateFileInfo, 3, fileModified);
+        mUpdateFileInfo.bindLong(4, id);
+        return mUpdateFileInfo.executeUpdateDelete();
+    }
+
+    int updateFileModified(long id, long fileModified) {
+        bindPositive(mUpdateFileModified, 1, fileModified);
+        mUpdateFileModified.bindLong(2, id);
+        return mUpdateFileModified.executeUpdateDelete();
+    }
+
+    int updateEncodingProfile(long id, String encodingProfile) {
+        bindString(mUpdateEncodingProfile, 1, encodingProfile);
+        mUpdateEncodingProfile.bindLong(2, id);
+        return mUpdateEncodingProfile.executeUpdateDelete();
+    }
+
+    int updateSkippedSilence(long id, String skippedSilence) {
+        bindString(mUpdateSkippedSilence, 1, skippedSilence);
+        mUpdateSkippedSilence.bindLong(2, id);
+        return mUpdateSkippedSilence.executeUpdateDelete();
+    }
+
+    /** Adds or replaces segment {@code index} of {@code parentId}. */
+    long insertSegment(long parentId, int index, String filePath, long length, long sizeBytes) {
+        mInsertSegment.bindLong(1, parentId);
+        mInsertSegment.bindLong(2, index);
+        bindString(mInsertSegment, 3, filePath);
+        mInsertSegment.bindLong(4, length);
+        mInsertSegment.bindLong(5, sizeBytes);
+        return mInsertSegment.executeInsert();
+    }
+
+    /** Sets the length and size of a split recording to the sum of its segments. */
+    int updateTotals(long parentId) {
+        mUpdateTotals.bindLong(1, parentId);
+        return mUpdateTotals.executeUpdateDelete();
+    }
+
+    /** Points the segments of {@code parentId}, if it has any, into {@code folder}. */
+    int moveSegments(long parentId, String folder) {
+        bindString(mMoveSegments, 1, folder);
+        mMoveSegments.bindLong(2, parentId);
+        return mMoveSegments.executeUpdateDelete();
+    }
+
+    int delete(long id) {
+        mDelete.bindLong(1, id);
+        return mDelete.executeUpdateDelete();
+    }
+
+    /**
+     * @return the id of the row recorded at {@code filePath}, or -1 if there is none
+     */
+    long findByPath(String filePath) {
+        mFindByPath.bindString(1, filePath);
+        try {
+            return mFindByPath.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the number of rows with {@code from <= _id < to}; SQLite walks just that range
+     * of the table
+     */
+    int countBetween(long from, long to) {
+        mCountBetween.bindLong(1, from);
+        mCountBetween.bindLong(2, to);
+        return (int) mCountBetween.simpleQueryForLong();
+    }
+
+    void close() {
+        mInsert.close();
+        mRename.close();
+        mUpdatePath.close();
+        mUpdateFileInfo.close();
+        mUpdateFileModified.close();
+        mUpdateEncodingProfile.close();
+        mUpdateSkippedSilence.close();
+        mInsertSegment.close();
+        mUpdateTotals.close();
+        mMoveSegments.close();
+        mDelete.close();
+        mFindByPath.close();
+        mCountBetween.close();
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindPositive(SQLiteStatement statement, int index, long value) {
+        if (value > 0) {
+            statement.bindLong(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes row-level changes of saved_recordings to any number of subscribers. Every change
+ * carries the ids and list position of its rows plus a sequence number that grows by one per
+ * change, so a subscriber can patch its view of the list without querying again and can tell
+ * when it has missed something. Adjacent rows deleted one after the other make a single
+ * change, so removing a run of selected rows is one range however long it is.
+ * <p>
+ * Positions refer to the list ordered by _id and are sequential: each one is valid after the
+ * changes before it in the same delivery have been applied.
+ * <p>
+ * A subscriber on the main thread gets changes synchronously, together with the row count
+ * they belong to. A subscriber on another thread gets them posted to its handler; if it falls
+ * more than {@link #MAX_PENDING_CHANGES} behind, its backlog is replaced by one
+ * {@link Change#RESET} and it should reload.
+ */
+public final class RecordingsChangeFeed {
+
+    static final int MAX_PENDING_CHANGES = 128;
+
+    private static final RecordingsChangeFeed sInstance = new RecordingsChangeFeed();
+
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    /** Sequence number of the last published change. Main thread only. */
+    private long mSequence;
+
+    public static final class Change {
+        public static final int INSERTED = 0;
+        public static final int UPDATED = 1;
+        public static final int DELETED = 2;
+        /** Anything may have changed; positions and ids are not set. */
+        public static final int RESET = 3;
+
+        public final int type;
+        public final long sequence;
+        /** Id of the first row. */
+        public final int id;
+        public final int position;
+        /**
+         * Rows affected, at {@code position} up to {@code position + count - 1}; more than one
+         * only for DELETED.
+         */
+        public final int count;
+        private final int[] ids;
+
+        Change(int type, long sequence, int position, int[] ids) {
+            this.type = type;
+            this.sequence = sequence;
+            this.position = position;
+            this.ids = ids;
+            this.id = ids != null ? ids[0] : -1;
+            this.count = ids != null ? ids.length : 0;
+        }
+
+        /** @return the id of one of the {@link #count} rows, in no particular order */
+        public int idAt(int index) {
+            return ids[index];
+        }
+
+        @Override
+        public String toString() {
+            return "Change{type=" + type + ", sequence=" + sequence + ", ids="
+                    + Arrays.toString(ids) + ", position=" + position + "}";
+        }
+    }
+
+    public interface Subscriber {
+        /** Called on the subscriber's handler thread with changes in sequence order. */
+        void onChanges(List<Change> changes);
+    }
+
+    /**
+     * Changes collected by a write on the writer thread. They are recorded by id and placed
+     * by {@link #resolvePositions} once the write is done; they get their sequence numbers
+     * when the write is published.
+     */
+    static final class Batch {
+        private static final int ENTRY_SIZE = 4;
+
+        /** Per change as recorded: type and id. */
+        private int[] mRecorded = new int[4 * 2];
+        private int mRecordedSize;
+        /** Per change: type, position, count, and where its ids start in {@link #mIds}. */
+        private int[] mEntries = new int[4 * ENTRY_SIZE];
+        private int mSize;
+        private int[] mIds = new int[4];
+        private int mIdCount;
+        private boolean mReset;
+
+        void inserted(int id) {
+            record(Change.INSERTED, id);
+        }
+
+        void updated(int id) {
+            record(Change.UPDATED, id);
+        }
+
+        void deleted(int id) {
+            record(Change.DELETED, id);
+        }
+
+        void reset() {
+            mReset = true;
+            mRecordedSize = 0;
+            mSize = 0;
+            mIdCount = 0;
+        }
+
+        boolean isEmpty() {
+            return !mReset && mSize == 0 && mRecordedSize == 0;
+        }
+
+        private void record(int type, int id) {
+            if (mReset) {
+                return;
+            }
+            if (mRecordedSize + 2 > mRecorded.length) {
+                mRecorded = Arrays.copyOf(mRecorded, mRecorded.length * 2);
+            }
+            mRecorded[mRecordedSize++] = type;
+            mRecorded[mRecordedSize++] = id;
+        }
+
+        /**
+         * Gives each recorded change its position. The rows ahead of every distinct id are
+         * counted once, in ascending order, so the whole batch walks the table about once up
+         * to its highest id rather than once per change. Writer thread, inside the write's
+         * transaction, after its last change.
+         */
+        void resolvePositions(RecordingStatements statements) {
+            final int count = mRecordedSize / 2;
+            if (count == 0) {
+                return;
+            }
+            final int[] types = new int[count];
+            final int[] ids = new int[count];
+            int notDeleted = 0;
+            for (int i = 0; i < count; i++) {
+                types[i] = mRecorded[2 * i];
+                ids[i] = mRecorded[2 * i + 1];
+                if (types[i] != Change.DELETED) {
+                    notDeleted++;
+                }
+            }
+            mRecordedSize = 0;
+            if (notDeleted > MAX_PENDING_CHANGES) {
+                // Only deletes merge, so this would end up a reset anyway.
+                reset();
+                return;
+            }
+
+            final int[] sorted = distinctSorted(ids);
+            final int[] before = new int[sorted.length];
+            long from = Long.MIN_VALUE;
+            int rows = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                rows += statements.countBetween(from, sorted[i]);
+                before[i] = rows;
+                from = sorted[i];
+            }
+            final int[] positions = sequentialPositions(types, ids, sorted, before);
+            for (int i = 0; i < count; i++) {
+                add(types[i], ids[i], positions[i]);
+            }
+        }
+
+        private static int[] distinctSorted(int[] ids) {
+            final int[] sorted = ids.clone();
+            Arrays.sort(sorted);
+            int size = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (size == 0 || sorted[size - 1] != sorted[i]) {
+                    sorted[size++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, size);
+        }
+
+        /**
+         * Positions are sequential: each is taken right after its own change, before the ones
+         * that follow it. Counted against the finished table, every later insert ahead of a row
+         * counts one row too many and every later delete ahead of it one too few; a Fenwick
+         * tree over the ranks of the ids sums them up walking the changes backwards.
+         *
+         * @param sorted the distinct ids of the changes, ascending
+         * @param before for each of {@code sorted}, the rows ahead of it once every change is made
+         * @return the position of each change
+         */
+        static int[] sequentialPositions(int[] types, int[] ids, int[] sorted, int[] before) {
+            final int[] positions = new int[types.length];
+            final int[] tree = new int[sorted.length + 1];
+            for (int i = types.length - 1; i >= 0; i--) {
+                final int rank = Arrays.binarySearch(sorted, ids[i]);
+                int later = 0;
+                for (int r = rank; r > 0; r -= r & -r) {
+                    later += tree[r];
+                }
+                positions[i] = before[rank] - later;
+                final int delta = types[i] == Change.INSERTED ? 1
+                        : types[i] == Change.DELETED ? -1 : 0;
+                if (delta != 0) {
+                    for (int r = rank + 1; r < tree.length; r += r & -r) {
+                        tree[r] += delta;
+                    }
+                }
+            }
+            return positions;
+        }
+
+        private void add(int type, int id, int position) {
+            if (mReset) {
+                return;
+            }
+            if (type == Change.DELETED && mSize > 0) {
+                final int last = mSize - ENTRY_SIZE;
+                final int runPosition = mEntries[last + 1];
+                // Deleting upwards, the next row moves into the place of the one before it;
+                // deleting downwards, it sits just ahead of it. Its ids are the last ones.
+                if (mEntries[last] == Change.DELETED
+                        && (position == runPosition || position == runPosition - 1)) {
+                    mEntries[last + 1] = position;
+                    mEntries[last + 2]++;
+                    addId(id);
+                    return;
+                }
+            }
+            if (mSize / ENTRY_SIZE >= MAX_PENDING_CHANGES) {
+                // Too many to be worth animating one by one.
+                reset();
+                return;
+            }
+            if (mSize + ENTRY_SIZE > mEntries.length) {
+                mEntries = Arrays.copyOf(mEntries, mEntries.length * 2);
+            }
+            mEntries[mSize++] = type;
+            mEntries[mSize++] = position;
+            mEntries[mSize++] = 1;
+            mEntries[mSize++] = mIdCount;
+            addId(id);
+        }
+
+        private void addId(int id) {
+            if (mIdCount == mIds.length) {
+                mIds = Arrays.copyOf(mIds, mIds.length * 2);
+            }
+            mIds[mIdCount++] = id;
+        }
+    }
+
+    private static final class Subscription {
+        final Subscriber subscriber;
+        final Handler handler;
+        /** Guarded by {@code this}. */
+        List<Change> pending = new ArrayList<>();
+        boolean scheduled;
+
+        Subscription(Subscriber subscriber, Handler handler) {
+            this.subscriber = subscriber;
+            this.handler = handler;
+        }
+
+        final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                final List<Change> changes;
+                synchronized (Subscription.this) {
+                    changes = pending;
+                    pending = new ArrayList<>();
+                    scheduled = false;
+                }
+                if (!changes.isEmpty()) {
+                    subscriber.onChanges(Collections.unmodifiableList(changes));
+                }
+            }
+        };
+    }
+
+    public static RecordingsChangeFeed getInstance() {
+        return sInstance;
+    }
+
+    private RecordingsChangeFeed() {
+    }
+
+    /** Delivers changes on the main thread. */
+    public void subscribe(Subscriber subscriber) {
+        subscribe(subscriber, new Handler(Looper.getMainLooper()));
+    }
+
+    public void subscribe(Subscriber subscriber, Handler handler) {
+        mSubscriptions.add(new Subscription(subscriber, handler));
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.subscriber == subscriber) {
+                mSubscriptions.remove(subscription);
+                subscription.handler.removeCallbacks(subscription.drain);
+            }
+        }
+    }
+
+    /** Sequence number of the last published change. Main thread only. */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /** Main thread only; called when a write is published. */
+    void publish(Batch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final List<Change> changes;
+        if (batch.mReset) {
+            changes = Collections.singletonList(
+                    new Change(Change.RESET, ++mSequence, -1, null));
+        } else {
+            final int[] entries = batch.mEntries;
+            changes = new ArrayList<>(batch.mSize / Batch.ENTRY_SIZE);
+            for (int i = 0; i < batch.mSize; i += Batch.ENTRY_SIZE) {
+                changes.add(new Change(entries[i], ++mSequence, entries[i + 1],
+                        Arrays.copyOfRange(batch.mIds, entries[i + 3],
+                                entries[i + 3] + entries[i + 2])));
+            }
+        }
+        for (Subscription subscription : mSubscriptions) {
+            deliver(subscription, changes);
+        }
+    }
+
+    /** Main thread only; tells every subscriber to reload. */
+    void publishReset() {
+        final Batch batch = new Batch();
+        batch.reset();
+        publish(batch);
+    }
+
+    private void deliver(Subscription subscription, List<Change> changes) {
+        final boolean inline;
+        synchronized (subscription) {
+            inline = !subscription.scheduled
+                    && subscription.handler.getLooper() == Looper.myLooper();
+            if (!inline) {
+                enqueue(subscription, changes);
+            }
+        }
+        if (inline) {
+            // Same thread and nothing queued: hand them over now, before the next layout can
+            // observe the new row count.
+            subscription.subscriber.onChanges(Collections.unmodifiableList(changes));
+        }
+    }
+
+    /** Called with the subscription's lock held. */
+    private static void enqueue(Subscription subscription, List<Change> changes) {
+        if (subscription.pending.size() + changes.size() > MAX_PENDING_CHANGES) {
+            subscription.pending.clear();
+            subscription.pending.add(new Change(Change.RESET,
+                    changes.get(changes.size() - 1).sequence, -1, null));
+        } else if (isReset(subscription.pending)) {
+            subscription.pending.set(0, new Change(Change.RESET,
+                    changes.get(changes.size() - 1).sequence, -1, null));
+        } else {
+            subscription.pending.addAll(changes);
+        }
+        if (!subscription.scheduled) {
+            subscription.scheduled = true;
+            subscription.handler.post(subscription.drain);
+        }
+    }
+
+    private static boolean isReset(List<Change> pending) {
+        return pending.size() == 1 && pending.get(0).type == Change.RESET;
+    }
+}
@@ -0,0 +1,410 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Environment;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.model.local.DBHelper.DBHelperItem;
+import org.borisveriga.soundrecorder.util.MediaProbe;
+import org.borisveriga.soundrecorder.util.Paths;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps saved_recordings in step with the files in the recordings folder when they are added,
+ * removed or renamed outside the app. {@link FileObserver} events are collected for a short
+ * while and applied as one batch; {@link #scheduleFullScan()} compares the whole folder
+ * against the table once and only touches the rows that differ. A full scan that finds the
+ * folder unreadable, say before the storage permission was granted, stays pending and is
+ * tried again by {@link #resync()} or the next file event. Paths the app is changing itself
+ * are {@link #hold held} and left alone until it has updated their rows.
+ */
+public class RecordingsReconciler {
+
+    private static final String LOG_TAG = "RecordingsReconciler";
+
+    public static final int WATCHED_EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    private static final long EVENT_BATCH_DELAY_MILLIS = 500;
+    private static final int MAX_OPERATIONS_PER_WRITE = 200;
+
+    private static RecordingsReconciler sInstance;
+
+    private final DBHelper mHelper;
+    private final File mFolder;
+    private final Handler mHandler;
+
+    /** Pending events in arrival order; guarded by {@code this}. */
+    private final List<PendingEvent> mPendingEvents = new ArrayList<>();
+    /** Guarded by itself. */
+    private final Set<String> mHeldPaths = new HashSet<>();
+    // Handler thread only.
+    private boolean mFullScanDone;
+    private boolean mFullScanPending;
+
+    private static final class PendingEvent {
+        final int event;
+        final String name;
+
+        PendingEvent(int event, String name) {
+            this.event = event;
+            this.name = name;
+        }
+    }
+
+    /** One row-level change derived from the file system. */
+    private static final class Operation {
+        static final int UPSERT = 0;
+        static final int DELETE = 1;
+        static final int RENAME = 2;
+
+        final int type;
+        final String path;
+        final String newPath;
+        MediaProbe probe;
+        long modified;
+        long rowId = -1;
+
+        Operation(int type, String path, String newPath) {
+            this.type = type;
+            this.path = path;
+            this.newPath = newPath;
+        }
+    }
+
+    public static synchronized RecordingsReconciler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RecordingsReconciler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private RecordingsReconciler(Context context) {
+        mHelper = DBHelper.getInstance(context);
+        mFolder = new File(Paths.combine(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
+                Paths.SOUND_RECORDER_FOLDER));
+        final HandlerThread thread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Called from a {@link FileObserver} thread.
+     */
+    public void onFileEvent(int event, String name) {
+        if (name == null || (event & WATCHED_EVENTS) == 0) {
+            return;
+        }
+        // A file being copied into place; only its final rename, a MOVED_FROM paired with the
+        // MOVED_TO of the real name, is needed to keep the pair from looking like a new file.
+        if (name.endsWith(Paths.PARTIAL_SUFFIX) && (event & FileObserver.MOVED_FROM) == 0) {
+            return;
+        }
+        synchronized (this) {
+            mPendingEvents.add(new PendingEvent(event & WATCHED_EVENTS, name));
+        }
+        mHandler.removeCallbacks(mFlushEvents);
+        mHandler.postDelayed(mFlushEvents, EVENT_BATCH_DELAY_MILLIS);
+    }
+
+    /**
+     * Keeps events and scans away from {@code paths} while the app moves or writes them and
+     * updates their rows itself. Release them only once those rows have committed, so any
+     * event still to come finds the rows already in step.
+     */
+    public void hold(Collection<String> paths) {
+        synchronized (mHeldPaths) {
+            mHeldPaths.addAll(paths);
+        }
+    }
+
+    public void release(Collection<String> paths) {
+        synchronized (mHeldPaths) {
+            mHeldPaths.removeAll(paths);
+        }
+    }
+
+    private boolean isHeld(String path) {
+        synchronized (mHeldPaths) {
+            return mHeldPaths.contains(path);
+        }
+    }
+
+    public void scheduleFullScan() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mFullScanDone) {
+                    mFullScanPending = true;
+                    runPendingFullScan();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the full scan if it is still pending. Call it whenever the folder may have become
+     * readable, e.g. when the list is shown again.
+     */
+    public void resync() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                runPendingFullScan();
+            }
+        });
+    }
+
+    /** @return true if a pending full scan ran now */
+    private boolean runPendingFullScan() {
+        if (!mFullScanPending || !fullScan()) {
+            return false;
+        }
+        mFullScanPending = false;
+        mFullScanDone = true;
+        return true;
+    }
+
+    private final Runnable mFlushEvents = new Runnable() {
+        @Override
+        public void run() {
+            final List<PendingEvent> events;
+            synchronized (RecordingsReconciler.this) {
+                events = new ArrayList<>(mPendingEvents);
+                mPendingEvents.clear();
+            }
+            // The folder is readable again; the scan covers whatever the events describe.
+            if (runPendingFullScan()) {
+                return;
+            }
+            apply(toOperations(events));
+        }
+    };
+
+    /**
+     * Collapses raw events into at most one operation per path. A MOVED_FROM immediately
+     * followed by a MOVED_TO is a rename within the folder; anything else that leaves a path
+     * is a delete and anything that creates or rewrites one is an upsert. Events about held
+     * paths are dropped.
+     */
+    private List<Operation> toOperations(List<PendingEvent> events) {
+        final Map<String, Operation> byPath = new LinkedHashMap<>();
+        for (int i = 0; i < events.size(); i++) {
+            final PendingEvent event = events.get(i);
+            final String path = new File(mFolder, event.name).getPath();
+            final boolean held = isHeld(path);
+            switch (event.event) {
+                case FileObserver.MOVED_FROM:
+                    final PendingEvent next = i + 1 < events.size() ? events.get(i + 1) : null;
+                    if (next != null && next.event == FileObserver.MOVED_TO) {
+                        final String newPath = new File(mFolder, next.name).getPath();
+                        if (!held) {
+                            byPath.remove(newPath);
+                            byPath.put(path, new Operation(Operation.RENAME, path, newPath));
+                        }
+                        i++;
+                    } else if (!held) {
+                        byPath.put(path, new Operation(Operation.DELETE, path, null));
+                    }
+                    break;
+                case FileObserver.DELETE:
+                    if (!held) {
+                        byPath.put(path, new Operation(Operation.DELETE, path, null));
+                    }
+                    break;
+                default:
+                    if (!held) {
+                        byPath.remove(path);
+                        byPath.put(path, new Operation(Operation.UPSERT, path, null));
+                    }
+                    break;
+            }
+        }
+        return new ArrayList<>(byPath.values());
+    }
+
+    /** @return false if the folder could not be read, so nothing was compared */
+    private boolean fullScan() {
+        final long started = System.currentTimeMillis();
+
+        final File[] listing = mFolder.listFiles();
+        if (listing == null || !Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            // Unmounted storage or no read permission yet: every row would look orphaned.
+            Log.w(LOG_TAG, "Skipping full scan, " + mFolder + " is not readable");
+            return false;
+        }
+        final Map<String, File> files = new HashMap<>();
+        for (File file : listing) {
+            if (file.isFile() && !file.getName().endsWith(Paths.PARTIAL_SUFFIX)
+                    && !isHeld(file.getPath())) {
+                files.put(file.getPath(), file);
+            }
+        }
+
+        final List<Operation> operations = new ArrayList<>();
+        // Split recordings are skipped: their size is the sum of files in their own folder,
+        // which no single file here would match.
+        final Cursor c = mHelper.getReadableDatabase().query(DBHelperItem.TABLE_NAME,
+                new String[]{
+                        DBHelperItem._ID,
+                        DBHelperItem.COLUMN_NAME_RECORDING_FILE_PATH,
+                        DBHelperItem.COLUMN_NAME_SIZE_BYTES,
+                        DBHelperItem.COLUMN_NAME_FILE_MODIFIED
+                }, "NOT " + DBHelper.IS_SEGMENTED, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                final String path = c.getString(1);
+                if (path != null && isHeld(path)) {
+                    continue;
+                }
+                File file = path != null ? files.remove(path) : null;
+                if (file == null && path != null) {
+                    // Rows may point into sub-folders the listing above doesn't cover.
+                    file = new File(path);
+                }
+                if (file == null || !file.isFile()) {
+                    final Operation delete = new Operation(Operation.DELETE, path, null);
+                    delete.rowId = c.getLong(0);
+                    operations.add(delete);
+                } else if (c.isNull(3) || c.getLong(3) != file.lastModified()
+                        || c.getLong(2) != file.length()) {
+                    final Operation update = new Operation(Operation.UPSERT, path, null);
+                    update.rowId = c.getLong(0);
+                    if (c.isNull(3) && c.getLong(2) == file.length()) {
+                        // Only the mtime is new (rows from before v4); no need to probe.
+                        update.modified = file.lastModified();
+                    }
+                    operations.add(update);
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        for (String path : files.keySet()) {
+            operations.add(new Operation(Operation.UPSERT, path, null));
+        }
+
+        apply(operations);
+        Log.i(LOG_TAG, "Full scan corrected " + operations.size() + " rows in "
+                + (System.currentTimeMillis() - started) + " ms");
+        return true;
+    }
+
+    /**
+     * Probes what needs probing on this thread, then hands the changes to the writer in
+     * chunks so a large first scan doesn't hold a single transaction for too long.
+     */
+    private void apply(List<Operation> operations) {
+        for (int start = 0; start < operations.size(); start += MAX_OPERATIONS_PER_WRITE) {
+            final List<Operation> chunk = operations.subList(start,
+                    Math.min(operations.size(), start + MAX_OPERATIONS_PER_WRITE));
+            for (Operation operation : chunk) {
+                if (operation.type == Operation.UPSERT && operation.modified == 0
+                        && !isHeld(operation.path)) {
+                    operation.probe = MediaProbe.probe(operation.path);
+                    operation.modified = new File(operation.path).lastModified();
+                }
+            }
+            try {
+                mHelper.writeAndWait(new ReconcileWrite(new ArrayList<>(chunk)));
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Failed to apply file system changes", e);
+                return;
+            }
+        }
+    }
+
+    private final class ReconcileWrite extends DBHelper.CountingWrite<Integer> {
+        private final List<Operation> mOperations;
+
+        ReconcileWrite(List<Operation> operations) {
+            super(null);
+            mOperations = operations;
+        }
+
+        @Override
+        Integer execute(SQLiteDatabase db, RecordingStatements statements) {
+            int changed = 0;
+            for (Operation operation : mOperations) {
+                final long id = operation.rowId != -1
+                        ? operation.rowId : statements.findByPath(operation.path);
+                switch (operation.type) {
+                    case Operation.DELETE:
+                        if (id != -1 && isStillGone(statements, id, operation.path)) {
+                            changed += delete(statements, id);
+                        }
+                        break;
+                    case Operation.RENAME:
+                        if (id != -1 && statements.findByPath(operation.newPath) == -1
+                                && statements.rename(id, new File(operation.newPath).getName(),
+                                operation.newPath) > 0) {
+                            mChanges.updated((int) id);
+                            changed++;
+                        }
+                        break;
+                    case Operation.UPSERT:
+                        changed += upsert(statements, id, operation);
+                        break;
+                }
+            }
+            return changed;
+        }
+
+        /**
+         * @return whether row {@code id} still points at {@code path} and nothing is there, as
+         * when the operation was made; the app may have moved the row on since, or be moving it
+         */
+        private boolean isStillGone(RecordingStatements statements, long id, String path) {
+            return path == null || (statements.findByPath(path) == id
+                    && !new File(path).exists() && !isHeld(path));
+        }
+
+        private int upsert(RecordingStatements statements, long id, Operation operation) {
+            final File file = new File(operation.path);
+            if (!file.isFile() || file.length() == 0 || isHeld(operation.path)) {
+                // Gone again, a placeholder reserving a name, or a recording still being
+                // written or finalized, which is listed by the finalizer.
+                return 0;
+            }
+            if (operation.probe == null) {
+                // mtime-only refresh from the full scan; nothing visible changes.
+                return id != -1 ? statements.updateFileModified(id, operation.modified) : 0;
+            }
+            final MediaProbe probe = operation.probe;
+            if (id != -1) {
+                if (statements.updateFileInfo(id, probe.durationMillis, probe.sizeBytes,
+                        operation.modified) == 0) {
+                    return 0;
+                }
+                mChanges.updated((int) id);
+                return 1;
+            }
+            final long inserted = statements.insert(file.getName(), operation.path,
+                    probe.durationMillis, operation.modified, probe.sizeBytes, probe.codec,
+                    probe.sampleRate, probe.bitrate, operation.modified, null, null);
+            if (inserted == -1) {
+                return 0;
+            }
+            mDelta++;
+            mChanges.inserted((int) inserted);
+            return 1;
+        }
+    }
+}
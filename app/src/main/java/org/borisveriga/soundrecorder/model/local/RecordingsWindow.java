@@ -0,0 +1,138 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import org.borisveriga.soundrecorder.model.dao.RecordingItem;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Sliding window of {@link RecordingItem}s around the range the list is currently showing.
+ * Rows are read one page at a time and kept in a small LRU, so binding a row costs a map
+ * lookup instead of a query over the whole table. Whenever {@link DBHelper} reports that the
+ * table changed, the window is dropped and refilled on demand.
+ * <p>
+ * When a bind gets close to the edge of the window, the neighbouring page is read ahead on the
+ * {@link DatabaseExecutor} reader pool so scrolling rarely has to wait for a query.
+ */
+class RecordingsWindow {
+
+    static final int PAGE_SIZE = 64;
+    private static final int MAX_PAGES = 4;
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 4;
+
+    private final DBHelper mHelper;
+    private final Map<Integer, List<RecordingItem>> mPages =
+            new LinkedHashMap<Integer, List<RecordingItem>>(MAX_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, List<RecordingItem>> eldest) {
+                    return size() > MAX_PAGES;
+                }
+            };
+    private final Set<Integer> mPrefetching = new HashSet<>();
+    private int mGeneration = -1;
+
+    RecordingsWindow(DBHelper helper) {
+        mHelper = helper;
+    }
+
+    synchronized RecordingItem getItemAt(int position) {
+        if (position < 0) {
+            return null;
+        }
+        final int generation = DBHelper.getGeneration();
+        if (generation != mGeneration) {
+            mPages.clear();
+            mPrefetching.clear();
+            mGeneration = generation;
+        }
+
+        final int pageIndex = position / PAGE_SIZE;
+        List<RecordingItem> page = mPages.get(pageIndex);
+        if (page == null) {
+            page = loadPage(pageIndex);
+            mPages.put(pageIndex, page);
+        }
+
+        final int offset = position % PAGE_SIZE;
+        if (offset >= PAGE_SIZE - PREFETCH_DISTANCE && page.size() == PAGE_SIZE) {
+            prefetchAfter(pageIndex + 1, page.get(PAGE_SIZE - 1).getId());
+        } else if (offset < PREFETCH_DISTANCE && pageIndex > 0 && !page.isEmpty()) {
+            prefetchBefore(pageIndex - 1, page.get(0).getId());
+        }
+        return offset < page.size() ? page.get(offset) : null;
+    }
+
+    synchronized void invalidate() {
+        mPages.clear();
+        mPrefetching.clear();
+        mGeneration = -1;
+    }
+
+    private void prefetchAfter(final int pageIndex, final int lastId) {
+        if (!startPrefetch(pageIndex)) {
+            return;
+        }
+        final int generation = mGeneration;
+        mHelper.getExecutor().read(new Callable<Void>() {
+            @Override
+            public Void call() {
+                finishPrefetch(pageIndex, generation, mHelper.queryPageAfter(lastId, PAGE_SIZE));
+                return null;
+            }
+        }, null);
+    }
+
+    private void prefetchBefore(final int pageIndex, final int firstId) {
+        if (!startPrefetch(pageIndex)) {
+            return;
+        }
+        final int generation = mGeneration;
+        mHelper.getExecutor().read(new Callable<Void>() {
+            @Override
+            public Void call() {
+                final List<RecordingItem> page = mHelper.queryPageBefore(firstId, PAGE_SIZE);
+                Collections.reverse(page);
+                finishPrefetch(pageIndex, generation, page);
+                return null;
+            }
+        }, null);
+    }
+
+    private boolean startPrefetch(int pageIndex) {
+        return !mPages.containsKey(pageIndex) && mPrefetching.add(pageIndex);
+    }
+
+    private synchronized void finishPrefetch(int pageIndex, int generation, List<RecordingItem> page) {
+        if (generation != mGeneration || !mPrefetching.remove(pageIndex)) {
+            return;
+        }
+        if (!mPages.containsKey(pageIndex)) {
+            mPages.put(pageIndex, page);
+        }
+    }
+
+    /**
+     * Scrolling usually moves into a page adjacent to one we already hold, so seek from its
+     * boundary id (keyset) and only fall back to LIMIT/OFFSET when jumping somewhere cold.
+     */
+    private List<RecordingItem> loadPage(int pageIndex) {
+        final List<RecordingItem> previous = mPages.get(pageIndex - 1);
+        if (previous != null && previous.size() == PAGE_SIZE) {
+            return mHelper.queryPageAfter(previous.get(PAGE_SIZE - 1).getId(), PAGE_SIZE);
+        }
+
+        final List<RecordingItem> next = mPages.get(pageIndex + 1);
+        if (next != null && !next.isEmpty()) {
+            final List<RecordingItem> page = mHelper.queryPageBefore(next.get(0).getId(), PAGE_SIZE);
+            Collections.reverse(page);
+            return page;
+        }
+
+        return mHelper.queryPage(pageIndex * PAGE_SIZE, PAGE_SIZE);
+    }
+}
@@ -0,0 +1,81 @@
+package org.borisveriga.soundrecorder.mp4;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * ADTS framing for raw AAC: a small header in front of every frame. Any prefix of an ADTS
+ * stream that ends on a frame boundary is playable, so it is safe to record into when the
+ * process may die at any moment. {@link Mp4Concatenator} turns it into MPEG-4 afterwards.
+ */
+public final class Adts {
+
+    /** Header size without CRC, which is the only kind written here. */
+    public static final int HEADER_SIZE = 7;
+    /** Largest frame the 13-bit length field can describe, header included. */
+    public static final int MAX_FRAME_SIZE = 0x1FFF;
+    /** MPEG-4 audio object type of AAC-LC. */
+    public static final int OBJECT_TYPE_AAC_LC = 2;
+
+    static final int SAMPLES_PER_FRAME = 1024;
+    static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+
+    private Adts() {
+    }
+
+    /**
+     * Writes the header of a frame carrying {@code payloadSize} bytes to the start of
+     * {@code dst}.
+     *
+     * @throws IllegalArgumentException if the sample rate has no ADTS index
+     */
+    public static void writeHeader(byte[] dst, int objectType, int sampleRate, int channels,
+                                   int payloadSize) {
+        final int rateIndex = sampleRateIndex(sampleRate);
+        final int frameLength = payloadSize + HEADER_SIZE;
+        dst[0] = (byte) 0xFF;
+        dst[1] = (byte) 0xF1;   // MPEG-4, layer 0, no CRC
+        dst[2] = (byte) (((objectType - 1) << 6) | (rateIndex << 2) | (channels >> 2));
+        dst[3] = (byte) (((channels & 3) << 6) | (frameLength >> 11));
+        dst[4] = (byte) (frameLength >> 3);
+        dst[5] = (byte) (((frameLength & 7) << 5) | 0x1F);
+        dst[6] = (byte) 0xFC;   // buffer fullness 0x7FF (variable), one raw data block
+    }
+
+    public static boolean isSupportedSampleRate(int sampleRate) {
+        for (int rate : SAMPLE_RATES) {
+            if (rate == sampleRate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if {@code file} starts with an ADTS sync word */
+    public static boolean isAdts(File file) {
+        try {
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final int first = in.read();
+                final int second = in.read();
+                return first == 0xFF && second >= 0 && (second & 0xF6) == 0xF0;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static int sampleRateIndex(int sampleRate) {
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No ADTS index for " + sampleRate + " Hz");
+    }
+}
@@ -0,0 +1,155 @@
+package org.borisveriga.soundrecorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Walks the frames of an ADTS file through a fixed buffer. Stops at the first frame that is
+ * cut short, damaged or encoded differently from the first one, so the tail a crash leaves
+ * behind is dropped rather than failing the whole file.
+ */
+final class AdtsReader {
+
+    private static final int CRC_HEADER_SIZE = 9;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+    private long mReadPosition;
+    private boolean mEndOfFile;
+
+    private int mFrameLength;
+    private int mHeaderSize;
+
+    private boolean mFormatKnown;
+    private int mObjectType;
+    private int mSampleRateIndex;
+    private int mChannels;
+
+    AdtsReader(FileChannel channel) {
+        mChannel = channel;
+        mBuffer.limit(0);
+    }
+
+    /**
+     * Moves to the next frame.
+     *
+     * @return false at the end of the file or at the first frame that is not usable
+     */
+    boolean next() throws IOException {
+        mBuffer.position(mBuffer.position() + mFrameLength);
+        mFrameLength = 0;
+        if (!fill(Adts.HEADER_SIZE)) {
+            return false;
+        }
+        final int p = mBuffer.position();
+        final int b0 = mBuffer.get(p) & 0xFF;
+        final int b1 = mBuffer.get(p + 1) & 0xFF;
+        final int b2 = mBuffer.get(p + 2) & 0xFF;
+        final int b3 = mBuffer.get(p + 3) & 0xFF;
+        final int b4 = mBuffer.get(p + 4) & 0xFF;
+        final int b5 = mBuffer.get(p + 5) & 0xFF;
+        final int b6 = mBuffer.get(p + 6) & 0xFF;
+        if (b0 != 0xFF || (b1 & 0xF6) != 0xF0) {
+            return false;
+        }
+        final int headerSize = (b1 & 1) != 0 ? Adts.HEADER_SIZE : CRC_HEADER_SIZE;
+        final int objectType = (b2 >> 6) + 1;
+        final int sampleRateIndex = (b2 >> 2) & 0xF;
+        final int channels = ((b2 & 1) << 2) | (b3 >> 6);
+        final int frameLength = ((b3 & 3) << 11) | (b4 << 3) | (b5 >> 5);
+        final int rawDataBlocks = b6 & 3;
+        // Frames holding several raw data blocks can't become single MPEG-4 samples.
+        if (frameLength <= headerSize || sampleRateIndex >= Adts.SAMPLE_RATES.length
+                || channels == 0 || rawDataBlocks != 0) {
+            return false;
+        }
+        if (!mFormatKnown) {
+            mObjectType = objectType;
+            mSampleRateIndex = sampleRateIndex;
+            mChannels = channels;
+            mFormatKnown = true;
+        } else if (objectType != mObjectType || sampleRateIndex != mSampleRateIndex
+                || channels != mChannels) {
+            return false;
+        }
+        if (!fill(frameLength)) {
+            return false;
+        }
+        mFrameLength = frameLength;
+        mHeaderSize = headerSize;
+        return true;
+    }
+
+    int payloadSize() {
+        return mFrameLength - mHeaderSize;
+    }
+
+    /** Appends the current frame without its header to {@code dst}. */
+    void copyPayload(ByteBuffer dst) {
+        dst.put(mBuffer.array(), mBuffer.arrayOffset() + mBuffer.position() + mHeaderSize,
+                payloadSize());
+    }
+
+    int sampleRate() {
+        return Adts.SAMPLE_RATES[mSampleRateIndex];
+    }
+
+    int channels() {
+        return mChannels;
+    }
+
+    /**
+     * @return the stsd payload (version, flags, entry count and one mp4a entry with its esds)
+     * describing the frames read so far
+     */
+    byte[] sampleDescription() {
+        final int decoderSpecificInfo = 2 + 2;
+        final int decoderConfig = 2 + 13 + decoderSpecificInfo;
+        final int slConfig = 3;
+        final int esDescriptor = 2 + 3 + decoderConfig + slConfig;
+        final int esdsSize = Box.HEADER_SIZE + 4 + esDescriptor;
+        final int mp4aSize = Box.HEADER_SIZE + 28 + esdsSize;
+        final int sampleRate = sampleRate();
+
+        final ByteBuffer b = ByteBuffer.allocate(8 + mp4aSize);
+        b.putInt(0).putInt(1);                  // version/flags, entry_count
+        b.putInt(mp4aSize).putInt(Box.type("mp4a"));
+        b.put(new byte[6]).putShort((short) 1); // reserved, data_reference_index
+        b.putLong(0);                           // reserved
+        b.putShort((short) mChannels).putShort((short) 16);
+        b.putShort((short) 0).putShort((short) 0);
+        b.putInt(sampleRate > 0xFFFF ? 0 : sampleRate << 16);
+
+        b.putInt(esdsSize).putInt(Box.type("esds")).putInt(0);
+        b.put((byte) 0x03).put((byte) (esDescriptor - 2));
+        b.putShort((short) 0).put((byte) 0);    // ES_ID, flags
+        b.put((byte) 0x04).put((byte) (decoderConfig - 2));
+        b.put((byte) 0x40);                     // MPEG-4 audio
+        b.put((byte) 0x15);                     // audio stream
+        final int bufferSize = 768 * mChannels;
+        b.put((byte) (bufferSize >> 16)).put((byte) (bufferSize >> 8)).put((byte) bufferSize);
+        b.putInt(0).putInt(0);                  // max and average bitrate unknown
+        b.put((byte) 0x05).put((byte) 2);       // AudioSpecificConfig
+        b.putShort((short) ((mObjectType << 11) | (mSampleRateIndex << 7) | (mChannels << 3)));
+        b.put((byte) 0x06).put((byte) 1).put((byte) 0x02);
+        return b.array();
+    }
+
+    private boolean fill(int needed) throws IOException {
+        while (mBuffer.remaining() < needed) {
+            if (mEndOfFile) {
+                return false;
+            }
+            mBuffer.compact();
+            final int read = mChannel.read(mBuffer, mReadPosition);
+            if (read < 0) {
+                mEndOfFile = true;
+            } else {
+                mReadPosition += read;
+            }
+            mBuffer.flip();
+        }
+        return true;
+    }
+}
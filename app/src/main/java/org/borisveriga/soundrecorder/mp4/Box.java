@@ -0,0 +1,119 @@
+package org.borisveriga.soundrecorder.mp4;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Header of an ISO BMFF box located in a file. Only the header is read; the payload stays on
+ * disk and is accessed through the channel by offset.
+ */
+final class Box {
+
+    static final int HEADER_SIZE = 8;
+    static final int LARGE_HEADER_SIZE = 16;
+
+    final int type;
+    final long offset;
+    final int headerSize;
+    final long size;
+
+    private Box(int type, long offset, int headerSize, long size) {
+        this.type = type;
+        this.offset = offset;
+        this.headerSize = headerSize;
+        this.size = size;
+    }
+
+    long payloadOffset() {
+        return offset + headerSize;
+    }
+
+    long payloadSize() {
+        return size - headerSize;
+    }
+
+    long end() {
+        return offset + size;
+    }
+
+    /**
+     * Reads the box header at {@code position}. A size of 0 means the box runs to
+     * {@code limit}.
+     */
+    static Box read(FileChannel channel, long position, long limit) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(LARGE_HEADER_SIZE);
+        header.limit(HEADER_SIZE);
+        readFully(channel, header, position);
+        long size = header.getInt(0) & 0xFFFFFFFFL;
+        final int type = header.getInt(4);
+        int headerSize = HEADER_SIZE;
+        if (size == 1) {
+            header.limit(LARGE_HEADER_SIZE);
+            readFully(channel, header, position + HEADER_SIZE);
+            size = header.getLong(HEADER_SIZE);
+            headerSize = LARGE_HEADER_SIZE;
+        } else if (size == 0) {
+            size = limit - position;
+        }
+        if (size < headerSize || position + size > limit) {
+            throw new IOException("Malformed '" + typeName(type) + "' box at " + position);
+        }
+        return new Box(type, position, headerSize, size);
+    }
+
+    /**
+     * @return the first box of {@code type} among the siblings between {@code start} and
+     * {@code end}, or null
+     */
+    static Box find(FileChannel channel, long start, long end, int type) throws IOException {
+        long position = start;
+        while (position + HEADER_SIZE <= end) {
+            final Box box = read(channel, position, end);
+            if (box.type == type) {
+                return box;
+            }
+            position = box.end();
+        }
+        return null;
+    }
+
+    /** Descends through {@code path}, e.g. mdia, minf, stbl, starting inside {@code parent}. */
+    static Box findPath(FileChannel channel, Box parent, int... path) throws IOException {
+        Box box = parent;
+        for (int type : path) {
+            box = find(channel, box.payloadOffset(), box.end(), type);
+            if (box == null) {
+                return null;
+            }
+        }
+        return box;
+    }
+
+    static int type(String fourcc) {
+        return (fourcc.charAt(0) << 24) | (fourcc.charAt(1) << 16)
+                | (fourcc.charAt(2) << 8) | fourcc.charAt(3);
+    }
+
+    static String typeName(int type) {
+        return new String(new char[]{
+                (char) ((type >>> 24) & 0xFF), (char) ((type >>> 16) & 0xFF),
+                (char) ((type >>> 8) & 0xFF), (char) (type & 0xFF)});
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "'" + typeName(type) + "' at " + offset + ", " + size + " bytes";
+    }
+}
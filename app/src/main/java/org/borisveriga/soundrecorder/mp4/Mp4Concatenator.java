@@ -0,0 +1,573 @@
+package org.borisveriga.soundrecorder.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins MPEG-4 audio files recorded with identical settings (one AAC track each, as written
+ * by MediaRecorder) into one file without decoding and without holding samples or sample
+ * tables in memory. Segments may also be raw {@link Adts} streams, which become MPEG-4 on the
+ * way through.
+ * <p>
+ * Each segment's mdat payload is copied to the output with {@link FileChannel#transferTo}.
+ * Its chunk offsets are shifted by the distance it moved. ADTS frames are copied without their
+ * headers and get one sample table entry each. The stts, stsz, stsc and co64
+ * tables are appended entry by entry to temporary files, and the moov box is written after
+ * the media data once their sizes are known. The output is laid out as ftyp, mdat (64-bit
+ * size), moov.
+ * <p>
+ * Plain Java on purpose, so it can be exercised on a desktop JVM with sample files.
+ */
+public class Mp4Concatenator {
+
+    private static final int FTYP = Box.type("ftyp");
+    private static final int MOOV = Box.type("moov");
+    private static final int MDAT = Box.type("mdat");
+    private static final int TRAK = Box.type("trak");
+    private static final int MDIA = Box.type("mdia");
+    private static final int MDHD = Box.type("mdhd");
+    private static final int HDLR = Box.type("hdlr");
+    private static final int MINF = Box.type("minf");
+    private static final int STBL = Box.type("stbl");
+    private static final int STSD = Box.type("stsd");
+    private static final int STTS = Box.type("stts");
+    private static final int STSZ = Box.type("stsz");
+    private static final int STSC = Box.type("stsc");
+    private static final int STCO = Box.type("stco");
+    private static final int CO64 = Box.type("co64");
+    private static final int SOUN = Box.type("soun");
+
+    /** Seconds between 1904-01-01 (the MP4 epoch) and 1970-01-01. */
+    private static final long MP4_EPOCH_OFFSET = 2082844800L;
+    private static final int MOVIE_TIMESCALE = 1000;
+    /** Size of a full box header: box header plus version and flags. */
+    private static final int FULL_HEADER = Box.HEADER_SIZE + 4;
+
+    private static final int[] UNITY_MATRIX = {
+            0x00010000, 0, 0,
+            0, 0x00010000, 0,
+            0, 0, 0x40000000
+    };
+
+    /** Frames per chunk for ADTS input; about a second of audio at 44.1 kHz. */
+    private static final int ADTS_FRAMES_PER_CHUNK = 43;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final File mTempDir;
+
+    public interface ProgressListener {
+        /** Called after segment {@code done} of {@code total} has been copied. */
+        void onSegmentCopied(int done, int total);
+    }
+
+    /**
+     * @param tempDir where the sample tables are spooled while the media data is copied
+     */
+    public Mp4Concatenator(File tempDir) {
+        mTempDir = tempDir;
+    }
+
+    /**
+     * Writes {@code segments}, in order, to {@code output}. Fails with an IOException if the
+     * segments are not plain single-track audio files with matching sample descriptions;
+     * {@code output} is left incomplete in that case.
+     *
+     * @return the duration of the result in milliseconds
+     */
+    public long concat(List<File> segments, File output, ProgressListener listener) throws IOException {
+        final TableSpool stts = new TableSpool(mTempDir, "stts");
+        final TableSpool stsz = new TableSpool(mTempDir, "stsz");
+        final TableSpool stsc = new TableSpool(mTempDir, "stsc");
+        final TableSpool co64 = new TableSpool(mTempDir, "co64");
+        final RandomAccessFile out = new RandomAccessFile(output, "rw");
+        try {
+            out.setLength(0);
+            final FileChannel channel = out.getChannel();
+            writeFtyp(channel);
+
+            final long mdatOffset = channel.position();
+            final ByteBuffer mdatHeader = ByteBuffer.allocate(Box.LARGE_HEADER_SIZE);
+            mdatHeader.putInt(1).putInt(MDAT).putLong(0).flip();
+            writeFully(channel, mdatHeader);
+
+            final Tables tables = new Tables(stts, stsz, stsc, co64);
+            for (int i = 0; i < segments.size(); i++) {
+                final File file = segments.get(i);
+                if (Adts.isAdts(file)) {
+                    tables.appendAdts(file, channel);
+                } else {
+                    final Segment segment = Segment.open(file);
+                    try {
+                        tables.append(segment, channel);
+                    } finally {
+                        segment.close();
+                    }
+                }
+                if (listener != null) {
+                    listener.onSegmentCopied(i + 1, segments.size());
+                }
+            }
+            tables.finish();
+            if (tables.mSamples == 0) {
+                throw new IOException("No samples in " + segments.size() + " segments");
+            }
+
+            final long mdatEnd = channel.position();
+            mdatHeader.clear();
+            mdatHeader.putLong(0, mdatEnd - mdatOffset);
+            mdatHeader.limit(8);
+            channel.write(mdatHeader, mdatOffset + Box.HEADER_SIZE);
+
+            writeMoov(channel, tables);
+            channel.force(false);
+            return tables.mDuration * 1000 / tables.mTimescale;
+        } finally {
+            out.close();
+            stts.delete();
+            stsz.delete();
+            stsc.delete();
+            co64.delete();
+        }
+    }
+
+    /**
+     * @return whether {@code file} holds anything {@link #concat} can use: at least one
+     * complete ADTS frame, or an MPEG-4 file with its sample tables. A file whose recorder
+     * was killed before writing moov is not usable.
+     */
+    public static boolean isUsableSegment(File file) {
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (Adts.isAdts(file)) {
+                    return new AdtsReader(raf.getChannel()).next();
+                }
+            } finally {
+                raf.close();
+            }
+            Segment.open(file).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** The audio track of one input file. */
+    private static final class Segment {
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        Box mdat;
+        Box stts;
+        Box stsz;
+        Box stsc;
+        Box chunkOffsets;
+        long timescale;
+        byte[] stsd;
+
+        private Segment(File file) throws IOException {
+            this.file = file;
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+        }
+
+        static Segment open(File file) throws IOException {
+            final Segment segment = new Segment(file);
+            try {
+                segment.parse();
+                return segment;
+            } catch (IOException e) {
+                segment.close();
+                throw e;
+            }
+        }
+
+        private void parse() throws IOException {
+            final long length = channel.size();
+            final Box moov = Box.find(channel, 0, length, MOOV);
+            mdat = Box.find(channel, 0, length, MDAT);
+            if (moov == null || mdat == null) {
+                throw new IOException(file + " has no moov or mdat box");
+            }
+
+            final Box trak = findAudioTrack(moov);
+            final Box mdia = Box.findPath(channel, trak, MDIA);
+            final Box mdhd = mdia != null ? Box.findPath(channel, mdia, MDHD) : null;
+            final Box stbl = mdia != null ? Box.findPath(channel, mdia, MINF, STBL) : null;
+            if (mdhd == null || stbl == null) {
+                throw new IOException(file + " has an incomplete audio track");
+            }
+            timescale = readTimescale(mdhd);
+
+            final Box stsdBox = Box.find(channel, stbl.payloadOffset(), stbl.end(), STSD);
+            stts = Box.find(channel, stbl.payloadOffset(), stbl.end(), STTS);
+            stsz = Box.find(channel, stbl.payloadOffset(), stbl.end(), STSZ);
+            stsc = Box.find(channel, stbl.payloadOffset(), stbl.end(), STSC);
+            chunkOffsets = Box.find(channel, stbl.payloadOffset(), stbl.end(), STCO);
+            if (chunkOffsets == null) {
+                chunkOffsets = Box.find(channel, stbl.payloadOffset(), stbl.end(), CO64);
+            }
+            if (stsdBox == null || stts == null || stsz == null || stsc == null || chunkOffsets == null) {
+                throw new IOException(file + " is missing a sample table");
+            }
+            final ByteBuffer description = ByteBuffer.allocate((int) stsdBox.payloadSize());
+            Box.readFully(channel, description, stsdBox.payloadOffset());
+            stsd = description.array();
+        }
+
+        private Box findAudioTrack(Box moov) throws IOException {
+            long position = moov.payloadOffset();
+            while (position + Box.HEADER_SIZE <= moov.end()) {
+                final Box box = Box.read(channel, position, moov.end());
+                if (box.type == TRAK) {
+                    final Box hdlr = Box.findPath(channel, box, MDIA, HDLR);
+                    if (hdlr != null) {
+                        // version/flags, pre_defined, handler_type
+                        final ByteBuffer handler = ByteBuffer.allocate(4);
+                        Box.readFully(channel, handler, hdlr.payloadOffset() + 8);
+                        if (handler.getInt(0) == SOUN) {
+                            return box;
+                        }
+                    }
+                }
+                position = box.end();
+            }
+            throw new IOException(file + " has no audio track");
+        }
+
+        private long readTimescale(Box mdhd) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(4);
+            Box.readFully(channel, buffer, mdhd.payloadOffset());
+            final int version = buffer.get(0);
+            buffer.clear();
+            // version/flags, then creation and modification time (32 or 64 bit each)
+            Box.readFully(channel, buffer, mdhd.payloadOffset() + 4 + (version == 1 ? 16 : 8));
+            return buffer.getInt(0) & 0xFFFFFFFFL;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ignored) {
+                // Opened read-only.
+            }
+        }
+    }
+
+    /** Output sample tables, appended to segment by segment. */
+    private static final class Tables {
+        final TableSpool stts;
+        final TableSpool stsz;
+        final TableSpool stsc;
+        final TableSpool co64;
+
+        byte[] mStsd;
+        long mTimescale;
+        long mSamples;
+        long mChunks;
+        /** Total duration in media timescale units. */
+        long mDuration;
+
+        /** Run of equal sample deltas not written yet; runs continue across segments. */
+        private long mRunCount;
+        private long mRunDelta = -1;
+        private long mLastSamplesPerChunk = -1;
+
+        Tables(TableSpool stts, TableSpool stsz, TableSpool stsc, TableSpool co64) {
+            this.stts = stts;
+            this.stsz = stsz;
+            this.stsc = stsc;
+            this.co64 = co64;
+        }
+
+        void append(Segment segment, FileChannel out) throws IOException {
+            checkFormat(segment.file, segment.stsd, segment.timescale);
+
+            final TableReader reader = new TableReader(segment.channel);
+            final long payloadStart = segment.mdat.payloadOffset();
+            final long payloadEnd = segment.mdat.end();
+            final long shift = out.position() - payloadStart;
+            transferFully(segment.channel, payloadStart, segment.mdat.payloadSize(), out);
+
+            final boolean large = segment.chunkOffsets.type == CO64;
+            reader.reset(segment.chunkOffsets, 4);
+            final long chunks = reader.readUnsignedInt();
+            for (long i = 0; i < chunks; i++) {
+                final long offset = large ? reader.readLong() : reader.readUnsignedInt();
+                if (offset < payloadStart || offset >= payloadEnd) {
+                    // Samples outside the copied mdat; not something MediaRecorder writes.
+                    throw new IOException(segment.file + " has a chunk outside its mdat");
+                }
+                co64.writeLong(offset + shift);
+                co64.endEntry();
+            }
+
+            reader.reset(segment.stsc, 4);
+            final long runs = reader.readUnsignedInt();
+            for (long i = 0; i < runs; i++) {
+                final long firstChunk = reader.readUnsignedInt();
+                final long samplesPerChunk = reader.readUnsignedInt();
+                reader.readInt(); // sample description index; every segment shares stsd
+                if (samplesPerChunk != mLastSamplesPerChunk) {
+                    stsc.writeInt((int) (firstChunk + mChunks));
+                    stsc.writeInt((int) samplesPerChunk);
+                    stsc.writeInt(1);
+                    stsc.endEntry();
+                    mLastSamplesPerChunk = samplesPerChunk;
+                }
+            }
+            mChunks += chunks;
+
+            reader.reset(segment.stsz, 4);
+            final int uniformSize = reader.readInt();
+            final long samples = reader.readUnsignedInt();
+            for (long i = 0; i < samples; i++) {
+                stsz.writeInt(uniformSize != 0 ? uniformSize : reader.readInt());
+                stsz.endEntry();
+            }
+            mSamples += samples;
+
+            reader.reset(segment.stts, 4);
+            final long entries = reader.readUnsignedInt();
+            long timedSamples = 0;
+            for (long i = 0; i < entries; i++) {
+                final long count = reader.readUnsignedInt();
+                final long delta = reader.readUnsignedInt();
+                addTimestamps(count, delta);
+                timedSamples += count;
+            }
+            if (timedSamples != samples) {
+                throw new IOException(segment.file + " has " + samples + " samples but "
+                        + timedSamples + " timestamps");
+            }
+        }
+
+        /** Copies the frames of an ADTS file, grouping them into chunks of equal length. */
+        void appendAdts(File file, FileChannel out) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final AdtsReader reader = new AdtsReader(raf.getChannel());
+                if (!reader.next()) {
+                    throw new IOException(file + " has no complete ADTS frame");
+                }
+                checkFormat(file, reader.sampleDescription(), reader.sampleRate());
+
+                final ByteBuffer pending = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                int framesInChunk = 0;
+                do {
+                    final int size = reader.payloadSize();
+                    if (pending.remaining() < size) {
+                        pending.flip();
+                        writeFully(out, pending);
+                        pending.clear();
+                    }
+                    if (framesInChunk == 0) {
+                        co64.writeLong(out.position() + pending.position());
+                        co64.endEntry();
+                    }
+                    reader.copyPayload(pending);
+                    stsz.writeInt(size);
+                    stsz.endEntry();
+                    mSamples++;
+                    addTimestamps(1, Adts.SAMPLES_PER_FRAME);
+                    if (++framesInChunk == ADTS_FRAMES_PER_CHUNK) {
+                        addChunk(framesInChunk);
+                        framesInChunk = 0;
+                    }
+                } while (reader.next());
+                if (framesInChunk > 0) {
+                    addChunk(framesInChunk);
+                }
+                pending.flip();
+                writeFully(out, pending);
+            } finally {
+                raf.close();
+            }
+        }
+
+        private void checkFormat(File file, byte[] stsd, long timescale) throws IOException {
+            if (mStsd == null) {
+                mStsd = stsd;
+                mTimescale = timescale;
+            } else if (mTimescale != timescale || !Arrays.equals(mStsd, stsd)) {
+                throw new IOException(file + " was recorded with different settings");
+            }
+        }
+
+        private void addChunk(long samplesPerChunk) throws IOException {
+            mChunks++;
+            if (samplesPerChunk != mLastSamplesPerChunk) {
+                stsc.writeInt((int) mChunks);
+                stsc.writeInt((int) samplesPerChunk);
+                stsc.writeInt(1);
+                stsc.endEntry();
+                mLastSamplesPerChunk = samplesPerChunk;
+            }
+        }
+
+        private void addTimestamps(long count, long delta) throws IOException {
+            if (delta != mRunDelta) {
+                flushRun();
+                mRunDelta = delta;
+            }
+            mRunCount += count;
+            mDuration += count * delta;
+        }
+
+        void finish() throws IOException {
+            flushRun();
+        }
+
+        private void flushRun() throws IOException {
+            if (mRunCount > 0) {
+                stts.writeInt((int) mRunCount);
+                stts.writeInt((int) mRunDelta);
+                stts.endEntry();
+            }
+            mRunCount = 0;
+        }
+    }
+
+    private static void writeFtyp(FileChannel channel) throws IOException {
+        final ByteBuffer ftyp = ByteBuffer.allocate(24);
+        ftyp.putInt(24).putInt(FTYP)
+                .putInt(Box.type("mp42")).putInt(0)
+                .putInt(Box.type("isom")).putInt(Box.type("mp42"))
+                .flip();
+        writeFully(channel, ftyp);
+    }
+
+    private static void writeMoov(FileChannel channel, Tables tables) throws IOException {
+        final long sttsSize = FULL_HEADER + 4 + tables.stts.entries() * 8;
+        final long stszSize = FULL_HEADER + 8 + tables.stsz.entries() * 4;
+        final long stscSize = FULL_HEADER + 4 + tables.stsc.entries() * 12;
+        final long co64Size = FULL_HEADER + 4 + tables.co64.entries() * 8;
+        final long stsdSize = Box.HEADER_SIZE + tables.mStsd.length;
+        final long stblSize = Box.HEADER_SIZE + stsdSize + sttsSize + stszSize + stscSize + co64Size;
+        final long smhdSize = FULL_HEADER + 4;
+        final long dinfSize = Box.HEADER_SIZE + (FULL_HEADER + 4) + FULL_HEADER;
+        final long minfSize = Box.HEADER_SIZE + smhdSize + dinfSize + stblSize;
+        final byte[] handlerName = "SoundHandler\0".getBytes("US-ASCII");
+        final long hdlrSize = FULL_HEADER + 20 + handlerName.length;
+        final long mdhdSize = FULL_HEADER + 32;
+        final long mdiaSize = Box.HEADER_SIZE + mdhdSize + hdlrSize + minfSize;
+        final long tkhdSize = FULL_HEADER + 92;
+        final long trakSize = Box.HEADER_SIZE + tkhdSize + mdiaSize;
+        final long mvhdSize = FULL_HEADER + 108;
+        final long moovSize = Box.HEADER_SIZE + mvhdSize + trakSize;
+        if (moovSize > 0xFFFFFFFFL) {
+            throw new IOException("Sample tables too large: " + moovSize + " bytes");
+        }
+
+        final long now = System.currentTimeMillis() / 1000 + MP4_EPOCH_OFFSET;
+        final long movieDuration = tables.mDuration * MOVIE_TIMESCALE / tables.mTimescale;
+        final ByteBuffer b = ByteBuffer.allocate((int) (Box.HEADER_SIZE * 5 + mvhdSize + tkhdSize
+                + mdhdSize + hdlrSize + smhdSize + dinfSize + stsdSize));
+
+        header(b, moovSize, MOOV);
+
+        fullHeader(b, mvhdSize, "mvhd", 1, 0);
+        b.putLong(now).putLong(now).putInt(MOVIE_TIMESCALE).putLong(movieDuration);
+        b.putInt(0x00010000);               // rate 1.0
+        b.putShort((short) 0x0100);         // volume 1.0
+        b.putShort((short) 0).putLong(0);   // reserved
+        putMatrix(b);
+        b.put(new byte[24]);                // pre_defined
+        b.putInt(2);                        // next_track_ID
+
+        header(b, trakSize, TRAK);
+        fullHeader(b, tkhdSize, "tkhd", 1, 0x3); // enabled, in movie
+        b.putLong(now).putLong(now).putInt(1).putInt(0).putLong(movieDuration);
+        b.putLong(0);                       // reserved
+        b.putShort((short) 0).putShort((short) 0); // layer, alternate_group
+        b.putShort((short) 0x0100).putShort((short) 0); // volume, reserved
+        putMatrix(b);
+        b.putInt(0).putInt(0);              // width, height
+
+        header(b, mdiaSize, MDIA);
+        fullHeader(b, mdhdSize, "mdhd", 1, 0);
+        b.putLong(now).putLong(now).putInt((int) tables.mTimescale).putLong(tables.mDuration);
+        b.putShort((short) 0x55C4);         // language "und"
+        b.putShort((short) 0);
+
+        fullHeader(b, hdlrSize, "hdlr", 0, 0);
+        b.putInt(0).putInt(SOUN).putInt(0).putInt(0).putInt(0);
+        b.put(handlerName);
+
+        header(b, minfSize, MINF);
+        fullHeader(b, smhdSize, "smhd", 0, 0);
+        b.putInt(0);                        // balance, reserved
+        header(b, dinfSize, Box.type("dinf"));
+        fullHeader(b, FULL_HEADER + 4 + FULL_HEADER, "dref", 0, 0);
+        b.putInt(1);
+        fullHeader(b, FULL_HEADER, "url ", 0, 1); // media is in this file
+
+        header(b, stblSize, STBL);
+        header(b, stsdSize, STSD);
+        b.put(tables.mStsd);
+        b.flip();
+        writeFully(channel, b);
+
+        writeTable(channel, sttsSize, "stts", tables.stts, 0);
+        writeTable(channel, stszSize, "stsz", tables.stsz, 1);
+        writeTable(channel, stscSize, "stsc", tables.stsc, 0);
+        writeTable(channel, co64Size, "co64", tables.co64, 0);
+    }
+
+    /**
+     * Writes a table box header, its entry count (preceded by a zero sample_size for stsz)
+     * and then the spooled entries.
+     */
+    private static void writeTable(FileChannel channel, long size, String type, TableSpool spool,
+                                   int leadingZeros) throws IOException {
+        final ByteBuffer b = ByteBuffer.allocate(FULL_HEADER + 4 + leadingZeros * 4);
+        fullHeader(b, size, type, 0, 0);
+        for (int i = 0; i < leadingZeros; i++) {
+            b.putInt(0);
+        }
+        b.putInt((int) spool.entries());
+        b.flip();
+        writeFully(channel, b);
+        spool.transferTo(channel);
+    }
+
+    private static void header(ByteBuffer b, long size, int type) {
+        b.putInt((int) size).putInt(type);
+    }
+
+    private static void fullHeader(ByteBuffer b, long size, String type, int version, int flags) {
+        header(b, size, Box.type(type));
+        b.putInt((version << 24) | flags);
+    }
+
+    private static void putMatrix(ByteBuffer b) {
+        for (int value : UNITY_MATRIX) {
+            b.putInt(value);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /** Copies {@code count} bytes starting at {@code position} to the target's position. */
+    public static void transferFully(FileChannel source, long position, long count,
+                                     FileChannel target)
+            throws IOException {
+        long done = 0;
+        while (done < count) {
+            final long transferred = source.transferTo(position + done, count - done, target);
+            if (transferred <= 0) {
+                throw new IOException("Copy stalled after " + done + " of " + count + " bytes");
+            }
+            done += transferred;
+        }
+    }
+}
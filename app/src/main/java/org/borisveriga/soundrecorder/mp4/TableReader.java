@@ -0,0 +1,61 @@
+package org.borisveriga.soundrecorder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential big-endian reader over a region of a file through a fixed-size buffer, so
+ * walking a sample table of any length costs the same memory.
+ */
+final class TableReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private long mPosition;
+    private long mEnd;
+
+    TableReader(FileChannel channel) {
+        mChannel = channel;
+    }
+
+    /** Starts reading {@code box}'s payload, skipping {@code skip} bytes of it. */
+    TableReader reset(Box box, int skip) {
+        mPosition = box.payloadOffset() + skip;
+        mEnd = box.end();
+        mBuffer.clear();
+        mBuffer.limit(0);
+        return this;
+    }
+
+    int readInt() throws IOException {
+        ensure(4);
+        return mBuffer.getInt();
+    }
+
+    long readUnsignedInt() throws IOException {
+        return readInt() & 0xFFFFFFFFL;
+    }
+
+    long readLong() throws IOException {
+        ensure(8);
+        return mBuffer.getLong();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (mBuffer.remaining() >= bytes) {
+            return;
+        }
+        mBuffer.compact();
+        final int wanted = (int) Math.min(mBuffer.remaining(), mEnd - mPosition);
+        if (mBuffer.position() + wanted < bytes) {
+            throw new IOException("Sample table ends early at " + mPosition);
+        }
+        mBuffer.limit(mBuffer.position() + wanted);
+        Box.readFully(mChannel, mBuffer, mPosition);
+        mPosition += wanted;
+        mBuffer.flip();
+    }
+}
@@ -0,0 +1,63 @@
+package org.borisveriga.soundrecorder.mp4;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output sample table built one entry at a time into a temporary file, so its size on the
+ * heap does not depend on the length of the recording.
+ */
+final class TableSpool {
+
+    private final File mFile;
+    private final DataOutputStream mOut;
+    private long mEntries;
+
+    TableSpool(File tempDir, String name) throws IOException {
+        mFile = File.createTempFile(name, ".spool", tempDir);
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile), 16 * 1024));
+    }
+
+    void writeInt(int value) throws IOException {
+        mOut.writeInt(value);
+    }
+
+    void writeLong(long value) throws IOException {
+        mOut.writeLong(value);
+    }
+
+    /** Counts one table entry; call after writing its fields. */
+    void endEntry() {
+        mEntries++;
+    }
+
+    long entries() {
+        return mEntries;
+    }
+
+    /** Appends everything written so far to {@code target} at its current position. */
+    void transferTo(FileChannel target) throws IOException {
+        mOut.flush();
+        final FileInputStream in = new FileInputStream(mFile);
+        try {
+            Mp4Concatenator.transferFully(in.getChannel(), 0, mFile.length(), target);
+        } finally {
+            in.close();
+        }
+    }
+
+    void delete() {
+        try {
+            mOut.close();
+        } catch (IOException ignored) {
+            // Only a temporary file.
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+}
@@ -0,0 +1,379 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.os.Debug;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures raw PCM on one thread and encodes it on another, writing straight to the output.
+ * The capture thread hands samples over through a {@link PcmRingBuffer}, so it never takes a
+ * lock or allocates. If the encoder falls behind far enough to fill the ring, audio is dropped
+ * rather than stalling the microphone.
+ *
+ * <p>With a {@link SilenceDetector}, the encoder thread leaves out frames it classifies as
+ * silence; the recording gets shorter and its timestamps stay contiguous. Frames are counted
+ * from the start of the recording whatever amounts the ring hands over, so each one is
+ * classified whole.
+ *
+ * <p>Crash-safe, the sink writes a staging file that {@link #stop()} hands back as the only
+ * segment, instead of the output itself.
+ *
+ * <p>The source and sink are interfaces so the pipeline does not depend on the device; see
+ * {@link AudioRecordSource} and {@link MediaCodecAacSink} for the real ones.
+ */
+class AudioRecordEngine implements RecorderEngine {
+
+    private static final String LOG_TAG = "AudioRecordEngine";
+
+    /** Ring capacity in samples; about 1.5s of mono audio at 44.1kHz. */
+    private static final int RING_CAPACITY = 1 << 16;
+    /** Samples handed to the sink at once. */
+    private static final int ENCODE_SIZE = 4096;
+    /** Encoder sleep when the ring is empty; well under the duration of one source read. */
+    private static final long IDLE_WAIT_NANOS = 5000000L;
+
+    private final PcmSource mSource;
+    private final EncoderSink mSink;
+    private final File mStaging;
+    private final PcmRingBuffer mRing = new PcmRingBuffer(RING_CAPACITY);
+    private final LevelMeter mMeter = new LevelMeter();
+    private final SilenceDetector mSilence;
+
+    /** Only taken to change state or to wait while paused; never on the capture fast path. */
+    private final Object mLock = new Object();
+    private volatile boolean mPaused;
+    private volatile boolean mStopping;
+
+    private Thread mCaptureThread;
+    private Thread mEncoderThread;
+
+    private volatile boolean mCaptureDone;
+    private volatile IOException mError;
+
+    /** Written by the encoder thread only. */
+    private volatile long mSamplesEncoded;
+    /** CPU time the encoder thread used, set when it finishes. */
+    private volatile long mEncoderCpuNanos;
+    private File mOutput;
+
+    /**
+     * @param staging file for the sink to write, or null to write the output directly
+     * @param silence detector for the source's sample rate, or null to keep all audio
+     */
+    AudioRecordEngine(PcmSource source, EncoderSink sink, File staging, SilenceDetector silence) {
+        mSource = source;
+        mSink = sink;
+        mStaging = staging;
+        mSilence = silence;
+    }
+
+    @Override
+    public void start(File output) throws IOException {
+        mOutput = mStaging != null ? mStaging : output;
+        try {
+            mSink.open(mOutput, mSource.getSampleRate(), mSource.getChannelCount());
+            mSource.start();
+        } catch (IOException | RuntimeException e) {
+            mSource.release();
+            mSink.release();
+            throw e;
+        }
+
+        mCaptureThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                capture();
+            }
+        }, "AudioCapture");
+        mEncoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encode();
+            }
+        }, "AudioEncoder");
+        mEncoderThread.start();
+        mCaptureThread.start();
+    }
+
+    @Override
+    public void pause() {
+        synchronized (mLock) {
+            mPaused = true;
+        }
+        mSource.stop();
+    }
+
+    @Override
+    public void resume() throws IOException {
+        mSource.start();
+        synchronized (mLock) {
+            mPaused = false;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public List<String> stop() throws IOException {
+        shutDown();
+        if (mRing.getOverrunSamples() > 0) {
+            Log.w(LOG_TAG, "Dropped " + mRing.getOverrunSamples() + " of "
+                    + (mRing.getSamplesWritten() + mRing.getOverrunSamples())
+                    + " samples; encoder fell behind");
+        }
+        Log.d(LOG_TAG, "Encoded " + mRing.getSamplesRead() + " samples, "
+                + mRing.getUnderruns() + " empty polls");
+        logCost("Level meter", mMeter.getSamplesProcessed(), mMeter.getProcessingNanos());
+        logEncoderCost();
+        if (mSilence != null) {
+            Log.d(LOG_TAG, "Skipped " + mSilence.getSkippedMillis() + " ms of silence");
+            logCost("Silence detection", mSilence.getSamplesProcessed(),
+                    mSilence.getProcessingNanos());
+        }
+        if (mError != null) {
+            throw mError;
+        }
+        if (mStaging != null) {
+            return Collections.singletonList(mStaging.getPath());
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void release() {
+        shutDown();
+    }
+
+    @Override
+    public String getMimeType() {
+        return mSink.getMimeType();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSource.getSampleRate();
+    }
+
+    @Override
+    public int getBitrate() {
+        return mSink.getBitrate();
+    }
+
+    @Override
+    public long getLevels() {
+        return mMeter.getLevels();
+    }
+
+    /** Counts what reached the sink, so skipped silence and dropped audio are left out. */
+    @Override
+    public long getEncodedMillis() {
+        return mSamplesEncoded * 1000
+                / ((long) mSource.getSampleRate() * mSource.getChannelCount());
+    }
+
+    @Override
+    public long getSkippedSilenceMillis() {
+        return mSilence != null ? mSilence.getSkippedMillis() : 0;
+    }
+
+    @Override
+    public String getSkippedSilence() {
+        return mSilence != null ? mSilence.getSkippedRanges() : null;
+    }
+
+    @Override
+    public double getSilenceDetectionLoad() {
+        return mSilence != null
+                ? percentOfRealTime(mSilence.getSamplesProcessed(), mSilence.getProcessingNanos())
+                : 0;
+    }
+
+    /** Analysis runs on the audio threads, so its share of real time must stay negligible. */
+    private void logCost(String stage, long samples, long nanos) {
+        if (samples == 0) {
+            return;
+        }
+        Log.d(LOG_TAG, String.format(Locale.ENGLISH, "%s: %.1f ns/sample, %.3f%% of real time",
+                stage, (double) nanos / samples, percentOfRealTime(samples, nanos)));
+    }
+
+    /** @return CPU time taken for {@code samples} as a share of the time they play for */
+    private double percentOfRealTime(long samples, long nanos) {
+        if (samples == 0) {
+            return 0;
+        }
+        final double audioNanos =
+                samples * 1e9 / (mSource.getSampleRate() * mSource.getChannelCount());
+        return 100.0 * nanos / audioNanos;
+    }
+
+    /**
+     * The sink's share is only what runs on the encoder thread: a platform codec does its
+     * work in the media server, so for AAC and Opus this is the hand-off cost, not the
+     * encoding itself.
+     */
+    private void logEncoderCost() {
+        final long samples = mRing.getSamplesRead();
+        if (samples == 0) {
+            return;
+        }
+        if (mEncoderCpuNanos > 0) {
+            logCost("Encoder thread (" + mSink.getMimeType() + ")", samples, mEncoderCpuNanos);
+        }
+        final double minutes =
+                samples / (60.0 * mSource.getSampleRate() * mSource.getChannelCount());
+        Log.d(LOG_TAG, String.format(Locale.ENGLISH, "Output: %.0f KB per minute",
+                mOutput.length() / 1024.0 / minutes));
+    }
+
+    /** Lets both threads finish, the encoder flushing whatever was captured, then releases. */
+    private void shutDown() {
+        synchronized (mLock) {
+            if (mStopping) {
+                return;
+            }
+            mStopping = true;
+            mLock.notifyAll();
+        }
+        mSource.stop();
+        join(mCaptureThread);
+        join(mEncoderThread);
+        mSource.release();
+        mSink.release();
+    }
+
+    private void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void capture() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        final short[] buffer = new short[mSource.getReadSize()];
+        try {
+            while (awaitRunning()) {
+                final int read = mSource.read(buffer, 0, buffer.length);
+                if (read > 0) {
+                    mMeter.process(buffer, 0, read);
+                    // Whatever does not fit is counted by the ring as overrun.
+                    mRing.write(buffer, 0, read);
+                } else if (isRunning()) {
+                    // Not a read cut short by pause or stop; the source is gone.
+                    mError = new IOException("Audio source failed: " + read);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            mError = new IOException("Capture interrupted", e);
+        } finally {
+            mCaptureDone = true;
+        }
+    }
+
+    private boolean awaitRunning() throws InterruptedException {
+        if (!mPaused) {
+            return !mStopping;
+        }
+        synchronized (mLock) {
+            while (mPaused && !mStopping) {
+                mLock.wait();
+            }
+            return !mStopping;
+        }
+    }
+
+    private boolean isRunning() {
+        return !mPaused && !mStopping;
+    }
+
+    private void encode() {
+        final short[] buffer = new short[ENCODE_SIZE];
+        // Start of a frame not complete yet, kept at the front of the buffer.
+        int carried = 0;
+        try {
+            while (true) {
+                // Checked before reading so samples written just before the flag are not lost.
+                final boolean captureDone = mCaptureDone;
+                final int count = mRing.read(buffer, carried, buffer.length - carried);
+                if (count == 0) {
+                    if (captureDone) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_WAIT_NANOS);
+                    continue;
+                }
+                if (mSilence == null) {
+                    write(buffer, 0, count);
+                } else {
+                    carried = writeVoiced(buffer, carried + count, false);
+                }
+            }
+            if (carried > 0) {
+                // The last frame, cut short by the end of the recording.
+                writeVoiced(buffer, carried, true);
+            }
+            mSink.close();
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Encoding failed", e);
+            setError(e);
+        } finally {
+            mEncoderCpuNanos = Debug.threadCpuTimeNanos();
+        }
+    }
+
+    /**
+     * Writes the runs of frames the detector keeps, each in one piece.
+     *
+     * @param last whether to classify an incomplete frame at the end too
+     * @return the length of the incomplete frame at the end, now moved to the front of
+     * {@code buffer} to be completed by the next read; 0 if {@code last}
+     */
+    private int writeVoiced(short[] buffer, int count, boolean last) throws IOException {
+        final int frameSize = mSilence.getFrameSize();
+        final int end = last ? count : count - count % frameSize;
+        int runStart = 0;
+        for (int offset = 0; offset < end; offset += frameSize) {
+            final int length = Math.min(frameSize, end - offset);
+            if (!mSilence.keep(buffer, offset, length)) {
+                write(buffer, runStart, offset - runStart);
+                runStart = offset + length;
+            }
+        }
+        write(buffer, runStart, end - runStart);
+        System.arraycopy(buffer, end, buffer, 0, count - end);
+        return count - end;
+    }
+
+    private void write(short[] buffer, int offset, int length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        final long samplesPerSecond = (long) mSource.getSampleRate() * mSource.getChannelCount();
+        mSink.write(buffer, offset, length, mSamplesEncoded * 1000000L / samplesPerSecond);
+        mSamplesEncoded += length;
+    }
+
+    private void setError(Exception e) {
+        if (mError == null) {
+            mError = e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+import java.io.IOException;
+
+/**
+ * Mono 16-bit PCM from the microphone. The {@link AudioRecord} is created on the first
+ * {@link #start()} so a failure surfaces where the caller expects it.
+ */
+class AudioRecordSource implements PcmSource {
+
+    private static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
+    private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    /** Samples per read; roughly 23ms at 44.1kHz, short enough to keep pause responsive. */
+    private static final int READ_SIZE = 1024;
+
+    private final int mSampleRate;
+    private AudioRecord mRecord;
+
+    AudioRecordSource(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (mRecord == null) {
+            final int minBufferSize = AudioRecord.getMinBufferSize(mSampleRate, CHANNEL_CONFIG, ENCODING);
+            if (minBufferSize <= 0) {
+                throw new IOException("Unsupported sample rate " + mSampleRate);
+            }
+            final AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC, mSampleRate,
+                    CHANNEL_CONFIG, ENCODING, Math.max(minBufferSize, READ_SIZE * 2) * 4);
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                record.release();
+                throw new IllegalStateException("AudioRecord could not be initialized");
+            }
+            mRecord = record;
+        }
+        mRecord.startRecording();
+        if (mRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            throw new IllegalStateException("Microphone is in use");
+        }
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int size) {
+        return mRecord.read(buffer, offset, size);
+    }
+
+    @Override
+    public void stop() {
+        if (mRecord != null && mRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+            mRecord.stop();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mRecord != null) {
+            mRecord.release();
+            mRecord = null;
+        }
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getChannelCount() {
+        return 1;
+    }
+
+    @Override
+    public int getReadSize() {
+        return READ_SIZE;
+    }
+}
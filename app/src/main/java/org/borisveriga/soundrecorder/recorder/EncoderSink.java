@@ -0,0 +1,33 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Consumer of 16-bit PCM samples that encodes them into a file. All calls come from the
+ * engine's encoder thread except {@link #getMimeType()} and {@link #getBitrate()}.
+ */
+interface EncoderSink {
+
+    void open(File output, int sampleRate, int channelCount) throws IOException;
+
+    /**
+     * @param presentationTimeUs time of the first sample in {@code pcm}, counted in recorded
+     *                           audio so pauses leave no gap
+     */
+    void write(short[] pcm, int offset, int length, long presentationTimeUs) throws IOException;
+
+    /**
+     * Flushes the encoder and completes the file.
+     *
+     * @throws IOException if the file could not be completed or holds no audio
+     */
+    void close() throws IOException;
+
+    /** Releases everything; safe to call after {@link #close()} or a failure. */
+    void release();
+
+    String getMimeType();
+
+    int getBitrate();
+}
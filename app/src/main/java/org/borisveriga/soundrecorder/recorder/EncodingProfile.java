@@ -0,0 +1,161 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+/**
+ * How a recording is encoded and stored. The AAC profiles produce the same MPEG-4 files
+ * MediaRecorder always has; the others need raw PCM and so always record through the
+ * AudioRecord pipeline, with a sink writing their container.
+ *
+ * <p>Size per minute of 44.1 kHz mono speech, and encoding time relative to real time.
+ * The lossy rows follow from the bit rate; their encoders are the platform's, whose cost
+ * the AudioRecord engine logs per recording. FLAC and WAV were measured on a desktop JVM.
+ * <pre>
+ * profile       size/min   encode time
+ * AAC_HE_32      ~240 KB   platform codec
+ * AAC_LC_64      ~480 KB   platform codec
+ * AAC_LC_128     ~960 KB   platform codec
+ * AAC_LC_192    ~1440 KB   platform codec
+ * OPUS_24        ~180 KB   platform codec
+ * OPUS_64        ~480 KB   platform codec
+ * FLAC          ~2440 KB   ~1.5%
+ * WAV            5168 KB   &lt;0.1%
+ * </pre>
+ */
+public enum EncodingProfile {
+
+    /** Whatever MediaRecorder picks on this device; what recordings always used. */
+    DEFAULT(Codec.AAC, MediaCodecInfo.CodecProfileLevel.AACObjectLC, 0, 0),
+    /** HE-AAC for voice notes. */
+    AAC_HE_32(Codec.AAC, MediaCodecInfo.CodecProfileLevel.AACObjectHE, 44100, 32000),
+    AAC_LC_64(Codec.AAC, MediaCodecInfo.CodecProfileLevel.AACObjectLC, 44100, 64000),
+    AAC_LC_128(Codec.AAC, MediaCodecInfo.CodecProfileLevel.AACObjectLC, 44100, 128000),
+    /** The former "high quality" setting. */
+    AAC_LC_192(Codec.AAC, MediaCodecInfo.CodecProfileLevel.AACObjectLC, 44100, 192000),
+    OPUS_24(Codec.OPUS, 0, 48000, 24000),
+    OPUS_64(Codec.OPUS, 0, 48000, 64000),
+    FLAC(Codec.FLAC, 0, 44100, 0),
+    WAV(Codec.WAV, 0, 44100, 0);
+
+    enum Codec {
+        AAC("mp4"),
+        OPUS("opus"),
+        FLAC("flac"),
+        WAV("wav");
+
+        final String extension;
+
+        Codec(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    /** AAC sample rate and bit rate when MediaRecorder is left to choose. */
+    static final int DEFAULT_SAMPLE_RATE = 44100;
+    static final int DEFAULT_BITRATE = 96000;
+
+    final Codec codec;
+    final int aacProfile;
+    /** 0 for the device default. */
+    final int sampleRate;
+    /** 0 for the device default, or for lossless profiles. */
+    final int bitrate;
+
+    EncodingProfile(Codec codec, int aacProfile, int sampleRate, int bitrate) {
+        this.codec = codec;
+        this.aacProfile = aacProfile;
+        this.sampleRate = sampleRate;
+        this.bitrate = bitrate;
+    }
+
+    /** File name extension, without the dot. */
+    public String getExtension() {
+        return codec.extension;
+    }
+
+    /**
+     * Bit rate to plan storage with, in bits per second: the configured one, the device
+     * default for AAC, and for the lossless profiles what mono speech came to in the table
+     * above.
+     */
+    public int getEstimatedBitrate() {
+        switch (codec) {
+            case WAV:
+                return getCaptureSampleRate() * 16;
+            case FLAC:
+                return getCaptureSampleRate() * 8;
+            default:
+                return bitrate > 0 ? bitrate : DEFAULT_BITRATE;
+        }
+    }
+
+    /** Whether this device can record with the profile. */
+    public boolean isSupported() {
+        switch (codec) {
+            case AAC:
+                return true;
+            case OPUS:
+                // The platform Opus encoder arrived in Android 10.
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+            default:
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        }
+    }
+
+    /** Whether MediaRecorder can record the profile, i.e. no PCM pipeline is needed. */
+    boolean isMediaRecorderCapable() {
+        return codec == Codec.AAC;
+    }
+
+    /**
+     * Whether a recording killed mid-way can be recovered: only AAC has a crash-safe form
+     * (ADTS) that the finalizer can turn back into the regular container.
+     */
+    boolean isCrashSafeCapable() {
+        return codec == Codec.AAC;
+    }
+
+    /** Sample rate to capture PCM at for this profile. */
+    int getCaptureSampleRate() {
+        return sampleRate > 0 ? sampleRate : DEFAULT_SAMPLE_RATE;
+    }
+
+    /**
+     * @param adts for AAC, write ADTS instead of MPEG-4
+     */
+    EncoderSink createSink(boolean adts) {
+        switch (codec) {
+            case OPUS:
+                return new MediaCodecOpusSink(bitrate);
+            case FLAC:
+                return new FlacSink();
+            case WAV:
+                return new WavSink();
+            default:
+                return new MediaCodecAacSink(aacProfile, bitrate > 0 ? bitrate : DEFAULT_BITRATE,
+                        adts);
+        }
+    }
+
+    int getMediaRecorderEncoder() {
+        return aacProfile == MediaCodecInfo.CodecProfileLevel.AACObjectHE
+                ? MediaRecorder.AudioEncoder.HE_AAC : MediaRecorder.AudioEncoder.AAC;
+    }
+
+    /**
+     * @return the profile stored under {@code name}, or null if there is none by that name,
+     * e.g. one written by a later version
+     */
+    public static EncodingProfile fromName(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
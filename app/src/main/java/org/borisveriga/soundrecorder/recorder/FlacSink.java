@@ -0,0 +1,500 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Lossless FLAC encoder and writer for 16-bit PCM. There is no platform FLAC encoder on most
+ * of the versions we support, so this is a small one of our own: fixed blocks of 4096
+ * samples, each channel coded with the best of FLAC's fixed polynomial predictors (or stored
+ * verbatim, or as a constant for digital silence) and a partitioned Rice code for the
+ * residual. That gets most of what libFLAC's default level does for speech at a fraction of
+ * the work; LPC would save a few percent more.
+ *
+ * <p>STREAMINFO is written last, once the sample count, frame sizes and MD5 are known.
+ */
+class FlacSink implements EncoderSink {
+
+    static final String MIME_TYPE = "audio/flac";
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int BLOCK_SIZE_CODE = 12;          // 256 << (12 - 8)
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int SAMPLE_SIZE_CODE = 4;          // 16 bits
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;       // 15 would mean escaped
+    private static final int STREAMINFO_SIZE = 34;
+    /** Where STREAMINFO starts: after "fLaC" and its metadata block header. */
+    private static final int STREAMINFO_OFFSET = 8;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+
+    private static final byte[] CRC8_TABLE = new byte[256];
+    private static final short[] CRC16_TABLE = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = (byte) crc8;
+            CRC16_TABLE[i] = (short) crc16;
+        }
+    }
+
+    private FileOutputStream mFile;
+    private BufferedOutputStream mOut;
+    private final BitWriter mBits = new BitWriter();
+    private MessageDigest mMd5;
+    private byte[] mMd5Bytes;
+
+    private int mSampleRate;
+    private int mChannels;
+    private int mSampleRateCode;
+
+    /** Interleaved samples of the block being filled. */
+    private short[] mBlock;
+    private int mBlockFill;
+    private final int[] mSamples = new int[BLOCK_SIZE];
+    private final int[][] mResiduals = new int[MAX_FIXED_ORDER + 1][BLOCK_SIZE];
+    private final long[] mPartitionSums = new long[1 << MAX_PARTITION_ORDER];
+
+    private long mFrameNumber;
+    private long mTotalSamples;
+    private int mMinFrameSize = Integer.MAX_VALUE;
+    private int mMaxFrameSize;
+
+    @Override
+    public void open(File output, int sampleRate, int channelCount) throws IOException {
+        if (channelCount < 1 || channelCount > 8 || sampleRate <= 0 || sampleRate >= 1 << 20) {
+            throw new IOException("FLAC can't store " + channelCount + " channels at "
+                    + sampleRate + " Hz");
+        }
+        mSampleRate = sampleRate;
+        mChannels = channelCount;
+        mSampleRateCode = sampleRateCode(sampleRate);
+        mBlock = new short[BLOCK_SIZE * channelCount];
+        mMd5Bytes = new byte[mBlock.length * 2];
+        try {
+            mMd5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // STREAMINFO allows an unknown MD5.
+            mMd5 = null;
+        }
+
+        mFile = new FileOutputStream(output);
+        mOut = new BufferedOutputStream(mFile, 64 * 1024);
+        mOut.write(new byte[]{'f', 'L', 'a', 'C'});
+        mOut.write(0x80);                       // last metadata block, STREAMINFO
+        mOut.write(new byte[]{0, 0, STREAMINFO_SIZE});
+        mOut.write(new byte[STREAMINFO_SIZE]);
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int length, long presentationTimeUs)
+            throws IOException {
+        int done = 0;
+        while (done < length) {
+            final int count = Math.min(length - done, mBlock.length - mBlockFill);
+            System.arraycopy(pcm, offset + done, mBlock, mBlockFill, count);
+            mBlockFill += count;
+            done += count;
+            if (mBlockFill == mBlock.length) {
+                writeFrame(BLOCK_SIZE);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        final int remaining = mBlockFill / mChannels;
+        if (remaining > 0) {
+            writeFrame(remaining);
+        }
+        if (mTotalSamples == 0) {
+            throw new IOException("Nothing was recorded");
+        }
+        mOut.flush();
+        mFile.getChannel().write(ByteBuffer.wrap(streamInfo()), STREAMINFO_OFFSET);
+        mFile.getFD().sync();
+    }
+
+    @Override
+    public void release() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Nothing more can be done about it; close() already reported real failures.
+            }
+            mOut = null;
+            mFile = null;
+        }
+    }
+
+    @Override
+    public String getMimeType() {
+        return MIME_TYPE;
+    }
+
+    /** Lossless output has no fixed bit rate. */
+    @Override
+    public int getBitrate() {
+        return 0;
+    }
+
+    private void writeFrame(int blockSize) throws IOException {
+        final BitWriter bits = mBits;
+        bits.reset();
+        bits.write(0xFFF8, 16);                 // sync code, fixed block size
+        final int blockSizeCode = blockSize == BLOCK_SIZE ? BLOCK_SIZE_CODE
+                : blockSize <= 256 ? 6 : 7;
+        bits.write(blockSizeCode, 4);
+        bits.write(mSampleRateCode, 4);
+        bits.write(mChannels - 1, 4);           // independent channels
+        bits.write(SAMPLE_SIZE_CODE, 3);
+        bits.write(0, 1);
+        writeUtf8(bits, mFrameNumber);
+        if (blockSizeCode == 6) {
+            bits.write(blockSize - 1, 8);
+        } else if (blockSizeCode == 7) {
+            bits.write(blockSize - 1, 16);
+        }
+        bits.write(crc8(bits.buffer(), bits.size()), 8);
+
+        for (int channel = 0; channel < mChannels; channel++) {
+            for (int i = 0; i < blockSize; i++) {
+                mSamples[i] = mBlock[i * mChannels + channel];
+            }
+            writeSubframe(bits, blockSize);
+        }
+        bits.alignToByte();
+        bits.write(crc16(bits.buffer(), bits.size()), 16);
+
+        mOut.write(bits.buffer(), 0, bits.size());
+        updateMd5(blockSize * mChannels);
+        mMinFrameSize = Math.min(mMinFrameSize, bits.size());
+        mMaxFrameSize = Math.max(mMaxFrameSize, bits.size());
+        mTotalSamples += blockSize;
+        mFrameNumber++;
+        mBlockFill = 0;
+    }
+
+    private void writeSubframe(BitWriter bits, int n) {
+        final int[] x = mSamples;
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            writeSubframeHeader(bits, SUBFRAME_CONSTANT);
+            bits.write(x[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        int bestOrder = -1;
+        int bestPartitionOrder = 0;
+        long bestBits = (long) n * BITS_PER_SAMPLE;
+        for (int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+            fixedResidual(x, n, order, mResiduals[order]);
+            final long partitioned = bestPartitioning(mResiduals[order], n, order);
+            final long total = (partitioned >>> 8) + (long) order * BITS_PER_SAMPLE;
+            if (total < bestBits) {
+                bestBits = total;
+                bestOrder = order;
+                bestPartitionOrder = (int) (partitioned & 0xFF);
+            }
+        }
+
+        if (bestOrder < 0) {
+            writeSubframeHeader(bits, SUBFRAME_VERBATIM);
+            for (int i = 0; i < n; i++) {
+                bits.write(x[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+        writeSubframeHeader(bits, SUBFRAME_FIXED | bestOrder);
+        for (int i = 0; i < bestOrder; i++) {
+            bits.write(x[i], BITS_PER_SAMPLE);
+        }
+        writeResidual(bits, mResiduals[bestOrder], n, bestOrder, bestPartitionOrder);
+    }
+
+    private static void writeSubframeHeader(BitWriter bits, int type) {
+        bits.write(0, 1);
+        bits.write(type, 6);
+        bits.write(0, 1);                       // no wasted bits
+    }
+
+    /** Residual of the fixed predictor of {@code order}, from sample {@code order} on. */
+    private static void fixedResidual(int[] x, int n, int order, int[] residual) {
+        switch (order) {
+            case 0:
+                System.arraycopy(x, 0, residual, 0, n);
+                break;
+            case 1:
+                for (int i = 1; i < n; i++) {
+                    residual[i] = x[i] - x[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < n; i++) {
+                    residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < n; i++) {
+                    residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < n; i++) {
+                    residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Estimates the cheapest Rice partitioning of a residual.
+     *
+     * @return the estimated size in bits shifted left by 8, or'ed with the partition order
+     */
+    private long bestPartitioning(int[] residual, int n, int predictorOrder) {
+        int maxOrder = 0;
+        while (maxOrder < MAX_PARTITION_ORDER && (n & ((1 << (maxOrder + 1)) - 1)) == 0
+                && (n >> (maxOrder + 1)) > predictorOrder) {
+            maxOrder++;
+        }
+
+        final long[] sums = mPartitionSums;
+        final int finest = 1 << maxOrder;
+        final int finestSize = n >> maxOrder;
+        for (int p = 0, i = predictorOrder; p < finest; p++) {
+            long sum = 0;
+            for (final int end = (p + 1) * finestSize; i < end; i++) {
+                sum += zigzag(residual[i]);
+            }
+            sums[p] = sum;
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        int bestOrder = 0;
+        for (int order = maxOrder; order >= 0; order--) {
+            final int partitions = 1 << order;
+            final int size = n >> order;
+            long bits = 6;                      // coding method and partition order
+            for (int p = 0; p < partitions; p++) {
+                final int count = p == 0 ? size - predictorOrder : size;
+                final int k = riceParameter(sums[p], count);
+                bits += 4 + (long) count * (k + 1) + (sums[p] >>> k);
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = order;
+            }
+            // Merge neighbours for the next coarser order.
+            for (int p = 0; p < partitions / 2; p++) {
+                sums[p] = sums[2 * p] + sums[2 * p + 1];
+            }
+        }
+        return bestBits << 8 | bestOrder;
+    }
+
+    private static void writeResidual(BitWriter bits, int[] residual, int n, int predictorOrder,
+                                      int partitionOrder) {
+        bits.write(0, 2);                       // Rice, 4-bit parameters
+        bits.write(partitionOrder, 4);
+        final int partitions = 1 << partitionOrder;
+        final int size = n >> partitionOrder;
+        int i = predictorOrder;
+        for (int p = 0; p < partitions; p++) {
+            final int end = (p + 1) * size;
+            long sum = 0;
+            for (int j = i; j < end; j++) {
+                sum += zigzag(residual[j]);
+            }
+            final int k = riceParameter(sum, end - i);
+            bits.write(k, 4);
+            for (; i < end; i++) {
+                final int u = zigzag(residual[i]);
+                bits.writeZeros(u >>> k);
+                bits.write(1, 1);
+                if (k > 0) {
+                    bits.write(u, k);
+                }
+            }
+        }
+    }
+
+    /** Rice parameter for values averaging {@code sum / count}. */
+    private static int riceParameter(long sum, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        int k = 0;
+        while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < sum) {
+            k++;
+        }
+        return k;
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /** FLAC's "UTF-8" coding of the frame number. */
+    private static void writeUtf8(BitWriter bits, long value) {
+        if (value < 0x80) {
+            bits.write((int) value, 8);
+            return;
+        }
+        int continuation = 1;
+        while (continuation < 6 && value >= 1L << (5 * continuation + 6)) {
+            continuation++;
+        }
+        final int lead = (0xFF00 >> (continuation + 1)) & 0xFF;
+        bits.write(lead | (int) (value >>> (6 * continuation)), 8);
+        for (int i = continuation - 1; i >= 0; i--) {
+            bits.write(0x80 | (int) (value >>> (6 * i)) & 0x3F, 8);
+        }
+    }
+
+    private void updateMd5(int samples) {
+        if (mMd5 == null) {
+            return;
+        }
+        for (int i = 0; i < samples; i++) {
+            mMd5Bytes[2 * i] = (byte) mBlock[i];
+            mMd5Bytes[2 * i + 1] = (byte) (mBlock[i] >> 8);
+        }
+        mMd5.update(mMd5Bytes, 0, samples * 2);
+    }
+
+    private byte[] streamInfo() {
+        final BitWriter bits = new BitWriter();
+        final int minBlockSize = mTotalSamples < BLOCK_SIZE ? (int) mTotalSamples : BLOCK_SIZE;
+        bits.write(minBlockSize, 16);
+        bits.write(minBlockSize, 16);
+        bits.write(mMinFrameSize, 24);
+        bits.write(mMaxFrameSize, 24);
+        bits.write(mSampleRate, 20);
+        bits.write(mChannels - 1, 3);
+        bits.write(BITS_PER_SAMPLE - 1, 5);
+        bits.write((int) (mTotalSamples >>> 32) & 0xF, 4);
+        bits.write((int) mTotalSamples, 32);
+        final byte[] info = Arrays.copyOf(bits.buffer(), STREAMINFO_SIZE);
+        if (mMd5 != null) {
+            System.arraycopy(mMd5.digest(), 0, info, STREAMINFO_SIZE - 16, 16);
+        }
+        return info;
+    }
+
+    private static int sampleRateCode(int sampleRate) {
+        switch (sampleRate) {
+            case 88200:
+                return 1;
+            case 176400:
+                return 2;
+            case 192000:
+                return 3;
+            case 8000:
+                return 4;
+            case 16000:
+                return 5;
+            case 22050:
+                return 6;
+            case 24000:
+                return 7;
+            case 32000:
+                return 8;
+            case 44100:
+                return 9;
+            case 48000:
+                return 10;
+            case 96000:
+                return 11;
+            default:
+                return 0;                       // taken from STREAMINFO
+        }
+    }
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /** Big-endian bit packer into a growing byte array. */
+    private static final class BitWriter {
+        private byte[] mBuffer = new byte[16 * 1024];
+        private int mSize;
+        private long mAccumulator;
+        private int mPending;
+
+        void reset() {
+            mSize = 0;
+            mPending = 0;
+        }
+
+        /** Writes the low {@code count} bits of {@code value}; count is at most 32. */
+        void write(int value, int count) {
+            mAccumulator = (mAccumulator << count) | (value & (0xFFFFFFFFL >>> (32 - count)));
+            mPending += count;
+            while (mPending >= 8) {
+                mPending -= 8;
+                if (mSize == mBuffer.length) {
+                    mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                }
+                mBuffer[mSize++] = (byte) (mAccumulator >>> mPending);
+            }
+        }
+
+        void writeZeros(int count) {
+            while (count > 32) {
+                write(0, 32);
+                count -= 32;
+            }
+            if (count > 0) {
+                write(0, count);
+            }
+        }
+
+        void alignToByte() {
+            if (mPending > 0) {
+                write(0, 8 - mPending);
+            }
+        }
+
+        /** Only whole bytes; call {@link #alignToByte()} first where it matters. */
+        byte[] buffer() {
+            return mBuffer;
+        }
+
+        int size() {
+            return mSize;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.borisveriga.soundrecorder.recorder;
+
+/**
+ * RMS and peak level of the most recent block of captured audio, in dBFS. One thread feeds
+ * blocks through {@link #process}; any thread may read the latest levels. Both values are
+ * packed into a single long so a reader never sees the RMS of one block with the peak of
+ * another, and reading allocates nothing.
+ *
+ * <p>The time spent in {@link #process} is accumulated so the cost of metering on the capture
+ * thread can be checked against the audio it covers.
+ */
+public final class LevelMeter {
+
+    /** Floor for both levels; digital silence and anything quieter report this. */
+    public static final float MIN_DBFS = -90f;
+    /** Packed levels of silence, also used when nothing is being measured. */
+    public static final long SILENT = pack(MIN_DBFS, MIN_DBFS);
+
+    private static final double FULL_SCALE = 32768.0;
+
+    private volatile long mLevels = SILENT;
+    private volatile long mSamplesProcessed;
+    private volatile long mProcessingNanos;
+
+    /** Measures one block; single writer only. */
+    void process(short[] buffer, int offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        long sumOfSquares = 0;
+        int peak = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            final int sample = buffer[i];
+            sumOfSquares += sample * sample;
+            final int magnitude = sample < 0 ? -sample : sample;
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+        }
+        mLevels = pack(toDbfs(Math.sqrt((double) sumOfSquares / length)), toDbfs(peak));
+        mSamplesProcessed += length;
+        mProcessingNanos += System.nanoTime() - start;
+    }
+
+    /** @return the latest levels; unpack with {@link #rmsOf} and {@link #peakOf} */
+    public long getLevels() {
+        return mLevels;
+    }
+
+    long getSamplesProcessed() {
+        return mSamplesProcessed;
+    }
+
+    long getProcessingNanos() {
+        return mProcessingNanos;
+    }
+
+    /** @param amplitude linear amplitude on the 16-bit scale */
+    public static float toDbfs(double amplitude) {
+        if (amplitude <= 0) {
+            return MIN_DBFS;
+        }
+        return (float) Math.max(MIN_DBFS, 20 * Math.log10(amplitude / FULL_SCALE));
+    }
+
+    /** @param rmsDbfs RMS level, or {@link Float#NaN} if the engine cannot measure it */
+    public static long pack(float rmsDbfs, float peakDbfs) {
+        return ((long) Float.floatToRawIntBits(rmsDbfs) << 32)
+                | (Float.floatToRawIntBits(peakDbfs) & 0xffffffffL);
+    }
+
+    public static float rmsOf(long levels) {
+        return Float.intBitsToFloat((int) (levels >>> 32));
+    }
+
+    public static float peakOf(long levels) {
+        return Float.intBitsToFloat((int) levels);
+    }
+}
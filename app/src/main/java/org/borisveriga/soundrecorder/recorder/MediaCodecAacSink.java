@@ -0,0 +1,170 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.mp4.Adts;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes PCM to AAC with {@link MediaCodec} and writes it to an MPEG-4 file with
+ * {@link MediaMuxer}, the same container and codec MediaRecorder produces.
+ *
+ * <p>Crash-safe, it writes ADTS instead: every frame carries its own header, so the file is
+ * playable up to the last frame that reached it. Frames are handed to the kernel about once a
+ * second, which survives the process being killed, and synced to storage every few seconds.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MediaCodecAacSink extends MediaCodecSink {
+
+    private static final String LOG_TAG = "MediaCodecAacSink";
+
+    static final String MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
+    /** About a second of audio at 44.1 kHz. */
+    private static final int FLUSH_INTERVAL_FRAMES = 43;
+    private static final long SYNC_INTERVAL_MILLIS = 5000;
+
+    private final int mAacProfile;
+    private final int mBitrate;
+    private final boolean mAdts;
+
+    private MediaMuxer mMuxer;
+    private int mTrack = -1;
+
+    private FileOutputStream mAdtsFile;
+    private BufferedOutputStream mAdtsOut;
+    private byte[] mAdtsFrame;
+    private int mAdtsSampleRate;
+    private int mChannels;
+    private int mFramesSinceFlush;
+    private long mLastSyncMillis;
+
+    /**
+     * @param aacProfile one of the {@code AACObject} constants in
+     *                   {@link MediaCodecInfo.CodecProfileLevel}
+     * @param adts       write an ADTS stream instead of an MPEG-4 file
+     */
+    MediaCodecAacSink(int aacProfile, int bitrate, boolean adts) {
+        mAacProfile = aacProfile;
+        mBitrate = bitrate;
+        mAdts = adts;
+    }
+
+    @Override
+    MediaFormat createFormat(int sampleRate, int channelCount) throws IOException {
+        final MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, mAacProfile);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitrate);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16 * 1024);
+        // HE-AAC frames are AAC-LC at half the rate with SBR signalled implicitly, which is
+        // how ADTS has to describe them.
+        mAdtsSampleRate = mAacProfile == MediaCodecInfo.CodecProfileLevel.AACObjectHE
+                ? sampleRate / 2 : sampleRate;
+        mChannels = channelCount;
+        if (mAdts && !Adts.isSupportedSampleRate(mAdtsSampleRate)) {
+            throw new IOException("ADTS can't describe " + mAdtsSampleRate + " Hz");
+        }
+        return format;
+    }
+
+    @Override
+    void openOutput(File output, int sampleRate, int channelCount) throws IOException {
+        if (mAdts) {
+            mAdtsFile = new FileOutputStream(output);
+            mAdtsOut = new BufferedOutputStream(mAdtsFile, 16 * 1024);
+            mAdtsFrame = new byte[Adts.MAX_FRAME_SIZE];
+            mLastSyncMillis = SystemClock.elapsedRealtime();
+        } else {
+            mMuxer = new MediaMuxer(output.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        }
+    }
+
+    @Override
+    void onOutputFormat(MediaFormat format) {
+        // The ADTS headers carry everything the format would.
+        if (!mAdts) {
+            mTrack = mMuxer.addTrack(format);
+            mMuxer.start();
+        }
+    }
+
+    @Override
+    void writeFrame(ByteBuffer frame, MediaCodec.BufferInfo info) throws IOException {
+        if (mAdts) {
+            writeAdtsFrame(frame, info.size);
+        } else {
+            mMuxer.writeSampleData(mTrack, frame, info);
+        }
+    }
+
+    @Override
+    void finishOutput() throws IOException {
+        if (mAdts) {
+            mAdtsOut.flush();
+            mAdtsFile.getFD().sync();
+        } else {
+            mMuxer.stop();
+        }
+    }
+
+    @Override
+    void releaseOutput() {
+        if (mMuxer != null) {
+            try {
+                mMuxer.release();
+            } catch (IllegalStateException e) {
+                // Released without ever being started.
+                Log.w(LOG_TAG, "Muxer release failed", e);
+            }
+            mMuxer = null;
+        }
+        if (mAdtsOut != null) {
+            try {
+                mAdtsOut.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not close the ADTS stream", e);
+            }
+            mAdtsOut = null;
+            mAdtsFile = null;
+        }
+    }
+
+    @Override
+    public String getMimeType() {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public int getBitrate() {
+        return mBitrate;
+    }
+
+    private void writeAdtsFrame(ByteBuffer frame, int size) throws IOException {
+        if (size > Adts.MAX_FRAME_SIZE - Adts.HEADER_SIZE) {
+            throw new IOException("AAC frame too large for ADTS: " + size);
+        }
+        Adts.writeHeader(mAdtsFrame, Adts.OBJECT_TYPE_AAC_LC, mAdtsSampleRate, mChannels, size);
+        frame.get(mAdtsFrame, Adts.HEADER_SIZE, size);
+        mAdtsOut.write(mAdtsFrame, 0, Adts.HEADER_SIZE + size);
+        if (++mFramesSinceFlush >= FLUSH_INTERVAL_FRAMES) {
+            mFramesSinceFlush = 0;
+            mAdtsOut.flush();
+            final long now = SystemClock.elapsedRealtime();
+            if (now - mLastSyncMillis >= SYNC_INTERVAL_MILLIS) {
+                mAdtsFile.getFD().sync();
+                mLastSyncMillis = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Encodes PCM to Opus with the platform encoder and writes it as Ogg Opus through
+ * {@link OggOpusWriter}.
+ */
+@TargetApi(Build.VERSION_CODES.Q)
+class MediaCodecOpusSink extends MediaCodecSink {
+
+    private static final String LOG_TAG = "MediaCodecOpusSink";
+
+    static final String MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_OPUS;
+
+    private final int mBitrate;
+
+    private FileOutputStream mFile;
+    private BufferedOutputStream mOut;
+    private OggOpusWriter mOgg;
+    private byte[] mPacket = new byte[1500];
+    private int mSampleRate;
+    private int mChannels;
+    private long mSamplesIn;
+
+    MediaCodecOpusSink(int bitrate) {
+        mBitrate = bitrate;
+    }
+
+    @Override
+    MediaFormat createFormat(int sampleRate, int channelCount) {
+        final MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate, channelCount);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mBitrate);
+        mSampleRate = sampleRate;
+        mChannels = channelCount;
+        return format;
+    }
+
+    @Override
+    void openOutput(File output, int sampleRate, int channelCount) throws IOException {
+        mFile = new FileOutputStream(output);
+        mOut = new BufferedOutputStream(mFile, 16 * 1024);
+        mOgg = new OggOpusWriter(mOut, new Random().nextInt());
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int length, long presentationTimeUs)
+            throws IOException {
+        super.write(pcm, offset, length, presentationTimeUs);
+        mSamplesIn += length / mChannels;
+    }
+
+    @Override
+    void onOutputFormat(MediaFormat format) throws IOException {
+        int preSkip = OggOpusWriter.DEFAULT_PRE_SKIP;
+        // The encoder reports its delay in nanoseconds as the second codec-specific buffer.
+        final ByteBuffer delay = format.getByteBuffer("csd-1");
+        if (delay != null && delay.remaining() >= 8) {
+            preSkip = (int) (delay.order(ByteOrder.nativeOrder()).getLong(delay.position())
+                    * 48000 / 1000000000L);
+        }
+        mOgg.writeHeaders(mChannels, mSampleRate, preSkip);
+    }
+
+    @Override
+    void writeFrame(ByteBuffer frame, MediaCodec.BufferInfo info) throws IOException {
+        if (info.size > mPacket.length) {
+            mPacket = new byte[info.size];
+        }
+        frame.get(mPacket, 0, info.size);
+        mOgg.writePacket(mPacket, 0, info.size);
+    }
+
+    @Override
+    void finishOutput() throws IOException {
+        mOgg.finish(mSamplesIn * 48000 / mSampleRate);
+        mOut.flush();
+        mFile.getFD().sync();
+    }
+
+    @Override
+    void releaseOutput() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Could not close the Ogg stream", e);
+            }
+            mOut = null;
+            mFile = null;
+        }
+    }
+
+    @Override
+    public String getMimeType() {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public int getBitrate() {
+        return mBitrate;
+    }
+}
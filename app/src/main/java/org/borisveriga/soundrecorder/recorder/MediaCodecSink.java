@@ -0,0 +1,189 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Feeds PCM through a platform {@link MediaCodec} encoder. Subclasses pick the format and
+ * write the encoded frames into their container.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+abstract class MediaCodecSink implements EncoderSink {
+
+    private static final String LOG_TAG = "MediaCodecSink";
+
+    private static final long TIMEOUT_US = 10000;
+    /** Bounds the wait for the encoder to flush after end of stream. */
+    private static final int MAX_EOS_WAITS = 200;
+
+    private MediaCodec mCodec;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private boolean mFormatKnown;
+    private int mSamplesPerSecond;
+    private long mFramesWritten;
+
+    /** @return the encoder configuration for the given input */
+    abstract MediaFormat createFormat(int sampleRate, int channelCount) throws IOException;
+
+    /** Opens the container; called once the encoder is running. */
+    abstract void openOutput(File output, int sampleRate, int channelCount) throws IOException;
+
+    /** Called once, before the first frame, with the encoder's output format. */
+    abstract void onOutputFormat(MediaFormat format) throws IOException;
+
+    /** Writes one encoded frame, positioned between its offset and limit. */
+    abstract void writeFrame(ByteBuffer frame, MediaCodec.BufferInfo info) throws IOException;
+
+    /** Completes the container after the last frame. */
+    abstract void finishOutput() throws IOException;
+
+    /** Releases the container; safe to call when it was never opened. */
+    abstract void releaseOutput();
+
+    @Override
+    public void open(File output, int sampleRate, int channelCount) throws IOException {
+        final MediaFormat format = createFormat(sampleRate, channelCount);
+        mSamplesPerSecond = sampleRate * channelCount;
+        try {
+            mCodec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mCodec.start();
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                mInputBuffers = mCodec.getInputBuffers();
+                mOutputBuffers = mCodec.getOutputBuffers();
+            }
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Could not set up the " + getMimeType() + " encoder", e);
+        }
+        openOutput(output, sampleRate, channelCount);
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int length, long presentationTimeUs)
+            throws IOException {
+        try {
+            int done = 0;
+            while (done < length) {
+                final int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+                if (index >= 0) {
+                    final ByteBuffer input = inputBuffer(index);
+                    input.clear();
+                    final ShortBuffer samples = input.order(ByteOrder.nativeOrder()).asShortBuffer();
+                    final int count = Math.min(length - done, samples.remaining());
+                    samples.put(pcm, offset + done, count);
+                    mCodec.queueInputBuffer(index, 0, count * 2,
+                            presentationTimeUs + done * 1000000L / mSamplesPerSecond, 0);
+                    done += count;
+                }
+                drain(false);
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Encoder failed", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            int index;
+            int waits = 0;
+            while ((index = mCodec.dequeueInputBuffer(TIMEOUT_US)) < 0) {
+                if (++waits > MAX_EOS_WAITS) {
+                    throw new IOException("Encoder did not accept end of stream");
+                }
+                drain(false);
+            }
+            mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drain(true);
+            if (mFramesWritten == 0) {
+                throw new IOException("Nothing was encoded");
+            }
+            finishOutput();
+        } catch (IllegalStateException e) {
+            throw new IOException("Could not complete the file", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "Encoder already stopped", e);
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+        releaseOutput();
+    }
+
+    /**
+     * Moves encoded frames into the container. With {@code endOfStream} it waits until the
+     * encoder signals the end, otherwise it returns as soon as nothing is ready.
+     */
+    private void drain(boolean endOfStream) throws IOException {
+        int waits = 0;
+        while (true) {
+            final int index = mCodec.dequeueOutputBuffer(mInfo, endOfStream ? TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                if (++waits > MAX_EOS_WAITS) {
+                    throw new IOException("Encoder did not flush");
+                }
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (mFormatKnown) {
+                    throw new IOException("Encoder output format changed twice");
+                }
+                onOutputFormat(mCodec.getOutputFormat());
+                mFormatKnown = true;
+            } else if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                //noinspection deprecation
+                mOutputBuffers = mCodec.getOutputBuffers();
+            } else if (index >= 0) {
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    // Already part of the output format.
+                    mInfo.size = 0;
+                }
+                if (mInfo.size > 0 && mFormatKnown) {
+                    final ByteBuffer output = outputBuffer(index);
+                    output.position(mInfo.offset);
+                    output.limit(mInfo.offset + mInfo.size);
+                    writeFrame(output, mInfo);
+                    mFramesWritten++;
+                }
+                mCodec.releaseOutputBuffer(index, false);
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private ByteBuffer inputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mCodec.getInputBuffer(index);
+        }
+        return mInputBuffers[index];
+    }
+
+    private ByteBuffer outputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mCodec.getOutputBuffer(index);
+        }
+        return mOutputBuffers[index];
+    }
+}
@@ -0,0 +1,124 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * Shared MediaRecorder setup: microphone, mono AAC or HE-AAC as the {@link EncodingProfile}
+ * says, in an MPEG-4 container, or in ADTS when recording crash-safe. MediaRecorder does not
+ * expose samples, so the level is only the peak reported by
+ * {@link MediaRecorder#getMaxAmplitude()}.
+ */
+abstract class MediaRecorderEngine implements RecorderEngine {
+
+    private static final String LOG_TAG = "MediaRecorderEngine";
+
+    static final String AUDIO_CODEC = "audio/mp4a-latm";
+
+    private final EncodingProfile mProfile;
+    private final boolean mAdts;
+
+    /** The recorder capturing right now, if any. */
+    MediaRecorder mRecorder;
+
+    MediaRecorderEngine(EncodingProfile profile, boolean adts) {
+        mProfile = profile;
+        mAdts = adts;
+    }
+
+    /**
+     * @return a started recorder writing to {@code path}
+     */
+    MediaRecorder startRecorder(String path) throws IOException {
+        final MediaRecorder recorder = new MediaRecorder();
+        recorder.setAudioSource(MediaRecorder.AudioSource.MIC);
+        recorder.setOutputFormat(mAdts
+                ? MediaRecorder.OutputFormat.AAC_ADTS : MediaRecorder.OutputFormat.MPEG_4);
+        recorder.setOutputFile(path);
+        recorder.setAudioEncoder(mProfile.getMediaRecorderEncoder());
+        recorder.setAudioChannels(1);
+        if (mProfile.sampleRate > 0) {
+            recorder.setAudioSamplingRate(mProfile.sampleRate);
+        }
+        if (mProfile.bitrate > 0) {
+            recorder.setAudioEncodingBitRate(mProfile.bitrate);
+        }
+        try {
+            recorder.prepare();
+            recorder.start();
+        } catch (IOException | RuntimeException e) {
+            recorder.release();
+            throw e;
+        }
+        return recorder;
+    }
+
+    /**
+     * Stops and releases {@code recorder}.
+     *
+     * @return false if the recorder had not captured anything usable yet
+     */
+    static boolean stopRecorder(MediaRecorder recorder) {
+        try {
+            recorder.stop();
+            return true;
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "stop() is called immediately after start()", e);
+            return false;
+        } finally {
+            recorder.release();
+        }
+    }
+
+    @Override
+    public String getMimeType() {
+        return AUDIO_CODEC;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mProfile.sampleRate;
+    }
+
+    @Override
+    public int getBitrate() {
+        return mProfile.bitrate;
+    }
+
+    @Override
+    public long getLevels() {
+        if (mRecorder == null) {
+            return LevelMeter.SILENT;
+        }
+        try {
+            // Peak since the previous call, which is exactly one poll interval.
+            return LevelMeter.pack(Float.NaN, LevelMeter.toDbfs(mRecorder.getMaxAmplitude()));
+        } catch (IllegalStateException e) {
+            return LevelMeter.SILENT;
+        }
+    }
+
+    /** MediaRecorder doesn't report how much it has encoded. */
+    @Override
+    public long getEncodedMillis() {
+        return -1;
+    }
+
+    /** MediaRecorder never exposes PCM, so nothing can be skipped. */
+    @Override
+    public long getSkippedSilenceMillis() {
+        return 0;
+    }
+
+    @Override
+    public String getSkippedSilence() {
+        return null;
+    }
+
+    @Override
+    public double getSilenceDetectionLoad() {
+        return 0;
+    }
+}
@@ -0,0 +1,65 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.annotation.TargetApi;
+import android.media.MediaRecorder;
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pauses one recorder in place, so resuming takes milliseconds. Normally it records straight
+ * into the output and stopping leaves nothing to merge. Crash-safe, it records ADTS into a
+ * staging file that the finalizer converts.
+ */
+@TargetApi(Build.VERSION_CODES.N)
+class NativePauseRecorderEngine extends MediaRecorderEngine {
+
+    private final File mStaging;
+
+    /**
+     * @param staging ADTS file to record into, or null to record the output directly
+     */
+    NativePauseRecorderEngine(EncodingProfile profile, File staging) {
+        super(profile, staging != null);
+        mStaging = staging;
+    }
+
+    @Override
+    public void start(File output) throws IOException {
+        mRecorder = startRecorder((mStaging != null ? mStaging : output).getPath());
+    }
+
+    @Override
+    public void pause() {
+        mRecorder.pause();
+    }
+
+    @Override
+    public void resume() {
+        mRecorder.resume();
+    }
+
+    @Override
+    public List<String> stop() throws IOException {
+        final MediaRecorder recorder = mRecorder;
+        mRecorder = null;
+        if (recorder == null || !stopRecorder(recorder)) {
+            throw new IOException("Nothing was recorded");
+        }
+        if (mStaging != null) {
+            return Collections.singletonList(mStaging.getPath());
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void release() {
+        if (mRecorder != null) {
+            mRecorder.release();
+            mRecorder = null;
+        }
+    }
+}
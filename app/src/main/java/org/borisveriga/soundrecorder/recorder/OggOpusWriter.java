@@ -0,0 +1,186 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Wraps Opus packets in an Ogg stream as RFC 7845 describes: an OpusHead page, an OpusTags
+ * page, then audio pages of about a second each. Packets are never split across pages, and
+ * every page's granule position is the 48 kHz sample count at the end of its last packet.
+ */
+final class OggOpusWriter {
+
+    private static final int GRANULE_RATE = 48000;
+    /** Encoder delay libopus reports at 48 kHz; used when the encoder doesn't say. */
+    static final int DEFAULT_PRE_SKIP = 312;
+
+    private static final int FLAG_FIRST = 0x02;
+    private static final int FLAG_LAST = 0x04;
+    private static final int MAX_SEGMENTS = 255;
+    private static final long PAGE_DURATION = GRANULE_RATE;
+    private static final byte[] VENDOR = "SoundRecorder".getBytes();
+    private static final int[] SILK_FRAME_SIZES = {480, 960, 1920, 2880};
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04C11DB7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final OutputStream mOut;
+    private final int mSerial;
+    private int mSequence;
+
+    private final byte[] mSegments = new byte[MAX_SEGMENTS];
+    private int mSegmentCount;
+    private byte[] mBody = new byte[8 * 1024];
+    private int mBodySize;
+    private final byte[] mHeader = new byte[27 + MAX_SEGMENTS];
+
+    private long mGranule;
+    private long mPageStartGranule;
+    private int mPreSkip;
+
+    OggOpusWriter(OutputStream out, int serial) {
+        mOut = out;
+        mSerial = serial;
+    }
+
+    /**
+     * Writes the two header pages.
+     *
+     * @param preSkip samples at 48 kHz the decoder has to drop at the start
+     */
+    void writeHeaders(int channels, int inputSampleRate, int preSkip) throws IOException {
+        mPreSkip = preSkip;
+        final byte[] head = new byte[19];
+        System.arraycopy("OpusHead".getBytes(), 0, head, 0, 8);
+        head[8] = 1;                            // version
+        head[9] = (byte) channels;
+        putLe(head, 10, preSkip, 2);
+        putLe(head, 12, inputSampleRate, 4);
+        // Output gain 0, channel mapping family 0: mono or stereo, no mapping table.
+        addPacket(head, 0, head.length);
+        flushPage(FLAG_FIRST);
+
+        final byte[] tags = new byte[8 + 4 + VENDOR.length + 4];
+        System.arraycopy("OpusTags".getBytes(), 0, tags, 0, 8);
+        putLe(tags, 8, VENDOR.length, 4);
+        System.arraycopy(VENDOR, 0, tags, 12, VENDOR.length);
+        addPacket(tags, 0, tags.length);
+        flushPage(0);
+        mPageStartGranule = 0;
+    }
+
+    void writePacket(byte[] packet, int offset, int length) throws IOException {
+        if (mSegmentCount + length / 255 + 1 > MAX_SEGMENTS) {
+            flushPage(0);
+        }
+        mGranule += packetSamples(packet, offset, length);
+        addPacket(packet, offset, length);
+        if (mGranule - mPageStartGranule >= PAGE_DURATION) {
+            flushPage(0);
+        }
+    }
+
+    /**
+     * Writes the last page.
+     *
+     * @param samples samples per channel that went into the encoder at 48 kHz; the end of
+     *                the stream is trimmed to that so the padding of the last packet is not
+     *                played
+     */
+    void finish(long samples) throws IOException {
+        mGranule = Math.min(mGranule, mPreSkip + samples);
+        flushPage(FLAG_LAST);
+    }
+
+    /** @return the length of an Opus packet in 48 kHz samples, from its TOC byte */
+    static int packetSamples(byte[] packet, int offset, int length) {
+        if (length < 1) {
+            return 0;
+        }
+        final int toc = packet[offset] & 0xFF;
+        final int config = toc >> 3;
+        final int frameSize;
+        if (config < 12) {
+            frameSize = SILK_FRAME_SIZES[config & 3];
+        } else if (config < 16) {
+            frameSize = (config & 1) == 0 ? 480 : 960;      // hybrid
+        } else {
+            frameSize = 120 << (config & 3);                // CELT
+        }
+        switch (toc & 3) {
+            case 0:
+                return frameSize;
+            case 3:
+                return length < 2 ? 0 : frameSize * (packet[offset + 1] & 0x3F);
+            default:
+                return 2 * frameSize;
+        }
+    }
+
+    private void addPacket(byte[] packet, int offset, int length) {
+        if (mBodySize + length > mBody.length) {
+            mBody = Arrays.copyOf(mBody, Math.max(mBody.length * 2, mBodySize + length));
+        }
+        System.arraycopy(packet, offset, mBody, mBodySize, length);
+        mBodySize += length;
+        int left = length;
+        while (left >= 255) {
+            mSegments[mSegmentCount++] = (byte) 255;
+            left -= 255;
+        }
+        mSegments[mSegmentCount++] = (byte) left;
+    }
+
+    private void flushPage(int flags) throws IOException {
+        if (mSegmentCount == 0 && (flags & FLAG_LAST) == 0) {
+            return;
+        }
+        final byte[] h = mHeader;
+        h[0] = 'O';
+        h[1] = 'g';
+        h[2] = 'g';
+        h[3] = 'S';
+        h[4] = 0;
+        h[5] = (byte) flags;
+        putLe(h, 6, mGranule, 8);
+        putLe(h, 14, mSerial, 4);
+        putLe(h, 18, mSequence++, 4);
+        putLe(h, 22, 0, 4);
+        h[26] = (byte) mSegmentCount;
+        System.arraycopy(mSegments, 0, h, 27, mSegmentCount);
+        final int headerSize = 27 + mSegmentCount;
+
+        int crc = crc(0, h, headerSize);
+        crc = crc(crc, mBody, mBodySize);
+        putLe(h, 22, crc, 4);
+
+        mOut.write(h, 0, headerSize);
+        mOut.write(mBody, 0, mBodySize);
+        mSegmentCount = 0;
+        mBodySize = 0;
+        mPageStartGranule = mGranule;
+    }
+
+    private static int crc(int crc, byte[] data, int length) {
+        for (int i = 0; i < length; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static void putLe(byte[] dst, int offset, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            dst[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+}
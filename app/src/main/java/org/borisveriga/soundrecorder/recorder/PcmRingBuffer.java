@@ -0,0 +1,141 @@
+package org.borisveriga.soundrecorder.recorder;
+
+/**
+ * Fixed-size ring of 16-bit samples handed from exactly one producer thread to exactly one
+ * consumer thread without locks or allocation. Neither side ever blocks: a write that does
+ * not fit is truncated and the rest counted as overrun, a read that finds nothing is counted
+ * as an underrun and returns 0.
+ *
+ * <p>The write and read positions live on separate cache lines (see the padding classes
+ * below) so the two threads do not invalidate each other's line on every update. Each side
+ * also caches the last position it saw of the other and only rereads the volatile when that
+ * cached value says there is not enough room or data.
+ */
+final class PcmRingBuffer extends ConsumerPadding {
+
+    private final short[] mBuffer;
+    private final int mMask;
+
+    /**
+     * @param minCapacity capacity in samples; rounded up to a power of two
+     */
+    PcmRingBuffer(int minCapacity) {
+        if (minCapacity <= 0 || minCapacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity " + minCapacity);
+        }
+        final int capacity = Integer.highestOneBit(minCapacity - 1) << 1;
+        mBuffer = new short[Math.max(capacity, 1)];
+        mMask = mBuffer.length - 1;
+    }
+
+    int capacity() {
+        return mBuffer.length;
+    }
+
+    /** Samples waiting to be read; exact only on the consumer thread. */
+    int available() {
+        return (int) (mWriteIndex - mReadIndex);
+    }
+
+    /**
+     * Producer side. Copies as many of the samples as fit.
+     *
+     * @return the number of samples written
+     */
+    int write(short[] src, int offset, int length) {
+        final long write = mWriteIndex;
+        final int capacity = mBuffer.length;
+        long free = capacity - (write - mCachedReadIndex);
+        if (free < length) {
+            mCachedReadIndex = mReadIndex;
+            free = capacity - (write - mCachedReadIndex);
+        }
+        final int count = (int) Math.min(free, length);
+        if (count < length) {
+            mOverrunSamples += length - count;
+        }
+        if (count > 0) {
+            final int start = (int) (write & mMask);
+            final int first = Math.min(count, capacity - start);
+            System.arraycopy(src, offset, mBuffer, start, first);
+            System.arraycopy(src, offset + first, mBuffer, 0, count - first);
+            mWriteIndex = write + count;
+        }
+        return count;
+    }
+
+    /**
+     * Consumer side. Copies up to {@code length} samples.
+     *
+     * @return the number of samples read, 0 if the ring was empty
+     */
+    int read(short[] dst, int offset, int length) {
+        final long read = mReadIndex;
+        long ready = mCachedWriteIndex - read;
+        if (ready < length) {
+            mCachedWriteIndex = mWriteIndex;
+            ready = mCachedWriteIndex - read;
+        }
+        final int count = (int) Math.min(ready, length);
+        if (count == 0) {
+            mUnderruns++;
+            return 0;
+        }
+        final int start = (int) (read & mMask);
+        final int first = Math.min(count, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, dst, offset, first);
+        System.arraycopy(mBuffer, 0, dst, offset + first, count - first);
+        mReadIndex = read + count;
+        return count;
+    }
+
+    long getSamplesWritten() {
+        return mWriteIndex;
+    }
+
+    long getSamplesRead() {
+        return mReadIndex;
+    }
+
+    /** Samples the producer had to discard because the ring was full. */
+    long getOverrunSamples() {
+        return mOverrunSamples;
+    }
+
+    /** Reads that found the ring empty. */
+    long getUnderruns() {
+        return mUnderruns;
+    }
+}
+
+// Field layout: the runtime keeps superclass fields ahead of subclass fields, so each
+// group of seven longs pushes the next hot field onto its own 64-byte line.
+
+@SuppressWarnings("unused")
+abstract class LeadingPadding {
+    long p01, p02, p03, p04, p05, p06, p07;
+}
+
+/** Written only by the producer. */
+abstract class ProducerFields extends LeadingPadding {
+    volatile long mWriteIndex;
+    long mCachedReadIndex;
+    volatile long mOverrunSamples;
+}
+
+@SuppressWarnings("unused")
+abstract class ProducerPadding extends ProducerFields {
+    long p11, p12, p13, p14, p15, p16, p17;
+}
+
+/** Written only by the consumer. */
+abstract class ConsumerFields extends ProducerPadding {
+    volatile long mReadIndex;
+    long mCachedWriteIndex;
+    volatile long mUnderruns;
+}
+
+@SuppressWarnings("unused")
+abstract class ConsumerPadding extends ConsumerFields {
+    long p21, p22, p23, p24, p25, p26, p27;
+}
@@ -0,0 +1,37 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import java.io.IOException;
+
+/**
+ * Producer of 16-bit PCM samples, interleaved if there is more than one channel.
+ * {@link #start()}, {@link #stop()} and {@link #release()} come from the engine's caller;
+ * {@link #read} comes from the capture thread and may be interrupted by {@link #stop()}.
+ */
+interface PcmSource {
+
+    /**
+     * Starts (or restarts after {@link #stop()}) delivering audio.
+     *
+     * @throws IOException           if the source could not be opened
+     * @throws IllegalStateException if the microphone is not available
+     */
+    void start() throws IOException;
+
+    /**
+     * Reads up to {@code size} samples, blocking until some are available.
+     *
+     * @return the number of samples read, 0 or negative if nothing could be read
+     */
+    int read(short[] buffer, int offset, int size);
+
+    void stop();
+
+    void release();
+
+    int getSampleRate();
+
+    int getChannelCount();
+
+    /** Preferred read size in samples. */
+    int getReadSize();
+}
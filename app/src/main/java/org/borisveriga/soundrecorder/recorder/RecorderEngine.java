@@ -0,0 +1,80 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * One way of capturing a recording into a file. An engine is used for a single recording:
+ * {@link #start}, any number of {@link #pause}/{@link #resume} pairs, then {@link #stop}.
+ * All calls come from the service's command thread, except {@link #getLevels()} and
+ * {@link #getEncodedMillis()}, which are polled from others.
+ */
+public interface RecorderEngine {
+
+    /**
+     * Starts capturing a recording that will end up in {@code output}.
+     *
+     * @throws IOException           if the recorder could not be prepared
+     * @throws IllegalStateException if the microphone is not available
+     */
+    void start(File output) throws IOException;
+
+    void pause();
+
+    /**
+     * @throws IOException           if the recorder could not be prepared again
+     * @throws IllegalStateException if the microphone is not available
+     */
+    void resume() throws IOException;
+
+    /**
+     * Stops capturing and releases the recorder.
+     *
+     * @return segment files that still have to be joined into the output, in order; empty
+     * if the output is already complete
+     * @throws IOException if nothing usable was recorded
+     */
+    List<String> stop() throws IOException;
+
+    /** Releases everything without producing a recording. */
+    void release();
+
+    /** MIME type of the encoded audio, e.g. {@code audio/mp4a-latm}. */
+    String getMimeType();
+
+    /** Sample rate in Hz, or 0 for the device default. */
+    int getSampleRate();
+
+    /** Bit rate in bits per second, or 0 for the device default. */
+    int getBitrate();
+
+    /**
+     * Input level right now, packed by {@link LevelMeter#pack}. Cheap enough to poll every
+     * frame.
+     */
+    long getLevels();
+
+    /**
+     * Length of the audio encoded so far, in milliseconds, counted in samples; exact once
+     * {@link #stop()} has returned.
+     *
+     * @return -1 if the engine can't count samples and the recording has to be timed instead
+     */
+    long getEncodedMillis();
+
+    /** Silence left out of the recording so far, in milliseconds. */
+    long getSkippedSilenceMillis();
+
+    /**
+     * @return where silence was left out, as described in
+     * {@link SilenceDetector#getSkippedRanges()}, or null if nothing was
+     */
+    String getSkippedSilence();
+
+    /**
+     * CPU time silence detection has taken, as a percentage of the length of the audio it
+     * went through; 0 if silence isn't detected.
+     */
+    double getSilenceDetectionLoad();
+}
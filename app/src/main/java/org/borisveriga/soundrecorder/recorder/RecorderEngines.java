@@ -0,0 +1,77 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.util.MySharedPreferences;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Picks the capture engine for a new recording.
+ */
+public class RecorderEngines {
+
+    /** Platform MediaRecorder; the default. */
+    public static final String BACKEND_MEDIA_RECORDER = "media_recorder";
+    /** AudioRecord capture encoded with MediaCodec; needs API 18 for MediaMuxer. */
+    public static final String BACKEND_AUDIO_RECORD = "audio_record";
+
+    /** Engines name the files they leave in the staging directory with this prefix. */
+    public static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String LOG_TAG = "RecorderEngines";
+
+    private RecorderEngines() {
+    }
+
+    /**
+     * @return the profile new recordings use: the chosen one if this device supports it,
+     * otherwise what the older high-quality switch implies
+     */
+    public static EncodingProfile getProfile(Context context) {
+        final EncodingProfile chosen =
+                EncodingProfile.fromName(MySharedPreferences.getPrefEncodingProfile(context));
+        if (chosen != null && chosen.isSupported()) {
+            return chosen;
+        }
+        if (chosen != null) {
+            Log.w(LOG_TAG, chosen + " is not supported on this device");
+        }
+        return MySharedPreferences.getPrefHighQuality(context)
+                ? EncodingProfile.AAC_LC_192 : EncodingProfile.DEFAULT;
+    }
+
+    /**
+     * @param profile    as returned by {@link #getProfile}
+     * @param stagingDir the recording's own directory for segments; whatever an engine leaves
+     *                   there is picked up again if the process dies mid-recording
+     */
+    public static RecorderEngine create(Context context, EncodingProfile profile, File stagingDir) {
+        final boolean crashSafe = profile.isCrashSafeCapable()
+                && MySharedPreferences.getPrefCrashSafe(context);
+        final File staging = crashSafe ? segmentFile(stagingDir, 1) : null;
+        // Skipping silence needs the PCM, which only the AudioRecord pipeline has.
+        final boolean skipSilence = MySharedPreferences.getPrefSkipSilence(context);
+        if ((skipSilence || !profile.isMediaRecorderCapable()
+                || BACKEND_AUDIO_RECORD.equals(MySharedPreferences.getPrefRecorderBackend(context)))
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            final AudioRecordSource source = new AudioRecordSource(profile.getCaptureSampleRate());
+            final SilenceDetector silence = skipSilence ? new SilenceDetector(
+                    source.getSampleRate() * source.getChannelCount(),
+                    MySharedPreferences.getPrefSilenceHangoverMillis(context)) : null;
+            return new AudioRecordEngine(source, profile.createSink(crashSafe), staging, silence);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return new NativePauseRecorderEngine(profile, staging);
+        }
+        return new SegmentedRecorderEngine(stagingDir, profile, crashSafe);
+    }
+
+    /** Segment names sort in recording order. */
+    static File segmentFile(File stagingDir, int index) {
+        return new File(stagingDir, String.format(Locale.ENGLISH, "%s%04d", SEGMENT_PREFIX, index));
+    }
+}
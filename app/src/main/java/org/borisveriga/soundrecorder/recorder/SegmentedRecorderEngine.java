@@ -0,0 +1,92 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fallback for devices without {@link MediaRecorder#pause()}: every pause stops the recorder
+ * and every resume starts a new one writing to a fresh temporary segment. The segments are
+ * joined into the output after {@link #stop()}.
+ */
+class SegmentedRecorderEngine extends MediaRecorderEngine {
+
+    private static final String LOG_TAG = "SegmentedRecorderEngine";
+
+    private final File mSegmentDir;
+    private final ArrayList<String> mSegments = new ArrayList<>();
+
+    private int mSegmentCount;
+    private String mSegmentPath;
+
+    /**
+     * @param segmentDir the recording's own staging directory
+     * @param adts       record ADTS segments, so a crash loses at most the last frame
+     */
+    SegmentedRecorderEngine(File segmentDir, EncodingProfile profile, boolean adts) {
+        super(profile, adts);
+        mSegmentDir = segmentDir;
+    }
+
+    @Override
+    public void start(File output) throws IOException {
+        startSegment();
+    }
+
+    @Override
+    public void pause() {
+        final MediaRecorder recorder = mRecorder;
+        mRecorder = null;
+        // A recorder stopped right after starting holds no usable audio; drop its segment.
+        if (stopRecorder(recorder)) {
+            mSegments.add(mSegmentPath);
+        } else {
+            deleteSegment(mSegmentPath);
+        }
+    }
+
+    @Override
+    public void resume() throws IOException {
+        startSegment();
+    }
+
+    @Override
+    public List<String> stop() throws IOException {
+        if (mRecorder != null) {
+            pause();
+        }
+        if (mSegments.isEmpty()) {
+            throw new IOException("Nothing was recorded");
+        }
+        return new ArrayList<>(mSegments);
+    }
+
+    @Override
+    public void release() {
+        if (mRecorder != null) {
+            mRecorder.release();
+            mRecorder = null;
+            deleteSegment(mSegmentPath);
+        }
+    }
+
+    private void startSegment() throws IOException {
+        mSegmentPath = RecorderEngines.segmentFile(mSegmentDir, ++mSegmentCount).getPath();
+        try {
+            mRecorder = startRecorder(mSegmentPath);
+        } catch (IOException | RuntimeException e) {
+            deleteSegment(mSegmentPath);
+            throw e;
+        }
+    }
+
+    private static void deleteSegment(String path) {
+        if (!new File(path).delete()) {
+            Log.w(LOG_TAG, "Could not remove segment " + path);
+        }
+    }
+}
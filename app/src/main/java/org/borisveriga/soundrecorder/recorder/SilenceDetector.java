@@ -0,0 +1,165 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Energy-based voice activity detection for leaving long quiet stretches out of a recording.
+ * Frames are compared against a noise floor that follows the quietest recent frames, so a
+ * steady background hum counts as silence while speech over it does not. Once speech stops,
+ * audio is still kept for the hangover time so pauses between sentences stay intact and
+ * only real gaps are cut.
+ *
+ * <p>Every skipped span is remembered by where it was cut in the output, see
+ * {@link #getSkippedRanges()}. Not thread safe; results are read after the feeding thread
+ * has finished.
+ */
+public final class SilenceDetector {
+
+    /** Default time audio is kept after the last voiced frame. */
+    public static final int DEFAULT_HANGOVER_MILLIS = 1500;
+
+    private static final int FRAMES_PER_SECOND = 50;
+    private static final double FULL_SCALE_POWER = 32768.0 * 32768.0;
+    /** A frame counts as voiced this far above the noise floor... */
+    private static final double MARGIN = dbToPower(12);
+    /** ...and above this absolute level, so a silent room is never voiced. */
+    private static final double MIN_VOICE_POWER = FULL_SCALE_POWER * dbToPower(-55);
+    private static final double MIN_FLOOR_POWER = FULL_SCALE_POWER * dbToPower(-90);
+    /** The floor creeps up 1 dB per second and drops at once to any quieter frame. */
+    private static final double FLOOR_RISE = dbToPower(1.0 / FRAMES_PER_SECOND);
+
+    private final int mSampleRate;
+    private final int mFrameSize;
+    private final long mHangoverSamples;
+
+    /** Starts just under the voicing level so speech right at the start is kept. */
+    private double mFloorPower = MIN_VOICE_POWER / MARGIN;
+    private long mHangoverLeft;
+
+    private long mKeptSamples;
+    private long mSkippedSamples;
+    private boolean mInSilence;
+    private long mSilenceStart;
+    private long mSilenceLength;
+    /** Pairs of output position and length, in samples. */
+    private long[] mRanges = new long[16];
+    private int mRangeCount;
+
+    private long mSamplesProcessed;
+    private long mProcessingNanos;
+
+    /**
+     * @param sampleRate samples per second across all channels
+     */
+    public SilenceDetector(int sampleRate, int hangoverMillis) {
+        mSampleRate = sampleRate;
+        mFrameSize = Math.max(1, sampleRate / FRAMES_PER_SECOND);
+        mHangoverSamples = (long) sampleRate * hangoverMillis / 1000;
+    }
+
+    /** Samples to pass to {@link #keep} at once; 20 ms of audio. */
+    int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Classifies one frame, at most {@link #getFrameSize()} samples long.
+     *
+     * @return true if the frame belongs in the recording
+     */
+    boolean keep(short[] pcm, int offset, int length) {
+        if (length <= 0) {
+            return true;
+        }
+        final long start = System.nanoTime();
+        long sumOfSquares = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            final int sample = pcm[i];
+            sumOfSquares += sample * sample;
+        }
+        final double power = (double) sumOfSquares / length;
+        if (power < mFloorPower) {
+            mFloorPower = Math.max(power, MIN_FLOOR_POWER);
+        } else {
+            mFloorPower *= FLOOR_RISE;
+        }
+
+        final boolean keep;
+        if (power > mFloorPower * MARGIN && power > MIN_VOICE_POWER) {
+            mHangoverLeft = mHangoverSamples;
+            keep = true;
+        } else if (mHangoverLeft > 0) {
+            mHangoverLeft -= length;
+            keep = true;
+        } else {
+            keep = false;
+        }
+
+        if (keep) {
+            if (mInSilence) {
+                endSilence();
+            }
+            mKeptSamples += length;
+        } else {
+            if (!mInSilence) {
+                mInSilence = true;
+                mSilenceStart = mKeptSamples;
+                mSilenceLength = 0;
+            }
+            mSilenceLength += length;
+            mSkippedSamples += length;
+        }
+        mSamplesProcessed += length;
+        mProcessingNanos += System.nanoTime() - start;
+        return keep;
+    }
+
+    public long getSkippedMillis() {
+        return mSkippedSamples * 1000 / mSampleRate;
+    }
+
+    /**
+     * @return the skipped spans as comma-separated {@code position+length} pairs in
+     * milliseconds, position being where the cut is in the recorded file; null if nothing
+     * was skipped
+     */
+    public String getSkippedRanges() {
+        if (mInSilence) {
+            endSilence();
+        }
+        if (mRangeCount == 0) {
+            return null;
+        }
+        final StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < mRangeCount; i += 2) {
+            if (i > 0) {
+                ranges.append(',');
+            }
+            ranges.append(String.format(Locale.ENGLISH, "%d+%d",
+                    mRanges[i] * 1000 / mSampleRate, mRanges[i + 1] * 1000 / mSampleRate));
+        }
+        return ranges.toString();
+    }
+
+    long getSamplesProcessed() {
+        return mSamplesProcessed;
+    }
+
+    long getProcessingNanos() {
+        return mProcessingNanos;
+    }
+
+    private void endSilence() {
+        mInSilence = false;
+        if (mRangeCount == mRanges.length) {
+            mRanges = Arrays.copyOf(mRanges, mRanges.length * 2);
+        }
+        mRanges[mRangeCount++] = mSilenceStart;
+        mRanges[mRangeCount++] = mSilenceLength;
+    }
+
+    private static double dbToPower(double db) {
+        return Math.pow(10, db / 10);
+    }
+}
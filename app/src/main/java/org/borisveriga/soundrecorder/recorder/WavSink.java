@@ -0,0 +1,101 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes 16-bit PCM unchanged into a RIFF/WAVE file. The chunk sizes are only known at the
+ * end, so the header is written with zero sizes and patched in {@link #close()}.
+ */
+class WavSink implements EncoderSink {
+
+    static final String MIME_TYPE = "audio/raw";
+
+    private static final int HEADER_SIZE = 44;
+    private static final int BYTES_PER_SAMPLE = 2;
+    /** RIFF sizes are 32 bits; anything beyond is still written but can't be described. */
+    private static final long MAX_DATA_SIZE = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+
+    private FileOutputStream mFile;
+    private BufferedOutputStream mOut;
+    private final ByteBuffer mBuffer =
+            ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private int mSampleRate;
+    private int mChannels;
+    private long mDataSize;
+
+    @Override
+    public void open(File output, int sampleRate, int channelCount) throws IOException {
+        mSampleRate = sampleRate;
+        mChannels = channelCount;
+        mFile = new FileOutputStream(output);
+        mOut = new BufferedOutputStream(mFile, 64 * 1024);
+        mOut.write(header(0));
+    }
+
+    @Override
+    public void write(short[] pcm, int offset, int length, long presentationTimeUs)
+            throws IOException {
+        int done = 0;
+        while (done < length) {
+            mBuffer.clear();
+            final int count = Math.min(length - done, mBuffer.capacity() / BYTES_PER_SAMPLE);
+            mBuffer.asShortBuffer().put(pcm, offset + done, count);
+            mOut.write(mBuffer.array(), 0, count * BYTES_PER_SAMPLE);
+            done += count;
+        }
+        mDataSize += (long) length * BYTES_PER_SAMPLE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mDataSize == 0) {
+            throw new IOException("Nothing was recorded");
+        }
+        mOut.flush();
+        mFile.getChannel().write(ByteBuffer.wrap(header(Math.min(mDataSize, MAX_DATA_SIZE))), 0);
+        mFile.getFD().sync();
+    }
+
+    @Override
+    public void release() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // Nothing more can be done about it; close() already reported real failures.
+            }
+            mOut = null;
+            mFile = null;
+        }
+    }
+
+    @Override
+    public String getMimeType() {
+        return MIME_TYPE;
+    }
+
+    @Override
+    public int getBitrate() {
+        return mSampleRate * mChannels * BYTES_PER_SAMPLE * 8;
+    }
+
+    private byte[] header(long dataSize) {
+        final ByteBuffer b = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        b.put(new byte[]{'R', 'I', 'F', 'F'}).putInt((int) (dataSize + HEADER_SIZE - 8));
+        b.put(new byte[]{'W', 'A', 'V', 'E'});
+        b.put(new byte[]{'f', 'm', 't', ' '}).putInt(16);
+        b.putShort((short) 1);                  // PCM
+        b.putShort((short) mChannels);
+        b.putInt(mSampleRate);
+        b.putInt(mSampleRate * mChannels * BYTES_PER_SAMPLE);
+        b.putShort((short) (mChannels * BYTES_PER_SAMPLE));
+        b.putShort((short) (BYTES_PER_SAMPLE * 8));
+        b.put(new byte[]{'d', 'a', 't', 'a'}).putInt((int) dataSize);
+        return b.array();
+    }
+}
@@ -0,0 +1,140 @@
+package org.borisveriga.soundrecorder.services;
+
+import org.borisveriga.soundrecorder.model.dao.RecorderState;
+import org.borisveriga.soundrecorder.util.Command;
+
+import java.util.Locale;
+
+/**
+ * The state machine behind {@link RecordingService}: which state every command leads to from
+ * every state, and the bookkeeping for the queue commands wait in before they are carried out
+ * one at a time on the service's command thread.
+ *
+ * <p>A command is checked twice. When it is offered, against the state all commands already
+ * queued will leave the recorder in, so a command that would change nothing there, such as a
+ * second START from a double tap, is dropped before it is queued. When it runs, against the
+ * state the recorder is really in, which differs from the expected one only if an earlier
+ * command failed.
+ *
+ * <p>PREPARING is only ever seen from outside the command thread, while a command is being
+ * carried out; no command starts from it.
+ */
+final class RecorderCommands {
+
+    private static final int COMMAND_COUNT = 3;
+    private static final RecorderState[] STATES = RecorderState.values();
+
+    /**
+     * State reached by a command, indexed by state and {@link Command}; null if the command
+     * means nothing in that state. STOP in STOPPED leads back to STOPPED: nothing is recorded,
+     * but the service is still released.
+     */
+    private static final RecorderState[][] TRANSITIONS = new RecorderState[STATES.length][];
+
+    static {
+        TRANSITIONS[RecorderState.STOPPED.ordinal()] = row(RecorderState.RECORDING, null, RecorderState.STOPPED);
+        TRANSITIONS[RecorderState.PREPARING.ordinal()] = row(null, null, null);
+        TRANSITIONS[RecorderState.RECORDING.ordinal()] = row(null, RecorderState.PAUSED, RecorderState.STOPPED);
+        TRANSITIONS[RecorderState.PAUSED.ordinal()] = row(RecorderState.RECORDING, null, RecorderState.STOPPED);
+    }
+
+    private static RecorderState[] row(RecorderState start, RecorderState pause, RecorderState stop) {
+        final RecorderState[] row = new RecorderState[COMMAND_COUNT];
+        row[Command.START] = start;
+        row[Command.PAUSE] = pause;
+        row[Command.STOP] = stop;
+        return row;
+    }
+
+    /** State all queued commands lead to; guarded by this. */
+    private RecorderState mQueuedState = RecorderState.STOPPED;
+    /** Commands offered and not handled yet; guarded by this. */
+    private int mQueued;
+
+    // Time from offering a command to its completion, per transition; command thread only.
+    private final long[][] mCounts = new long[STATES.length][STATES.length];
+    private final long[][] mTotalNanos = new long[STATES.length][STATES.length];
+    private final long[][] mMaxNanos = new long[STATES.length][STATES.length];
+    private long mIgnored;
+
+    /**
+     * @return the state {@code command} leads to from {@code from}, or null if it is to be
+     * ignored there
+     */
+    static RecorderState target(RecorderState from, @Command int command) {
+        if (command < 0 || command >= COMMAND_COUNT) {
+            return null;
+        }
+        return TRANSITIONS[from.ordinal()][command];
+    }
+
+    /**
+     * Called from any thread before queueing {@code command}. Hold this object's lock until
+     * the command is queued, so commands are queued in the order they were checked.
+     *
+     * @return false if the command is to be dropped because it would change nothing after the
+     * commands already queued
+     */
+    synchronized boolean offer(@Command int command) {
+        final RecorderState target = target(mQueuedState, command);
+        if (target == null || (target == mQueuedState && mQueued > 0)) {
+            return false;
+        }
+        mQueuedState = target;
+        mQueued++;
+        return true;
+    }
+
+    /** State the recorder will be in once every queued command has run. Any thread. */
+    synchronized RecorderState getExpectedState() {
+        return mQueuedState;
+    }
+
+    /**
+     * Called on the command thread once a command was carried out or ignored.
+     *
+     * @param from         state the command found
+     * @param to           state it left, or null if it was ignored
+     * @param offeredNanos {@link System#nanoTime()} when it was offered
+     */
+    void onHandled(RecorderState from, RecorderState to, long offeredNanos) {
+        if (to == null) {
+            mIgnored++;
+        } else {
+            final long nanos = System.nanoTime() - offeredNanos;
+            final int i = from.ordinal();
+            final int j = to.ordinal();
+            mCounts[i][j]++;
+            mTotalNanos[i][j] += nanos;
+            mMaxNanos[i][j] = Math.max(mMaxNanos[i][j], nanos);
+        }
+        synchronized (this) {
+            mQueued--;
+            if (mQueued == 0) {
+                // Back in step with the recorder, even if a command failed on the way.
+                mQueuedState = to != null ? to : from;
+            }
+        }
+    }
+
+    /**
+     * One line per transition taken: how often, and the average and longest time from the
+     * command being offered to its completion. Command thread only.
+     */
+    String describeLatencies() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STATES.length; i++) {
+            for (int j = 0; j < STATES.length; j++) {
+                if (mCounts[i][j] == 0) {
+                    continue;
+                }
+                sb.append(String.format(Locale.ENGLISH, "%s -> %s: %d, avg %.2f ms, max %.2f ms%n",
+                        STATES[i], STATES[j], mCounts[i][j],
+                        mTotalNanos[i][j] / (double) mCounts[i][j] / 1e6,
+                        mMaxNanos[i][j] / 1e6));
+            }
+        }
+        sb.append("ignored: ").append(mIgnored);
+        return sb.toString();
+    }
+}
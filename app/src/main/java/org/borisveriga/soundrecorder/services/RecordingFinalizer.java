@@ -0,0 +1,352 @@
+package org.borisveriga.soundrecorder.services;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.coremedia.iso.boxes.Container;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+import com.googlecode.mp4parser.authoring.tracks.AppendTrack;
+
+import org.borisveriga.soundrecorder.R;
+import org.borisveriga.soundrecorder.model.local.DBHelper;
+import org.borisveriga.soundrecorder.model.local.RecordingsReconciler;
+import org.borisveriga.soundrecorder.mp4.Adts;
+import org.borisveriga.soundrecorder.mp4.Mp4Concatenator;
+import org.borisveriga.soundrecorder.recorder.EncodingProfile;
+import org.borisveriga.soundrecorder.recorder.RecorderEngine;
+import org.borisveriga.soundrecorder.util.EventBroadcaster;
+import org.borisveriga.soundrecorder.util.MediaProbe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Turns the temporary segments of a stopped recording into the final file, adds it to the
+ * database and removes the segments. Jobs run one at a time on a background thread owned by
+ * the process rather than by {@link RecordingService}, so a new recording can start while the
+ * previous one is still being written and nothing is lost when the service is unbound.
+ * Progress is reported through {@link EventBroadcaster#finalizationProgress}.
+ */
+public class RecordingFinalizer {
+
+    private static final String LOG_TAG = "RecordingFinalizer";
+
+    /** Share of the progress bar spent reading segments; the rest is writing the output. */
+    private static final int READ_PROGRESS_PERCENT = 80;
+
+    private static RecordingFinalizer sInstance;
+
+    private final Context mContext;
+    private final DBHelper mDatabase;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mWorker;
+
+    /** Main thread only. */
+    private int mPending;
+    private final List<Runnable> mIdleActions = new ArrayList<>();
+
+    static final class Job {
+        final String fileName;
+        final String filePath;
+        final List<String> segments;
+        final long durationMillis;
+        final String codec;
+        final int sampleRate;
+        final int bitrate;
+        /** Name of the {@link EncodingProfile} recorded with. */
+        final String encodingProfile;
+        /** Directory holding the segments and their journal; removed once finalized. */
+        final File stagingDir;
+        /** Silence left out while recording, see {@link RecorderEngine#getSkippedSilence()}. */
+        final String skippedSilence;
+        final long skippedSilenceMillis;
+        /** See {@link RecorderEngine#getSilenceDetectionLoad()}. */
+        double silenceDetectionLoad;
+        /** Set if this is one segment of a long recording. */
+        SegmentLink segment;
+        /** Whether durationMillis was counted in samples rather than timed. */
+        boolean durationCounted;
+        /** Length of the merged output as measured while writing it; worker thread only. */
+        long measuredDurationMillis;
+        /** Where the recording was saved; differs from filePath once a staged one was moved. */
+        String savedPath;
+
+        Job(String fileName, String filePath, List<String> segments, long durationMillis,
+            String codec, int sampleRate, int bitrate, String encodingProfile, File stagingDir,
+            String skippedSilence, long skippedSilenceMillis) {
+            this.fileName = fileName;
+            this.filePath = filePath;
+            this.segments = segments;
+            this.durationMillis = durationMillis;
+            this.codec = codec;
+            this.sampleRate = sampleRate;
+            this.bitrate = bitrate;
+            this.encodingProfile = encodingProfile;
+            this.stagingDir = stagingDir;
+            this.skippedSilence = skippedSilence;
+            this.skippedSilenceMillis = skippedSilenceMillis;
+            this.savedPath = filePath;
+        }
+    }
+
+    public static synchronized RecordingFinalizer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RecordingFinalizer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private RecordingFinalizer(Context context) {
+        mContext = context;
+        mDatabase = DBHelper.getInstance(context);
+        mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+    }
+
+    /** Main thread only. */
+    void submit(final Job job) {
+        mPending++;
+        mWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean processed;
+                try {
+                    processed = process(job);
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Finalizing " + job.filePath + " failed", e);
+                    processed = false;
+                }
+                // Listed, or given up on; either way the reconciler may look at it again.
+                RecordingsReconciler.getInstance(mContext).release(Collections.singleton(
+                        StagedRecordings.listedPath(mContext, job.filePath)));
+                final boolean ok = processed;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFinished(job, ok);
+                    }
+                });
+            }
+        });
+    }
+
+    public boolean isIdle() {
+        return mPending == 0;
+    }
+
+    /**
+     * Runs {@code action} on the main thread once every submitted job has finished, or right
+     * away if there is nothing to do. Main thread only.
+     */
+    public void runWhenIdle(Runnable action) {
+        if (mPending == 0) {
+            action.run();
+        } else {
+            mIdleActions.add(action);
+        }
+    }
+
+    private void onFinished(Job job, boolean ok) {
+        mPending--;
+        if (ok && job.segment != null && !job.segment.last) {
+            // Rotated out mid-recording; the recording as a whole is announced when it ends.
+            Log.d(LOG_TAG, "Segment " + job.segment.index + " saved to " + job.filePath);
+        } else if (ok) {
+            String message = mContext.getString(R.string.toast_recording_finish) + " " + job.savedPath;
+            if (job.skippedSilenceMillis > 0) {
+                // What the skipped audio would have taken at the encoder's bit rate.
+                final long savedBytes = job.skippedSilenceMillis * job.bitrate / 8000;
+                message += "\n" + mContext.getString(R.string.toast_silence_skipped,
+                        job.skippedSilenceMillis / 1000,
+                        Formatter.formatShortFileSize(mContext, savedBytes),
+                        job.silenceDetectionLoad);
+            }
+            Toast.makeText(mContext, message, Toast.LENGTH_LONG).show();
+        } else {
+            EventBroadcaster.send(mContext, R.string.error_finalize_recording);
+        }
+        EventBroadcaster.finalizationFinished(mContext, ok ? job.savedPath : null, mPending);
+        if (mPending == 0) {
+            final List<Runnable> actions = new ArrayList<>(mIdleActions);
+            mIdleActions.clear();
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+    }
+
+    /** Runs on the worker thread. */
+    private boolean process(Job job) {
+        final long started = System.currentTimeMillis();
+        progress(job, 0);
+        if (!job.segments.isEmpty() && !makeSingleFile(job)) {
+            // Keep the segments so nothing recorded is lost; only the output is discarded.
+            if (!new File(job.filePath).delete()) {
+                Log.w(LOG_TAG, "Could not remove incomplete " + job.filePath);
+            }
+            return false;
+        }
+
+        long durationMillis = job.measuredDurationMillis > 0
+                ? job.measuredDurationMillis : job.durationMillis;
+        if (job.measuredDurationMillis <= 0 && !job.durationCounted) {
+            // The clock runs on through the recorder's start and stop latency at every pause,
+            // and a recording recovered after a crash was never timed; the file knows better.
+            final long probedMillis = MediaProbe.probe(job.filePath).durationMillis;
+            if (probedMillis > 0) {
+                durationMillis = probedMillis;
+            }
+        }
+        try {
+            if (job.segment != null) {
+                mDatabase.addSegment(job.segment.recordingName, job.segment.firstSegmentPath,
+                        job.segment.index, job.filePath, durationMillis, job.codec,
+                        job.sampleRate, job.bitrate, job.encodingProfile).get();
+            } else {
+                mDatabase.addRecording(job.fileName, job.filePath, durationMillis, job.codec,
+                        job.sampleRate, job.bitrate, job.encodingProfile, job.skippedSilence).get();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Could not add " + job.filePath + " to the database", e);
+            return false;
+        }
+
+        TempSegmentRegistry.getInstance().release(job.segments, job.stagingDir);
+        Log.i(LOG_TAG, "Finalized " + job.segments.size() + " segments into " + job.filePath
+                + " in " + (System.currentTimeMillis() - started) + " ms");
+        if (StagedRecordings.isStaged(mContext, job.filePath)) {
+            // Already saved and listed; if the move fails it is retried at the next start.
+            job.savedPath = StagedRecordings.migrate(mDatabase, new File(job.filePath));
+        }
+        return true;
+    }
+
+    private boolean makeSingleFile(Job job) {
+        return moveSingleSegment(job) || concatenate(job) || mergeWithMp4Parser(job);
+    }
+
+    /**
+     * A recording that was never paused is already complete; it only needs to move. ADTS
+     * output from crash-safe recording still has to be put into MPEG-4.
+     */
+    private boolean moveSingleSegment(Job job) {
+        if (job.segments.size() != 1) {
+            return false;
+        }
+        final File segment = new File(job.segments.get(0));
+        return !Adts.isAdts(segment) && segment.renameTo(new File(job.filePath));
+    }
+
+    /**
+     * Streams the segments into the output in constant memory. Fails for anything that isn't
+     * a plain single-track MPEG-4 or ADTS file, e.g. an MPEG-4 segment cut short by a crash.
+     */
+    private boolean concatenate(final Job job) {
+        final List<File> segments = new ArrayList<>(job.segments.size());
+        for (String segment : job.segments) {
+            segments.add(new File(segment));
+        }
+        try {
+            job.measuredDurationMillis = new Mp4Concatenator(mContext.getCacheDir()).concat(segments, new File(job.filePath),
+                    new Mp4Concatenator.ProgressListener() {
+                        @Override
+                        public void onSegmentCopied(int done, int total) {
+                            progress(job, done * 100 / total);
+                        }
+                    });
+            return true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Streaming merge of " + job.filePath + " failed, using mp4parser", e);
+            return false;
+        }
+    }
+
+    /** Older merge that builds the whole movie in memory; kept as a fallback. */
+    private boolean mergeWithMp4Parser(Job job) {
+        ArrayList<Track> tracks = new ArrayList<>();
+        Movie finalMovie = new Movie();
+        for (int i = 0; i < job.segments.size(); i++) {
+            try {
+                Movie movie = MovieCreator.build(job.segments.get(i));
+                tracks.addAll(movie.getTracks());
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not read segment " + job.segments.get(i), e);
+                return false;
+            } catch (NullPointerException exc) {
+                Log.w(LOG_TAG, "Skipping unreadable segment " + job.segments.get(i), exc);
+            }
+            progress(job, (i + 1) * READ_PROGRESS_PERCENT / job.segments.size());
+        }
+
+        if (tracks.size() > 0) {
+            try {
+                finalMovie.addTrack(new AppendTrack(tracks.toArray(new Track[0])));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Could not append tracks", e);
+            }
+        }
+
+        final Container mp4file;
+        final FileChannel fc;
+        try {
+            mp4file = new DefaultMp4Builder().build(finalMovie);
+            fc = new FileOutputStream(new File(job.filePath)).getChannel();
+        } catch (NoSuchElementException | IOException e) {
+            Log.e(LOG_TAG, "Could not build " + job.filePath, e);
+            return false;
+        }
+
+        boolean ok = true;
+        try {
+            mp4file.writeContainer(fc);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Could not write " + job.filePath, e);
+            ok = false;
+        } finally {
+            try {
+                fc.close();
+            } catch (IOException exc) {
+                Log.e(LOG_TAG, "Could not close " + job.filePath, exc);
+                ok = false;
+            }
+        }
+        progress(job, 100);
+        return ok;
+    }
+
+    private void progress(final Job job, final int percent) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                EventBroadcaster.finalizationProgress(mContext, job.filePath, percent);
+            }
+        });
+    }
+}
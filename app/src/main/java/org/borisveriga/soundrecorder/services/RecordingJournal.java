@@ -0,0 +1,219 @@
+package org.borisveriga.soundrecorder.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.recorder.RecorderEngines;
+import org.borisveriga.soundrecorder.util.Paths;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * What it takes to finish a recording the process did not live to finalize. Every recording
+ * gets its own staging directory holding its segments and this journal; the journal is
+ * written before capture starts and disappears with the directory once the recording is in
+ * the database.
+ */
+final class RecordingJournal {
+
+    private static final String LOG_TAG = "RecordingJournal";
+
+    private static final String JOURNAL_FILE = "journal.properties";
+    private static final String DIRECTORY_PREFIX = "recording-";
+
+    private static final String KEY_FILE_NAME = "fileName";
+    private static final String KEY_FILE_PATH = "filePath";
+    private static final String KEY_CODEC = "codec";
+    private static final String KEY_SAMPLE_RATE = "sampleRate";
+    private static final String KEY_BITRATE = "bitrate";
+    private static final String KEY_ENCODING_PROFILE = "encodingProfile";
+    private static final String KEY_ATTEMPTS = "recoveryAttempts";
+    private static final String KEY_RECORDING_NAME = "recordingName";
+    private static final String KEY_FIRST_SEGMENT_PATH = "firstSegmentPath";
+    private static final String KEY_SEGMENT_INDEX = "segmentIndex";
+
+    final File dir;
+    final String fileName;
+    final String filePath;
+    final String codec;
+    final int sampleRate;
+    final int bitrate;
+    final String encodingProfile;
+    /** Set if the recording is split into segments and this is one of them. */
+    SegmentLink segment;
+    int recoveryAttempts;
+
+    RecordingJournal(File dir, String fileName, String filePath, String codec, int sampleRate,
+                     int bitrate, String encodingProfile) {
+        this.dir = dir;
+        this.fileName = fileName;
+        this.filePath = filePath;
+        this.codec = codec;
+        this.sampleRate = sampleRate;
+        this.bitrate = bitrate;
+        this.encodingProfile = encodingProfile;
+    }
+
+    /** Parent of every staging directory; segments from older versions also live here. */
+    static File root(Context context) {
+        return new File(Paths.combine(context.getExternalCacheDir(), Paths.SOUND_RECORDER_FOLDER));
+    }
+
+    static File newDirectory(Context context) throws IOException {
+        if (context.getExternalCacheDir() == null) {
+            throw new IOException("External storage is not available");
+        }
+        final File root = root(context);
+        long stamp = System.currentTimeMillis();
+        File dir;
+        do {
+            dir = new File(root, DIRECTORY_PREFIX + stamp++);
+        } while (dir.exists());
+        if (!dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        return dir;
+    }
+
+    /** Staging directories left on disk, oldest first. */
+    static List<File> directories(Context context) {
+        final List<File> result = new ArrayList<>();
+        if (context.getExternalCacheDir() == null) {
+            return result;
+        }
+        final File[] listing = root(context).listFiles();
+        if (listing == null) {
+            return result;
+        }
+        Arrays.sort(listing);
+        for (File file : listing) {
+            if (file.isDirectory() && file.getName().startsWith(DIRECTORY_PREFIX)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /** @return when the staging directory was created, in wall-clock milliseconds */
+    static long createdAt(File dir) {
+        try {
+            return Long.parseLong(dir.getName().substring(DIRECTORY_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /** @return the journal in {@code dir}, or null if there is none or it can't be read */
+    static RecordingJournal read(File dir) {
+        final Properties properties = new Properties();
+        try {
+            final FileInputStream in = new FileInputStream(new File(dir, JOURNAL_FILE));
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            final RecordingJournal journal = new RecordingJournal(dir,
+                    properties.getProperty(KEY_FILE_NAME), properties.getProperty(KEY_FILE_PATH),
+                    properties.getProperty(KEY_CODEC),
+                    Integer.parseInt(properties.getProperty(KEY_SAMPLE_RATE, "0")),
+                    Integer.parseInt(properties.getProperty(KEY_BITRATE, "0")),
+                    properties.getProperty(KEY_ENCODING_PROFILE));
+            journal.recoveryAttempts = Integer.parseInt(properties.getProperty(KEY_ATTEMPTS, "0"));
+            final String firstSegmentPath = properties.getProperty(KEY_FIRST_SEGMENT_PATH);
+            if (firstSegmentPath != null) {
+                // Whatever segment the process died in was the last one.
+                journal.segment = new SegmentLink(properties.getProperty(KEY_RECORDING_NAME),
+                        firstSegmentPath,
+                        Integer.parseInt(properties.getProperty(KEY_SEGMENT_INDEX, "1")), true);
+            }
+            if (journal.fileName == null || journal.filePath == null) {
+                return null;
+            }
+            return journal;
+        } catch (IOException | NumberFormatException e) {
+            Log.w(LOG_TAG, "Unreadable journal in " + dir, e);
+            return null;
+        }
+    }
+
+    /** Replaces the journal atomically, so a crash while writing leaves the old one. */
+    void write() throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(KEY_FILE_NAME, fileName);
+        properties.setProperty(KEY_FILE_PATH, filePath);
+        if (codec != null) {
+            properties.setProperty(KEY_CODEC, codec);
+        }
+        properties.setProperty(KEY_SAMPLE_RATE, Integer.toString(sampleRate));
+        properties.setProperty(KEY_BITRATE, Integer.toString(bitrate));
+        if (encodingProfile != null) {
+            properties.setProperty(KEY_ENCODING_PROFILE, encodingProfile);
+        }
+        properties.setProperty(KEY_ATTEMPTS, Integer.toString(recoveryAttempts));
+        if (segment != null) {
+            properties.setProperty(KEY_RECORDING_NAME, segment.recordingName);
+            properties.setProperty(KEY_FIRST_SEGMENT_PATH, segment.firstSegmentPath);
+            properties.setProperty(KEY_SEGMENT_INDEX, Integer.toString(segment.index));
+        }
+
+        final File temp = new File(dir, JOURNAL_FILE + ".tmp");
+        final FileOutputStream out = new FileOutputStream(temp);
+        try {
+            properties.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(new File(dir, JOURNAL_FILE))) {
+            throw new IOException("Could not replace the journal in " + dir);
+        }
+    }
+
+    /** Segment files in recording order. */
+    List<String> segments() {
+        final List<String> result = new ArrayList<>();
+        final File[] listing = dir.listFiles();
+        if (listing == null) {
+            return result;
+        }
+        Arrays.sort(listing);
+        for (File file : listing) {
+            if (file.isFile() && file.getName().startsWith(RecorderEngines.SEGMENT_PREFIX)) {
+                result.add(file.getPath());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Removes the directory with whatever is left in it.
+     *
+     * @return the size of the files removed
+     */
+    static long delete(File dir) {
+        long bytes = 0;
+        final File[] listing = dir.listFiles();
+        if (listing != null) {
+            for (File file : listing) {
+                final long length = file.length();
+                if (file.delete()) {
+                    bytes += length;
+                } else {
+                    Log.w(LOG_TAG, "Could not remove " + file);
+                }
+            }
+        }
+        if (!dir.delete()) {
+            Log.w(LOG_TAG, "Could not remove " + dir);
+        }
+        return bytes;
+    }
+}
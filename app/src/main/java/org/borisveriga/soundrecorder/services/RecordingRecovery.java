@@ -0,0 +1,119 @@
+package org.borisveriga.soundrecorder.services;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.model.local.RecordingsReconciler;
+import org.borisveriga.soundrecorder.mp4.Mp4Concatenator;
+import org.borisveriga.soundrecorder.util.FileIoPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finishes recordings the process died in the middle of. Their staging directories outlive
+ * the process; at startup whatever is still usable in them goes through the
+ * {@link RecordingFinalizer} like a normally stopped recording.
+ */
+public class RecordingRecovery {
+
+    private static final String LOG_TAG = "RecordingRecovery";
+
+    /** A recording that fails this often is left on disk rather than retried forever. */
+    static final int MAX_ATTEMPTS = 3;
+
+    private RecordingRecovery() {
+    }
+
+    /**
+     * Looks for abandoned recordings on a background thread. Only directories created before
+     * this call are considered, so a recording started meanwhile is never touched.
+     */
+    public static void schedule(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final long cutoff = System.currentTimeMillis();
+        FileIoPool.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                for (File dir : RecordingJournal.directories(appContext)) {
+                    if (RecordingJournal.createdAt(dir) < cutoff) {
+                        recover(appContext, dir);
+                    }
+                }
+                // Only once recovery has claimed what it can use.
+                TempSegmentRegistry.getInstance().sweep(appContext, cutoff);
+                // Posted after the recovered recordings, so they are submitted by then.
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        RecordingFinalizer.getInstance(appContext).runWhenIdle(new Runnable() {
+                            @Override
+                            public void run() {
+                                StagedRecordings.resume(appContext, cutoff);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    private static void recover(final Context context, File dir) {
+        final RecordingJournal journal = RecordingJournal.read(dir);
+        if (journal == null) {
+            Log.w(LOG_TAG, "No journal in " + dir + ", removing it");
+            TempSegmentRegistry.getInstance().release(dir);
+            return;
+        }
+        if (journal.recoveryAttempts >= MAX_ATTEMPTS) {
+            Log.w(LOG_TAG, "Giving up on " + journal.filePath + ", segments kept in " + dir);
+            return;
+        }
+
+        final List<String> segments = new ArrayList<>();
+        for (String segment : journal.segments()) {
+            final File file = new File(segment);
+            if (Mp4Concatenator.isUsableSegment(file)) {
+                segments.add(segment);
+            } else if (!file.delete()) {
+                Log.w(LOG_TAG, "Could not remove unusable segment " + segment);
+            }
+        }
+        if (segments.isEmpty()) {
+            // Nothing was captured; release the reserved name unless something real is there.
+            final File output = new File(journal.filePath);
+            if (output.length() == 0 && output.exists() && !output.delete()) {
+                Log.w(LOG_TAG, "Could not release " + output);
+            }
+            StagedRecordings.releaseTarget(context, journal.filePath);
+            TempSegmentRegistry.getInstance().release(dir);
+            return;
+        }
+
+        journal.recoveryAttempts++;
+        try {
+            journal.write();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not update the journal in " + dir, e);
+        }
+        Log.i(LOG_TAG, "Recovering " + segments.size() + " segments into " + journal.filePath);
+        final RecordingFinalizer.Job job = new RecordingFinalizer.Job(journal.fileName,
+                journal.filePath, segments, 0, journal.codec, journal.sampleRate, journal.bitrate,
+                journal.encodingProfile, dir, null, 0);
+        job.segment = journal.segment;
+        // Rebuilt in place; the finalizer releases it once it is listed.
+        RecordingsReconciler.getInstance(context).hold(Collections.singleton(
+                StagedRecordings.listedPath(context, journal.filePath)));
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                RecordingFinalizer.getInstance(context).submit(job);
+            }
+        });
+    }
+}
@@ -2,61 +2,99 @@ package org.borisveriga.soundrecorder.services;
 
 import android.app.Service;
 import android.content.Intent;
-import android.media.MediaRecorder;
 import android.os.Binder;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 
-import com.coremedia.iso.boxes.Container;
-import com.googlecode.mp4parser.authoring.Movie;
-import com.googlecode.mp4parser.authoring.Track;
-import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
-import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
-import com.googlecode.mp4parser.authoring.tracks.AppendTrack;
-
-import org.borisveriga.soundrecorder.model.local.DBHelper;
 import org.borisveriga.soundrecorder.R;
 import org.borisveriga.soundrecorder.model.dao.RecorderState;
+import org.borisveriga.soundrecorder.model.local.RecordingsReconciler;
+import org.borisveriga.soundrecorder.recorder.EncodingProfile;
+import org.borisveriga.soundrecorder.recorder.LevelMeter;
+import org.borisveriga.soundrecorder.recorder.RecorderEngine;
+import org.borisveriga.soundrecorder.recorder.RecorderEngines;
 import org.borisveriga.soundrecorder.util.Command;
 import org.borisveriga.soundrecorder.util.EventBroadcaster;
+import org.borisveriga.soundrecorder.util.FileIoPool;
 import org.borisveriga.soundrecorder.util.MyIntentBuilder;
 import org.borisveriga.soundrecorder.util.MySharedPreferences;
 import org.borisveriga.soundrecorder.util.Paths;
+import org.borisveriga.soundrecorder.util.RecordingNameAllocator;
+import org.borisveriga.soundrecorder.util.StorageBudget;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.Locale;
 
 
+/**
+ * Records in the foreground. Commands, whether they arrive as Intents or as calls through the
+ * binder, are queued and carried out one at a time on a thread of the service's own, so
+ * preparing the recorder never blocks the main thread and a command can't overtake the one
+ * before it; {@link RecorderCommands} decides which of them take effect.
+ */
 public class RecordingService extends Service {
 
     private static final String LOG_TAG = "RecordingService";
 
+    /** How often segment size and free space are checked while recording. */
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    /** Recorded time after which the bit rate is measured rather than estimated. */
+    private static final long MEASURE_BITRATE_AFTER_MILLIS = 10000;
+
     private String mFileName = null;
     private String mFilePath = null;
+    private File mStagingDir = null;
+    private EncodingProfile mProfile = null;
+
+    // Long recordings are split into segments in a folder of their own; 0 if not splitting.
+    private int mSegmentIndex = 0;
+    private long mSegmentMaxMillis;
+    private long mSegmentMaxBytes;
+    private String mRecordingName = null;
+    private File mSegmentFolder = null;
+    private String mFirstSegmentPath = null;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
-    private MediaRecorder mRecorder = null;
+    private final RecorderCommands mCommands = new RecorderCommands();
+    private HandlerThread mCommandThread;
+    /** Runs commands and everything else touching the engine. */
+    private Handler mCommandHandler;
 
-    private DBHelper mDatabase;
+    private volatile RecorderEngine mEngine = null;
 
-    private long mStartingTimeMillis = 0;
-    private long mElapsedMillis = 0;
+    private RecordingNameAllocator mNames;
+
+    private StorageBudget mStorage;
+    /** Projected recording time left, or -1 when not recording; see {@link StorageBudget}. */
+    private volatile long mRecordableMillis = -1;
 
     private volatile RecorderState state = RecorderState.STOPPED;
-    private int tempFileCount = 0;
 
-    private ArrayList<String> filesPaused = new ArrayList<>();
-    private ArrayList<Long> pauseDurations = new ArrayList<>();
+    // Recorded time, without pauses. Written on the command thread, read from any under the lock.
+    private final Object mDurationLock = new Object();
+    /** Length of the segments already finished, i.e. where the current one starts. */
+    private long mSegmentStartMillis;
+    /**
+     * Time the current segment spent recording up to {@link #mRunStartedAt}, by the clock;
+     * only used if the engine can't count samples.
+     */
+    private long mSegmentClockMillis;
+    /** When the clock last caught up, while recording. */
+    private long mRunStartedAt;
 
     private final IBinder mBinder = new LocalBinder();
 
@@ -69,7 +107,22 @@ public class RecordingService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        mDatabase = new DBHelper(getApplicationContext());
+        mNames = RecordingNameAllocator.getInstance(this);
+        FileIoPool.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                mNames.warmUp();
+            }
+        });
+        mCommandThread = new HandlerThread(LOG_TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mCommandThread.start();
+        mCommandHandler = new Handler(mCommandThread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                handleCommand(msg.what, (Long) msg.obj);
+                return true;
+            }
+        });
     }
 
     @Override
@@ -104,257 +157,557 @@ public class RecordingService extends Service {
         }
     }
 
+    /**
+     * Queues {@code command}, unless it would change nothing after the commands already
+     * queued. Any thread.
+     */
     private void processCommand(@Command int command) {
-        try {
-            switch (command) {
-                case Command.START:
-                    startRecording();
-                    break;
-                case Command.PAUSE:
-                    pauseRecording();
-                    break;
-                case Command.STOP:
-                    stopService();
-                    break;
+        // Queued under the same lock it was checked under, or a command offered on another
+        // thread at the same time could be queued ahead of one it was checked after.
+        synchronized (mCommands) {
+            if (!mCommands.offer(command)) {
+                Log.d(LOG_TAG, "processCommand: dropped " + command + ", already queued");
+                return;
+            }
+            mCommandHandler.sendMessage(
+                    mCommandHandler.obtainMessage(command, System.nanoTime()));
+        }
+    }
+
+    /** Command thread. */
+    private void handleCommand(@Command int command, long offeredNanos) {
+        final RecorderState from = state;
+        final RecorderState to = RecorderCommands.target(from, command);
+        if (to == null) {
+            Log.d(LOG_TAG, "handleCommand: " + command + " ignored in " + from);
+        } else {
+            try {
+                switch (command) {
+                    case Command.START:
+                        handleStart();
+                        break;
+                    case Command.PAUSE:
+                        handlePause();
+                        break;
+                    case Command.STOP:
+                        handleStop();
+                        break;
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "handleCommand: exception", e);
             }
-        } catch (Exception e) {
-            Log.e(LOG_TAG, "processCommand: exception", e);
         }
+        mCommands.onHandled(from, to != null ? state : null, offeredNanos);
     }
 
+    /**
+     * Starts a new recording, or resumes the current one when paused.
+     */
+    public void startRecording() {
+        processCommand(Command.START);
+    }
+
+    public void pauseRecording() {
+        processCommand(Command.PAUSE);
+    }
+
+    /** Stops recording and the service once what was recorded has been written out. */
     public void stopService() {
-        Log.d(LOG_TAG, "RecordingService#stopService()");
-        stopRecording();
-        stopForeground(true);
-        stopSelf();
+        processCommand(Command.STOP);
     }
 
     @Override
     public void onDestroy() {
-        if (mRecorder != null) {
-            stopRecording();
-        }
+        mCommandHandler.removeCallbacksAndMessages(null);
+        mCommandHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (state != RecorderState.STOPPED) {
+                    stopRecording();
+                }
+                Log.d(LOG_TAG, "Command latencies:\n" + mCommands.describeLatencies());
+                Looper.myLooper().quit();
+            }
+        });
 
         super.onDestroy();
     }
 
-    public void setFileNameAndPath(boolean isFilePathTemp) {
-        if (isFilePathTemp) {
-            mFileName = getString(R.string.default_file_name) + (++tempFileCount) + "_" + ".tmp";
-            Paths.createDirectory(getExternalCacheDir(), Paths.SOUND_RECORDER_FOLDER);
+    /**
+     * @param extension of the format being recorded, without the dot
+     */
+    public void setFileNameAndPath(String extension) {
+        File f;
+
+        // Normally one pass; more only if a file appeared since the allocator listed the folder.
+        do {
+            mFileName = mNames.next() + "." + extension;
+
             mFilePath = Paths.combine(
-                    getExternalCacheDir(),
+                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
                     Paths.SOUND_RECORDER_FOLDER, mFileName);
-        } else {
-            int count = 0;
-            File f;
 
-            do {
-                ++count;
+            f = new File(mFilePath);
+        } while (!reserveFile(f));
+    }
 
-                mFileName =
-                        getString(R.string.default_file_name) + "_" + (mDatabase.getCount() + count) + ".mp4";
+    /**
+     * Reserves the folder for a recording that will be split, named the way a single file
+     * would be.
+     */
+    private void reserveSegmentFolder() throws IOException {
+        File folder;
 
-                mFilePath = Paths.combine(
-                        Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
-                        Paths.SOUND_RECORDER_FOLDER, mFileName);
+        do {
+            mRecordingName = mNames.next();
+
+            folder = new File(Paths.combine(
+                    Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
+                    Paths.SOUND_RECORDER_FOLDER, mRecordingName));
+        } while (folder.exists());
 
-                f = new File(mFilePath);
-            } while (f.exists() && !f.isDirectory());
+        if (!folder.mkdirs()) {
+            throw new IOException("Could not create " + folder);
         }
+        mSegmentFolder = folder;
     }
 
-    public void startRecording() {
-        if (state == RecorderState.RECORDING || state == RecorderState.PREPARING)
-            return;
-        changeStateTo(RecorderState.PREPARING);
-
-        boolean isTemporary = true;
-        setFileNameAndPath(isTemporary);
+    /**
+     * Names the file of segment {@link #mSegmentIndex}. Its number is what links it to the
+     * recording, so if the name is taken there is no other to try and the segment fails.
+     */
+    private void setSegmentFileNameAndPath() throws IOException {
+        mFileName = String.format(Locale.ENGLISH, "%s_%03d.%s",
+                mRecordingName, mSegmentIndex, mProfile.getExtension());
+        final File file = new File(mSegmentFolder, mFileName);
+        if (!reserveFile(file)) {
+            // Not ours, so nothing to discard.
+            mFilePath = null;
+            throw new IOException("Could not reserve " + file);
+        }
+        mFilePath = file.getPath();
+    }
 
-        mRecorder = new MediaRecorder();
-        mRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-        mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        mRecorder.setOutputFile(mFilePath);
-        mRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AAC);
-        mRecorder.setAudioChannels(1);
-        if (MySharedPreferences.getPrefHighQuality(this)) {
-            mRecorder.setAudioSamplingRate(44100);
-            mRecorder.setAudioEncodingBitRate(192000);
+    /**
+     * Creates an empty placeholder so the name stays taken while the recording is captured
+     * and finalized.
+     */
+    private static boolean reserveFile(File f) {
+        try {
+            return f.createNewFile();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not reserve " + f, e);
+            return !f.exists();
         }
+    }
+
+    /** Command thread. */
+    private void handleStart() {
+        final boolean resuming = state == RecorderState.PAUSED;
+        changeStateTo(RecorderState.PREPARING);
 
         try {
-            final long totalDurationMillis = getTotalDurationMillis();
-            mRecorder.prepare();
-            mRecorder.start();
-            changeStateTo(RecorderState.RECORDING);
-            Toast.makeText(this, R.string.toast_recording_start, Toast.LENGTH_SHORT).show();
-            mStartingTimeMillis = SystemClock.elapsedRealtime();
-            EventBroadcaster.startRecording(this, mStartingTimeMillis - totalDurationMillis);
+            if (resuming) {
+                mEngine.resume();
+            } else {
+                // Whatever the last recording left here was handed to the finalizer.
+                mFilePath = null;
+                mProfile = RecorderEngines.getProfile(this);
+                mStorage = new StorageBudget(new File(Paths.combine(
+                        Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
+                        Paths.SOUND_RECORDER_FOLDER)));
+                mSegmentMaxMillis = MySharedPreferences.getPrefSegmentMinutes(this) * 60000L;
+                mSegmentMaxBytes =
+                        MySharedPreferences.getPrefSegmentMegabytes(this) * 1024L * 1024L;
+                if (mSegmentMaxMillis > 0 || mSegmentMaxBytes > 0) {
+                    reserveSegmentFolder();
+                    mSegmentIndex = 1;
+                    setSegmentFileNameAndPath();
+                    mFirstSegmentPath = mFilePath;
+                } else {
+                    mSegmentIndex = 0;
+                    setFileNameAndPath(mProfile.getExtension());
+                    if (MySharedPreferences.getPrefStageInternally(this)) {
+                        // The name stays reserved in the Music folder for when it is moved.
+                        mFilePath = StagedRecordings.stagedFile(this, mFileName).getPath();
+                    }
+                }
+                startEngine();
+            }
+            final long totalDurationMillis;
+            synchronized (mDurationLock) {
+                totalDurationMillis = getTotalDurationMillis();
+                mRunStartedAt = SystemClock.elapsedRealtime();
+                changeStateTo(RecorderState.RECORDING);
+            }
+            // Right away, so a nearly full volume is noticed before anything is recorded.
+            mCommandHandler.removeCallbacks(mRecordingCheck);
+            mCommandHandler.post(mRecordingCheck);
+            showToast(R.string.toast_recording_start, Toast.LENGTH_SHORT);
+            EventBroadcaster.startRecording(this, mRunStartedAt - totalDurationMillis);
         } catch (IOException e) {
-            changeStateTo(RecorderState.STOPPED);
-            EventBroadcaster.stopRecording(this);
             Log.e(LOG_TAG, "prepare() failed", e);
-            EventBroadcaster.send(this, getString(R.string.error_unknown));
+            onStartFailed(resuming, R.string.error_unknown);
         } catch (IllegalStateException e) {
-            changeStateTo(RecorderState.STOPPED);
-            EventBroadcaster.stopRecording(this);
             Log.e(LOG_TAG, "start() failed", e);
-            EventBroadcaster.send(this, getString(R.string.error_mic_is_busy));
+            onStartFailed(resuming, R.string.error_mic_is_busy);
         }
     }
 
-    public void pauseRecording() {
-        if (state != RecorderState.RECORDING)
-            return;
-        changeStateTo(RecorderState.PREPARING);
+    /**
+     * Starts capturing into {@link #mFilePath} with a staging directory of its own. The
+     * output is kept from the reconciler until the finalizer has listed it.
+     */
+    private void startEngine() throws IOException {
+        RecordingsReconciler.getInstance(this).hold(Collections.singleton(
+                StagedRecordings.listedPath(this, mFilePath)));
+        mStagingDir = RecordingJournal.newDirectory(this);
+        TempSegmentRegistry.getInstance().register(mStagingDir);
+        mEngine = RecorderEngines.create(this, mProfile, mStagingDir);
+        // Written before capture starts so a crash at any point leaves it behind.
+        final RecordingJournal journal = new RecordingJournal(mStagingDir, mFileName, mFilePath,
+                mEngine.getMimeType(), mEngine.getSampleRate(), mEngine.getBitrate(),
+                mProfile.name());
+        journal.segment = currentSegment(false);
+        journal.write();
+        mEngine.start(new File(mFilePath));
+    }
 
+    /**
+     * Stops the engine and hands what it recorded to the finalizer. Call {@link #catchUpClock}
+     * first.
+     *
+     * @return the length of what was recorded
+     */
+    private long finishEngine(boolean last) {
+        final RecorderEngine engine = mEngine;
+        mEngine = null;
         try {
-            mElapsedMillis = (SystemClock.elapsedRealtime() - mStartingTimeMillis);
-            pauseDurations.add(mElapsedMillis);
-            mRecorder.stop();
-            changeStateTo(RecorderState.PAUSED);
-            Toast.makeText(this, getString(R.string.toast_recording_paused), Toast.LENGTH_LONG).show();
+            final List<String> segments = engine.stop();
+            // Only final once the engine has stopped; timed by the clock, the finalizer reads
+            // the real length back from the file.
+            final long countedMillis = engine.getEncodedMillis();
+            final long durationMillis = countedMillis >= 0 ? countedMillis : mSegmentClockMillis;
+            final RecordingFinalizer.Job job = new RecordingFinalizer.Job(
+                    mFileName, mFilePath, segments, durationMillis, engine.getMimeType(),
+                    engine.getSampleRate(), engine.getBitrate(), mProfile.name(), mStagingDir,
+                    engine.getSkippedSilence(), engine.getSkippedSilenceMillis());
+            job.segment = currentSegment(last);
+            job.durationCounted = countedMillis >= 0;
+            job.silenceDetectionLoad = engine.getSilenceDetectionLoad();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    RecordingFinalizer.getInstance(RecordingService.this).submit(job);
+                }
+            });
+            mStagingDir = null;
+            return durationMillis;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Recording discarded", e);
+            discardOutput();
+            mStagingDir = null;
+            return 0;
+        }
+    }
 
-            filesPaused.add(mFilePath);
-        } catch (IllegalStateException exc) {
-            changeStateTo(RecorderState.RECORDING);
-            Log.e(LOG_TAG, "stop() failed", exc);
+    private SegmentLink currentSegment(boolean last) {
+        return mSegmentIndex > 0
+                ? new SegmentLink(mRecordingName, mFirstSegmentPath, mSegmentIndex, last) : null;
+    }
+
+    private final Runnable mRecordingCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (state != RecorderState.RECORDING) {
+                return;
+            }
+            if (mSegmentIndex > 0 && isSegmentFull()) {
+                rotateSegment();
+            }
+            if (state == RecorderState.RECORDING && checkStorage()) {
+                mCommandHandler.postDelayed(this, CHECK_INTERVAL_MILLIS);
+            }
         }
+    };
+
+    /**
+     * Projects the time left on the volume, warns as it runs low and stops the recording
+     * while there is still room to finalize it.
+     *
+     * @return false if the recording is being stopped
+     */
+    private boolean checkStorage() {
+        final long recordableBytes = mStorage.getRecordableBytes(getStagedBytes());
+        final long millisLeft = StorageBudget.toMillis(recordableBytes, getBitrateEstimate());
+        mRecordableMillis = millisLeft;
+        if (recordableBytes <= 0) {
+            Log.w(LOG_TAG, "Out of storage, stopping after " + getTotalDurationMillis() + " ms");
+            EventBroadcaster.send(this, getString(R.string.error_storage_full_stopped));
+            processCommand(Command.STOP);
+            return false;
+        }
+        final int warning = mStorage.checkWarning(millisLeft);
+        if (warning > 0) {
+            EventBroadcaster.send(this, getString(R.string.warning_storage_low, warning));
+        }
+        return true;
     }
 
-    public void stopRecording() {
-        if (state == RecorderState.STOPPED) {
-            Log.wtf(LOG_TAG, "stopRecording: already STOPPED.");
-            return;
+    /**
+     * Bits per second the recording grows by: what the engine was configured with, or once
+     * there is enough of it, what the current segment has taken so far.
+     */
+    private long getBitrateEstimate() {
+        final RecorderEngine engine = mEngine;
+        if (engine != null && engine.getBitrate() > 0) {
+            return engine.getBitrate();
         }
-        if (state == RecorderState.PREPARING)
-            return;
-        final RecorderState stateBefore = state;
-        changeStateTo(RecorderState.PREPARING);
-        if (stateBefore == RecorderState.RECORDING)
-            filesPaused.add(mFilePath);
+        final long segmentMillis;
+        synchronized (mDurationLock) {
+            segmentMillis = getSegmentMillis();
+        }
+        if (segmentMillis >= MEASURE_BITRATE_AFTER_MILLIS) {
+            return getSegmentBytes() * 8000 / segmentMillis;
+        }
+        return mProfile.getEstimatedBitrate();
+    }
 
-        boolean isTemporary = false;
-        setFileNameAndPath(isTemporary);
-        String pathToSend = "";
-        try {
-            if (stateBefore != RecorderState.PAUSED) {
-                mElapsedMillis = (SystemClock.elapsedRealtime() - mStartingTimeMillis);
-                mRecorder.stop();
+    private boolean isSegmentFull() {
+        if (mSegmentMaxMillis > 0) {
+            synchronized (mDurationLock) {
+                if (getSegmentMillis() >= mSegmentMaxMillis) {
+                    return true;
+                }
             }
-            mRecorder.release();
-            pathToSend = mFilePath;
-            Toast.makeText(this, getString(R.string.toast_recording_finish) + " " + mFilePath, Toast.LENGTH_LONG).show();
-        } catch (RuntimeException exc) {
-            Log.e(LOG_TAG, "RuntimeException: stop() is called immediately after start()", exc);
-            pathToSend = null;
-        } finally {
-            mRecorder = null;
-            changeStateTo(RecorderState.STOPPED);
-            EventBroadcaster.stopRecording(this, pathToSend);
         }
+        return mSegmentMaxBytes > 0 && getSegmentBytes() >= mSegmentMaxBytes;
+    }
 
-        if (filesPaused != null && !filesPaused.isEmpty()) {
-            if (makeSingleFile(filesPaused)) {
-                for (long duration : pauseDurations)
-                    mElapsedMillis += duration;
+    /** What the current segment takes on disk so far, wherever the engine is writing it. */
+    private long getSegmentBytes() {
+        return new File(mFilePath).length() + getStagedBytes();
+    }
+
+    /**
+     * What the engine has written to the staging directory; finalizing copies it into the
+     * output, so the same space is needed again.
+     */
+    private long getStagedBytes() {
+        long bytes = 0;
+        final File[] staged = mStagingDir != null ? mStagingDir.listFiles() : null;
+        if (staged != null) {
+            for (File file : staged) {
+                bytes += file.length();
             }
         }
+        return bytes;
+    }
 
+    /**
+     * Closes the current segment and carries on in a new file. Only that segment is
+     * finalized, so the cost of stopping no longer grows with the length of the recording.
+     * Capture is interrupted for as long as the engines take to hand over.
+     */
+    private void rotateSegment() {
+        catchUpClock();
+        final long segmentMillis = finishEngine(false);
+        final long totalMillis;
+        synchronized (mDurationLock) {
+            mSegmentStartMillis += segmentMillis;
+            mSegmentClockMillis = 0;
+            mRunStartedAt = SystemClock.elapsedRealtime();
+            totalMillis = mSegmentStartMillis;
+        }
+        mSegmentIndex++;
         try {
-            mDatabase.addRecording(mFileName, mFilePath, mElapsedMillis);
-        } catch (Exception e) {
-            e.printStackTrace();
-            Log.e(LOG_TAG, "exception", e);
+            setSegmentFileNameAndPath();
+            startEngine();
+            Log.i(LOG_TAG, "Recording into segment " + mSegmentIndex + " after "
+                    + totalMillis + " ms");
+        } catch (IOException | IllegalStateException e) {
+            Log.e(LOG_TAG, "Could not start segment " + mSegmentIndex, e);
+            if (mEngine != null) {
+                mEngine.release();
+                mEngine = null;
+            }
+            discardOutput();
+            EventBroadcaster.send(this, getString(R.string.error_unknown));
+            endRecording();
         }
     }
 
-    private boolean makeSingleFile(ArrayList<String> filesPaused) {
-        ArrayList<Track> tracks = new ArrayList<>();
-        Movie finalMovie = new Movie();
-        for (String filePath : filesPaused) {
-            try {
-                Movie movie = MovieCreator.build(filePath);
-                List<Track> movieTracks = movie.getTracks();
-                tracks.addAll(movieTracks);
-            } catch (IOException e) {
-                e.printStackTrace();
-                return false;
-            } catch (NullPointerException exc) {
-                exc.printStackTrace();
-            }
+    private void onStartFailed(boolean resuming, int message) {
+        EventBroadcaster.send(this, getString(message));
+        if (resuming) {
+            // Keep what was recorded before the pause.
+            changeStateTo(RecorderState.PAUSED);
+            stopRecording();
+            return;
         }
-
-        if (tracks.size() > 0) {
-            try {
-                finalMovie.addTrack(new AppendTrack(tracks.toArray(new Track[0])));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (mEngine != null) {
+            mEngine.release();
+            mEngine = null;
+        }
+        discardOutput();
+        if (mSegmentIndex == 1 && !mSegmentFolder.delete()) {
+            Log.w(LOG_TAG, "Could not release " + mSegmentFolder);
         }
+        mSegmentIndex = 0;
+        changeStateTo(RecorderState.STOPPED);
+        EventBroadcaster.stopRecording(this);
+    }
 
-        final Container mp4file;
-        final FileChannel fc;
+    /** Command thread. */
+    private void handlePause() {
+        mCommandHandler.removeCallbacks(mRecordingCheck);
         try {
-            mp4file = new DefaultMp4Builder().build(finalMovie);
-            fc = new FileOutputStream(new File(mFilePath)).getChannel();
-        } catch (NoSuchElementException exc) {
-            exc.printStackTrace();
-            return false;
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            return false;
+            mEngine.pause();
+            synchronized (mDurationLock) {
+                catchUpClock();
+                changeStateTo(RecorderState.PAUSED);
+            }
+            showToast(R.string.toast_recording_paused, Toast.LENGTH_LONG);
+        } catch (IllegalStateException exc) {
+            Log.e(LOG_TAG, "pause() failed", exc);
+            mCommandHandler.postDelayed(mRecordingCheck, CHECK_INTERVAL_MILLIS);
         }
+    }
 
-        boolean ok = true;
-        try {
-            mp4file.writeContainer(fc);
-        } catch (IOException e) {
-            e.printStackTrace();
-            ok = false;
-        } finally {
-            try {
-                fc.close();
-            } catch (IOException exc) {
-                exc.printStackTrace();
-                ok = false;
+    /** Command thread. */
+    private void handleStop() {
+        if (state != RecorderState.STOPPED) {
+            stopRecording();
+        }
+        // Stay started while the recording is written out, unless a new one began meanwhile.
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                RecordingFinalizer.getInstance(RecordingService.this).runWhenIdle(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mCommands.getExpectedState() == RecorderState.STOPPED) {
+                            stopForeground(true);
+                            stopSelf();
+                        }
+                    }
+                });
             }
+        });
+    }
+
+    /** Command thread. */
+    private void stopRecording() {
+        synchronized (mDurationLock) {
+            catchUpClock();
+            changeStateTo(RecorderState.PREPARING);
         }
 
-        return ok;
+        mCommandHandler.removeCallbacks(mRecordingCheck);
+        finishEngine(true);
+        endRecording();
     }
 
-    public long getElapsedMillis() {
-        return mElapsedMillis;
+    private void endRecording() {
+        synchronized (mDurationLock) {
+            mSegmentStartMillis = 0;
+            mSegmentClockMillis = 0;
+            changeStateTo(RecorderState.STOPPED);
+        }
+        mSegmentIndex = 0;
+        mRecordableMillis = -1;
+        EventBroadcaster.stopRecording(this);
+    }
+
+    private void showToast(final int message, final int duration) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(RecordingService.this, message, duration).show();
+            }
+        });
     }
 
-    public long getStartingTimeMillis() {
-        return mStartingTimeMillis;
+    private void discardOutput() {
+        if (mFilePath != null) {
+            StagedRecordings.releaseTarget(this, mFilePath);
+            final File output = new File(mFilePath);
+            if (output.exists() && !output.delete()) {
+                Log.w(LOG_TAG, "Could not release " + mFilePath);
+            }
+            RecordingsReconciler.getInstance(this).release(Collections.singleton(
+                    StagedRecordings.listedPath(this, mFilePath)));
+        }
+        if (mStagingDir != null) {
+            TempSegmentRegistry.getInstance().release(mStagingDir);
+            mStagingDir = null;
+        }
     }
 
+    /**
+     * Length of the recording so far, without pauses: counted in samples if the engine can,
+     * otherwise timed. Constant time; any thread.
+     */
     public long getTotalDurationMillis() {
-        long total = 0;
-        if (pauseDurations == null || pauseDurations.isEmpty()) {
-            total += mElapsedMillis;
-        } else {
-            for (long duration : pauseDurations)
-                total += duration;
+        synchronized (mDurationLock) {
+            return mSegmentStartMillis + getSegmentMillis();
         }
+    }
+
+    /** Length of the current segment so far. Caller holds {@link #mDurationLock}. */
+    private long getSegmentMillis() {
+        final RecorderEngine engine = mEngine;
+        final long countedMillis = engine != null ? engine.getEncodedMillis() : -1;
+        if (countedMillis >= 0) {
+            return countedMillis;
+        }
+        long millis = mSegmentClockMillis;
         if (state == RecorderState.RECORDING) {
-            total += (SystemClock.elapsedRealtime() - mStartingTimeMillis);
+            millis += SystemClock.elapsedRealtime() - mRunStartedAt;
         }
+        return millis;
+    }
 
-        return total;
+    /** Adds the time recorded since the last call to the clock. Command thread. */
+    private void catchUpClock() {
+        synchronized (mDurationLock) {
+            if (state == RecorderState.RECORDING) {
+                final long now = SystemClock.elapsedRealtime();
+                mSegmentClockMillis += now - mRunStartedAt;
+                mRunStartedAt = now;
+            }
+        }
+    }
+
+    /**
+     * @return projected recording time left on the volume, {@link Long#MAX_VALUE} if it can't
+     * be told, or -1 when not recording
+     */
+    public long getRecordableMillis() {
+        return mRecordableMillis;
     }
 
     public RecorderState getState() {
         return state;
     }
 
+    /**
+     * Current input level, packed as described in {@link LevelMeter}; meant to be polled once
+     * per frame from the main thread.
+     */
+    public long getLevels() {
+        final RecorderEngine engine = mEngine;
+        if (state != RecorderState.RECORDING || engine == null) {
+            return LevelMeter.SILENT;
+        }
+        return engine.getLevels();
+    }
+
+    /**
+     * Command thread. Which transitions are allowed is decided before a command runs, see
+     * {@link RecorderCommands}; PREPARING only marks that one is in progress.
+     */
     private void changeStateTo(RecorderState newState) {
-        if (state == RecorderState.PREPARING && newState == RecorderState.PREPARING)
-            throw new IllegalStateException();
         state = newState;
     }
 
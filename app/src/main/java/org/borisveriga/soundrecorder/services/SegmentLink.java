@@ -0,0 +1,26 @@
+package org.borisveriga.soundrecorder.services;
+
+/**
+ * Ties one file of a long recording to the recording it is part of. Long recordings are
+ * split into segments while they are captured, and every segment is finalized on its own;
+ * the segments share a folder and are listed as one recording, keyed by the path of the
+ * first of them.
+ */
+final class SegmentLink {
+
+    /** Name the whole recording is listed under. */
+    final String recordingName;
+    /** Path of segment 1, which identifies the recording in the database. */
+    final String firstSegmentPath;
+    /** Position of this segment, starting at 1. */
+    final int index;
+    /** Whether this segment ends the recording. */
+    final boolean last;
+
+    SegmentLink(String recordingName, String firstSegmentPath, int index, boolean last) {
+        this.recordingName = recordingName;
+        this.firstSegmentPath = firstSegmentPath;
+        this.index = index;
+        this.last = last;
+    }
+}
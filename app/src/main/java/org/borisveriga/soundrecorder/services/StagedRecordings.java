@@ -0,0 +1,190 @@
+package org.borisveriga.soundrecorder.services;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+import org.borisveriga.soundrecorder.model.local.DBHelper;
+import org.borisveriga.soundrecorder.mp4.Mp4Concatenator;
+import org.borisveriga.soundrecorder.util.FileIoPool;
+import org.borisveriga.soundrecorder.util.Paths;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Recordings captured to app storage, where writes are faster and steadier than on shared
+ * storage, and moved into the Music folder once they have been finalized. Until a move commits,
+ * the recording's row points at the staged file, so it can be played as usual meanwhile.
+ *
+ * <p>A move is a rename when both folders are on the same volume. Otherwise the file is
+ * copied next to its destination under a {@link Paths#PARTIAL_SUFFIX} name first, and that
+ * is renamed. The rename is undone unless the row update commits, see
+ * {@link DBHelper#moveFile}. A move that didn't finish, because the process died or the Music
+ * folder was full, is picked up again at the next start, continuing a partial copy.
+ */
+public final class StagedRecordings {
+
+    private static final String LOG_TAG = "StagedRecordings";
+
+    private static final String FOLDER = "staged";
+    /**
+     * A copy is resumed this far before where it stopped, in case the end of what was written
+     * never reached the disk.
+     */
+    private static final long RESUME_MARGIN_BYTES = 1024 * 1024;
+
+    private StagedRecordings() {
+    }
+
+    /** @return where a recording to be saved as {@code fileName} is captured */
+    static File stagedFile(Context context, String fileName) throws IOException {
+        final File folder = folder(context);
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Could not create " + folder);
+        }
+        return new File(folder, fileName);
+    }
+
+    static boolean isStaged(Context context, String path) {
+        return folder(context).equals(new File(path).getParentFile());
+    }
+
+    /** @return where the staged file ends up in the Music folder */
+    static File targetOf(File staged) {
+        return new File(Paths.combine(
+                Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
+                Paths.SOUND_RECORDER_FOLDER, staged.getName()));
+    }
+
+    /** @return where the recording captured into {@code path} is listed once it is saved */
+    static String listedPath(Context context, String path) {
+        return isStaged(context, path) ? targetOf(new File(path)).getPath() : path;
+    }
+
+    private static File folder(Context context) {
+        return new File(context.getFilesDir(), FOLDER);
+    }
+
+    /**
+     * Moves {@code staged} into the Music folder. Blocks, so call it from a worker thread;
+     * moves are made one at a time.
+     *
+     * @return where the recording is now
+     */
+    static synchronized String migrate(DBHelper database, File staged) {
+        final File target = targetOf(staged);
+        if (!staged.isFile()) {
+            // Deleted meanwhile, or moved by an earlier call.
+            return target.getPath();
+        }
+        final long started = System.currentTimeMillis();
+        final File part = new File(target.getPath() + Paths.PARTIAL_SUFFIX);
+        try {
+            final long length = staged.length();
+            if (length > 0 && target.length() == length) {
+                // Copied and renamed before, but the process died before the row followed.
+                return finish(database, staged, part, target, length);
+            }
+            final int moved = database.moveFile(staged.getPath(), staged, target, length).get();
+            if (moved == 0) {
+                Log.w(LOG_TAG, "No recording at " + staged + ", leaving it");
+                return staged.getPath();
+            }
+            if (moved > 0) {
+                Log.i(LOG_TAG, "Renamed " + staged + " to " + target);
+                return target.getPath();
+            }
+            copy(staged, part);
+            final String path = finish(database, staged, part, target, length);
+            Log.i(LOG_TAG, "Copied " + length + " bytes to " + path + " in "
+                    + (System.currentTimeMillis() - started) + " ms");
+            return path;
+        } catch (IOException | InterruptedException | ExecutionException e) {
+            // The partial copy is kept for the next attempt.
+            Log.w(LOG_TAG, "Could not move " + staged + ", trying again at the next start", e);
+            return staged.getPath();
+        }
+    }
+
+    /** Commits a finished copy and removes the staged file it was made from. */
+    private static String finish(DBHelper database, File staged, File part, File target,
+                                 long length)
+            throws InterruptedException, ExecutionException, IOException {
+        if (database.moveFile(staged.getPath(), part, target, length).get() <= 0) {
+            throw new IOException("Could not rename " + part);
+        }
+        if (!staged.delete()) {
+            Log.w(LOG_TAG, "Could not remove " + staged);
+        }
+        return target.getPath();
+    }
+
+    /** Copies {@code source} to {@code part}, continuing where an earlier copy stopped. */
+    private static void copy(File source, File part) throws IOException {
+        final FileInputStream in = new FileInputStream(source);
+        try {
+            final RandomAccessFile out = new RandomAccessFile(part, "rw");
+            try {
+                final long length = source.length();
+                final long position = Math.max(0,
+                        Math.min(out.length(), length) - RESUME_MARGIN_BYTES);
+                if (position > 0) {
+                    Log.i(LOG_TAG, "Resuming the copy of " + source + " at " + position);
+                }
+                out.setLength(position);
+                out.seek(position);
+                Mp4Concatenator.transferFully(in.getChannel(), position, length - position,
+                        out.getChannel());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Removes the empty placeholder reserving the name in the Music folder of a staged
+     * recording that was discarded. Does nothing for any other path.
+     */
+    static void releaseTarget(Context context, String path) {
+        if (!isStaged(context, path)) {
+            return;
+        }
+        final File target = targetOf(new File(path));
+        if (target.length() == 0 && target.exists() && !target.delete()) {
+            Log.w(LOG_TAG, "Could not release " + target);
+        }
+    }
+
+    /**
+     * Moves whatever an earlier process left staged, on a background thread. Call once every
+     * recording recovered at startup has been finalized.
+     *
+     * @param cutoff files written to after this, in wall-clock milliseconds, may belong to a
+     *               recording in progress and are left alone
+     */
+    static void resume(Context context, final long cutoff) {
+        final Context appContext = context.getApplicationContext();
+        FileIoPool.get().execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] staged = folder(appContext).listFiles();
+                if (staged == null || staged.length == 0) {
+                    return;
+                }
+                final DBHelper database = DBHelper.getInstance(appContext);
+                for (File file : staged) {
+                    if (file.isFile() && file.length() > 0 && file.lastModified() < cutoff) {
+                        migrate(database, file);
+                    }
+                }
+            }
+        });
+    }
+}
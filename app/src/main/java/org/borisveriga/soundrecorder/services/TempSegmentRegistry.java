@@ -0,0 +1,197 @@
+package org.borisveriga.soundrecorder.services;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the staging directories recordings are captured into, and removes what they
+ * hold once it is no longer needed: right after a recording has been finalized or discarded,
+ * and at startup for whatever earlier processes left behind that {@link RecordingRecovery}
+ * can't use. Counts the space that frees.
+ */
+public final class TempSegmentRegistry {
+
+    private static final String LOG_TAG = "TempSegmentRegistry";
+
+    /**
+     * Age after which loose files next to the staging directories, segments of older
+     * versions, and merge spools of a process killed mid-merge are removed.
+     */
+    private static final long STALE_FILE_AGE_MILLIS = 24L * 60 * 60 * 1000;
+    /** How long the segments of a recording recovery gave up on are kept for rescue by hand. */
+    private static final long ABANDONED_DIRECTORY_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    private static TempSegmentRegistry sInstance;
+
+    /** Staging directories of recordings this process is capturing; guarded by itself. */
+    private final Set<File> mLive = new HashSet<>();
+
+    private final AtomicLong mReleasedBytes = new AtomicLong();
+    private final AtomicLong mSweptBytes = new AtomicLong();
+    private final AtomicInteger mSweptFiles = new AtomicInteger();
+
+    public static synchronized TempSegmentRegistry getInstance() {
+        if (sInstance == null) {
+            sInstance = new TempSegmentRegistry();
+        }
+        return sInstance;
+    }
+
+    private TempSegmentRegistry() {
+    }
+
+    /** Called once a recording is being captured into {@code dir}. */
+    void register(File dir) {
+        synchronized (mLive) {
+            mLive.add(dir);
+        }
+    }
+
+    /**
+     * Removes the segments of a recording and its staging directory, once it has been
+     * finalized or discarded.
+     *
+     * @param segments files that may live outside {@code dir}; may be empty
+     * @param dir      staging directory, or null if there is none
+     */
+    void release(List<String> segments, File dir) {
+        long bytes = 0;
+        for (String segment : segments) {
+            bytes += Math.max(0, delete(new File(segment)));
+        }
+        if (dir != null) {
+            bytes += RecordingJournal.delete(dir);
+            synchronized (mLive) {
+                mLive.remove(dir);
+            }
+        }
+        mReleasedBytes.addAndGet(bytes);
+    }
+
+    /** @see #release(List, File) */
+    void release(File dir) {
+        release(Collections.<String>emptyList(), dir);
+    }
+
+    /**
+     * Removes orphans older than their threshold: loose files in the staging root, merge
+     * spools, and staging directories recovery gave up on. Runs at the lowest priority on
+     * the calling thread, which must not be the main thread.
+     *
+     * @param cutoff staging directories created after this, in wall-clock milliseconds, are
+     *               never touched
+     */
+    void sweep(Context context, long cutoff) {
+        final int priority = Process.getThreadPriority(Process.myTid());
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        try {
+            final long now = System.currentTimeMillis();
+            final long bytesBefore = mSweptBytes.get();
+            final int filesBefore = mSweptFiles.get();
+            if (context.getExternalCacheDir() != null) {
+                sweepStagingRoot(RecordingJournal.root(context), now, cutoff);
+            }
+            sweepSpools(context.getCacheDir(), now);
+            Log.i(LOG_TAG, "Swept " + (mSweptFiles.get() - filesBefore) + " files, "
+                    + (mSweptBytes.get() - bytesBefore) + " bytes");
+        } finally {
+            Process.setThreadPriority(priority);
+        }
+    }
+
+    private void sweepStagingRoot(File root, long now, long cutoff) {
+        final File[] listing = root.listFiles();
+        if (listing == null) {
+            return;
+        }
+        for (File file : listing) {
+            if (file.isFile()) {
+                if (now - file.lastModified() > STALE_FILE_AGE_MILLIS) {
+                    swept(delete(file));
+                }
+                continue;
+            }
+            if (!file.isDirectory() || RecordingJournal.createdAt(file) >= cutoff
+                    || now - file.lastModified() <= ABANDONED_DIRECTORY_AGE_MILLIS) {
+                continue;
+            }
+            synchronized (mLive) {
+                if (mLive.contains(file)) {
+                    continue;
+                }
+            }
+            final RecordingJournal journal = RecordingJournal.read(file);
+            if (journal == null || journal.recoveryAttempts >= RecordingRecovery.MAX_ATTEMPTS) {
+                Log.w(LOG_TAG, "Removing abandoned " + file);
+                if (journal != null) {
+                    // The name reserved for it, unless something was written there after all.
+                    final File output = new File(journal.filePath);
+                    if (output.length() == 0) {
+                        delete(output);
+                    }
+                }
+                final File[] contents = file.listFiles();
+                mSweptFiles.addAndGet(contents != null ? contents.length : 0);
+                mSweptBytes.addAndGet(RecordingJournal.delete(file));
+            }
+        }
+    }
+
+    private void sweepSpools(File cacheDir, long now) {
+        final File[] listing = cacheDir != null ? cacheDir.listFiles() : null;
+        if (listing == null) {
+            return;
+        }
+        for (File file : listing) {
+            if (file.isFile() && file.getName().endsWith(SPOOL_SUFFIX)
+                    && now - file.lastModified() > STALE_FILE_AGE_MILLIS) {
+                swept(delete(file));
+            }
+        }
+    }
+
+    private void swept(long bytes) {
+        if (bytes >= 0) {
+            mSweptFiles.incrementAndGet();
+            mSweptBytes.addAndGet(bytes);
+        }
+    }
+
+    /** @return the size of the removed file, or -1 if it could not be removed */
+    private static long delete(File file) {
+        final long bytes = file.length();
+        if (!file.exists()) {
+            return 0;
+        }
+        if (!file.delete()) {
+            Log.w(LOG_TAG, "Could not remove " + file);
+            return -1;
+        }
+        return bytes;
+    }
+
+    /** Space freed by removing the segments of finalized or discarded recordings. */
+    public long getReleasedBytes() {
+        return mReleasedBytes.get();
+    }
+
+    /** Space freed by startup sweeps. */
+    public long getSweptBytes() {
+        return mSweptBytes.get();
+    }
+
+    /** Files removed by startup sweeps. */
+    public int getSweptFiles() {
+        return mSweptFiles.get();
+    }
+}
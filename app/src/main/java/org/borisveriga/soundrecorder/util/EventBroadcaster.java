@@ -18,6 +18,9 @@ public class EventBroadcaster {
     public static final String NEW_STATE = "NEW_STATE";
     public static final String CHRONOMETER_TIME = "CHRONOMETER_TIME";
     public static final String LAST_AUDIO_LOCATION = "LAST_AUDIO_LOCATION";
+    public static final String FINALIZATION = "FINALIZATION";
+    public static final String FINALIZATION_PROGRESS = "FINALIZATION_PROGRESS";
+    public static final String FINALIZATION_PENDING = "FINALIZATION_PENDING";
 
 
     private EventBroadcaster() {
@@ -62,4 +65,26 @@ public class EventBroadcaster {
         it.putExtra(EventBroadcaster.CHRONOMETER_TIME, chronometerTime);
         LocalBroadcastManager.getInstance(context).sendBroadcast(it);
     }
+
+    public static void finalizationProgress(@Nullable Context context, String filePath, int percent) {
+        if (context == null)
+            return;
+        final Intent it = new Intent(EventBroadcaster.FINALIZATION);
+        it.putExtra(EventBroadcaster.FINALIZATION_PROGRESS, percent);
+        it.putExtra(EventBroadcaster.LAST_AUDIO_LOCATION, filePath);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(it);
+    }
+
+    /**
+     * @param filePath the finished recording, or null if it could not be saved
+     * @param pending  recordings still waiting to be finalized
+     */
+    public static void finalizationFinished(@Nullable Context context, @Nullable String filePath, int pending) {
+        if (context == null)
+            return;
+        final Intent it = new Intent(EventBroadcaster.FINALIZATION);
+        it.putExtra(EventBroadcaster.FINALIZATION_PENDING, pending);
+        it.putExtra(EventBroadcaster.LAST_AUDIO_LOCATION, filePath);
+        LocalBroadcastManager.getInstance(context).sendBroadcast(it);
+    }
 }
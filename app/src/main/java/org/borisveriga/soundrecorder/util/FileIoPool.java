@@ -0,0 +1,42 @@
+package org.borisveriga.soundrecorder.util;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small shared pool for file system work (unlinking, moving, scanning) that must not run on
+ * the main thread.
+ */
+public class FileIoPool {
+
+    private static final int THREADS = 2;
+
+    private static ExecutorService sPool;
+
+    private FileIoPool() {
+    }
+
+    public static synchronized ExecutorService get() {
+        if (sPool == null) {
+            sPool = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "FileIo-" + mCount.incrementAndGet());
+                }
+            });
+        }
+        return sPool;
+    }
+}
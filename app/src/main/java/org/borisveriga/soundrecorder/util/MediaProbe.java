@@ -0,0 +1,76 @@
+package org.borisveriga.soundrecorder.util;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMetadataRetriever;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Reads the format of an existing audio file. Touches the file on disk, so never call it from
+ * the main thread.
+ */
+public class MediaProbe {
+
+    private static final String LOG_TAG = "MediaProbe";
+
+    public long sizeBytes;
+    public String codec;
+    public int sampleRate;
+    public int bitrate;
+    public long durationMillis;
+
+    private MediaProbe() {
+    }
+
+    public static MediaProbe probe(String filePath) {
+        final MediaProbe result = new MediaProbe();
+        final File file = new File(filePath);
+        result.sizeBytes = file.length();
+        if (!file.isFile()) {
+            return result;
+        }
+
+        final MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(filePath);
+            if (extractor.getTrackCount() > 0) {
+                final MediaFormat format = extractor.getTrackFormat(0);
+                result.codec = format.getString(MediaFormat.KEY_MIME);
+                if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE)) {
+                    result.sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not read format of " + filePath, e);
+        } finally {
+            extractor.release();
+        }
+
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(filePath);
+            result.bitrate = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_BITRATE));
+            result.durationMillis = parseInt(retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION));
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Could not read metadata of " + filePath, e);
+        } finally {
+            retriever.release();
+        }
+
+        return result;
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
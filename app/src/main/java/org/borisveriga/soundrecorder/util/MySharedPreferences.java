@@ -4,12 +4,22 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import org.borisveriga.soundrecorder.recorder.SilenceDetector;
+
 /**
  * Created by Daniel on 5/22/2017.
  */
 
 public class MySharedPreferences {
     private static String PREF_HIGH_QUALITY = "pref_high_quality";
+    private static String PREF_RECORDER_BACKEND = "pref_recorder_backend";
+    private static String PREF_CRASH_SAFE = "pref_crash_safe";
+    private static String PREF_SKIP_SILENCE = "pref_skip_silence";
+    private static String PREF_SILENCE_HANGOVER = "pref_silence_hangover";
+    private static String PREF_ENCODING_PROFILE = "pref_encoding_profile";
+    private static String PREF_SEGMENT_MINUTES = "pref_segment_minutes";
+    private static String PREF_SEGMENT_MEGABYTES = "pref_segment_megabytes";
+    private static String PREF_STAGE_INTERNALLY = "pref_stage_internally";
 
     public static void setPrefHighQuality(Context context, boolean isEnabled) {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
@@ -22,4 +32,113 @@ public class MySharedPreferences {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
         return preferences.getBoolean(PREF_HIGH_QUALITY, false);
     }
+
+    public static void setPrefRecorderBackend(Context context, String backend) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString(PREF_RECORDER_BACKEND, backend);
+        editor.apply();
+    }
+
+    /**
+     * @return one of the {@code BACKEND_} constants in
+     * {@link org.borisveriga.soundrecorder.recorder.RecorderEngines}
+     */
+    public static String getPrefRecorderBackend(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getString(PREF_RECORDER_BACKEND, null);
+    }
+
+    public static void setPrefCrashSafe(Context context, boolean isEnabled) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putBoolean(PREF_CRASH_SAFE, isEnabled);
+        editor.apply();
+    }
+
+    public static boolean getPrefCrashSafe(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getBoolean(PREF_CRASH_SAFE, false);
+    }
+
+    public static void setPrefSkipSilence(Context context, boolean isEnabled) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putBoolean(PREF_SKIP_SILENCE, isEnabled);
+        editor.apply();
+    }
+
+    public static boolean getPrefSkipSilence(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getBoolean(PREF_SKIP_SILENCE, false);
+    }
+
+    public static void setPrefSilenceHangoverMillis(Context context, int millis) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putInt(PREF_SILENCE_HANGOVER, millis);
+        editor.apply();
+    }
+
+    /** @return how long audio is kept after speech stops when skipping silence */
+    public static int getPrefSilenceHangoverMillis(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getInt(PREF_SILENCE_HANGOVER,
+                SilenceDetector.DEFAULT_HANGOVER_MILLIS);
+    }
+
+    public static void setPrefEncodingProfile(Context context, String profile) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putString(PREF_ENCODING_PROFILE, profile);
+        editor.apply();
+    }
+
+    /**
+     * @return the name of an {@link org.borisveriga.soundrecorder.recorder.EncodingProfile},
+     * or null if none was chosen
+     */
+    public static String getPrefEncodingProfile(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getString(PREF_ENCODING_PROFILE, null);
+    }
+
+    public static void setPrefSegmentMinutes(Context context, int minutes) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putInt(PREF_SEGMENT_MINUTES, minutes);
+        editor.apply();
+    }
+
+    /** @return after how many minutes a recording moves on to a new file, or 0 for never */
+    public static int getPrefSegmentMinutes(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getInt(PREF_SEGMENT_MINUTES, 0);
+    }
+
+    public static void setPrefSegmentMegabytes(Context context, int megabytes) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putInt(PREF_SEGMENT_MEGABYTES, megabytes);
+        editor.apply();
+    }
+
+    /** @return at what size in MB a recording moves on to a new file, or 0 for never */
+    public static int getPrefSegmentMegabytes(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getInt(PREF_SEGMENT_MEGABYTES, 0);
+    }
+
+    public static void setPrefStageInternally(Context context, boolean isEnabled) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putBoolean(PREF_STAGE_INTERNALLY, isEnabled);
+        editor.apply();
+    }
+
+    /** @return whether recordings are captured to app storage and moved to Music afterwards */
+    public static boolean getPrefStageInternally(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        return preferences.getBoolean(PREF_STAGE_INTERNALLY, false);
+    }
 }
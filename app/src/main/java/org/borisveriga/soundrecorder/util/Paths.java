@@ -3,10 +3,13 @@ package org.borisveriga.soundrecorder.util;
 import android.os.Environment;
 
 import java.io.File;
+import java.io.IOException;
 
 public class Paths {
 
     public static final String SOUND_RECORDER_FOLDER = "/SoundRecorder";
+    /** Appended to a file while it is copied into place; never a recording of its own. */
+    public static final String PARTIAL_SUFFIX = ".part";
 
     public static String combine(String parent, String... children) {
         return combine(new File(parent), children);
@@ -20,6 +23,27 @@ public class Paths {
         return path.toString();
     }
 
+    /** @return the extension of {@code path} with its dot, or "" if it has none */
+    public static String extensionOf(String path) {
+        final String name = new File(path).getName();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot) : "";
+    }
+
+    /**
+     * @return whether {@code name} can only name an entry directly inside a folder: not empty,
+     * without a separator, and neither "." nor ".."
+     */
+    public static boolean isPlainName(String name) {
+        return !name.isEmpty() && name.indexOf('/') < 0 && name.indexOf(File.separatorChar) < 0
+                && !name.equals(".") && !name.equals("..");
+    }
+
+    /** @return whether {@code child}, with links followed, sits directly inside {@code parent} */
+    public static boolean isDirectlyInside(File child, File parent) throws IOException {
+        return parent.getCanonicalFile().equals(child.getCanonicalFile().getParentFile());
+    }
+
     public static boolean isExternalStorageWritable() {
         return (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()));
     }
@@ -0,0 +1,127 @@
+package org.borisveriga.soundrecorder.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+
+import org.borisveriga.soundrecorder.R;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Hands out the numbered names new recordings are saved under, e.g. "My Recording_12".
+ * Numbers only go up and the last one is persisted, so a name normally costs one increment.
+ * Numbers already taken by files that came from elsewhere are found with a single listing of
+ * the recordings folder, made once per process and kept in memory after that; anything that
+ * appears later is caught by the caller when it creates the file, and it simply asks again.
+ */
+public final class RecordingNameAllocator {
+
+    private static final String PREFS_NAME = "recording_names";
+    private static final String KEY_LAST_NUMBER = "last_number";
+    /** Longer runs of digits can't be a number this class handed out. */
+    private static final int MAX_DIGITS = 9;
+
+    private static RecordingNameAllocator sInstance;
+
+    private final SharedPreferences mPreferences;
+    private final File mFolder;
+    private final String mPrefix;
+
+    /** Numbers used by names in the folder; null until it was listed. */
+    private Set<Integer> mTaken;
+    private int mLastNumber;
+
+    public static synchronized RecordingNameAllocator getInstance(Context context) {
+        if (sInstance == null) {
+            final Context app = context.getApplicationContext();
+            sInstance = new RecordingNameAllocator(
+                    app.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE),
+                    new File(Paths.combine(
+                            Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC),
+                            Paths.SOUND_RECORDER_FOLDER)),
+                    app.getString(R.string.default_file_name) + "_");
+        }
+        return sInstance;
+    }
+
+    RecordingNameAllocator(SharedPreferences preferences, File folder, String prefix) {
+        mPreferences = preferences;
+        mFolder = folder;
+        mPrefix = prefix;
+    }
+
+    /**
+     * Lists the folder ahead of the first {@link #next()}, so that doesn't have to. Call it
+     * off the main thread.
+     */
+    public synchronized void warmUp() {
+        ensureListed();
+    }
+
+    /**
+     * @return a name no file or folder in the recordings folder had when it was listed,
+     * without extension
+     */
+    public synchronized String next() {
+        ensureListed();
+        int number = mLastNumber;
+        do {
+            number++;
+        } while (mTaken.contains(number));
+        mLastNumber = number;
+        mTaken.add(number);
+        mPreferences.edit().putInt(KEY_LAST_NUMBER, number).apply();
+        return mPrefix + number;
+    }
+
+    private void ensureListed() {
+        if (mTaken != null) {
+            return;
+        }
+        mTaken = new HashSet<>();
+        int highest = 0;
+        final String[] names = mFolder.list();
+        if (names != null) {
+            for (String name : names) {
+                final int number = numberOf(name);
+                if (number > 0) {
+                    mTaken.add(number);
+                    highest = Math.max(highest, number);
+                }
+            }
+        }
+        // Carry on after the highest name in use, even if it came from an older version or
+        // another device, so names keep sorting in the order they were recorded.
+        mLastNumber = Math.max(mPreferences.getInt(KEY_LAST_NUMBER, 0), highest);
+    }
+
+    /**
+     * @return N for "prefix_N" with or without an extension (split recordings are folders),
+     * or 0 for any other name
+     */
+    private int numberOf(String name) {
+        if (!name.startsWith(mPrefix)) {
+            return 0;
+        }
+        final int start = mPrefix.length();
+        int end = name.indexOf('.', start);
+        if (end == -1) {
+            end = name.length();
+        }
+        if (end == start || end - start > MAX_DIGITS) {
+            return 0;
+        }
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            final char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            number = number * 10 + (c - '0');
+        }
+        return number;
+    }
+}
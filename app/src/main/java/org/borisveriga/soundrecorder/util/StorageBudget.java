@@ -0,0 +1,95 @@
+package org.borisveriga.soundrecorder.util;
+
+import android.os.Build;
+import android.os.StatFs;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Projects how much longer the volume holding the recordings can be recorded to, from the
+ * free space {@link StatFs} reports and the bit rate recorded at. One query is a single
+ * system call on an object reused between calls, cheap enough to make every second while
+ * recording.
+ */
+public final class StorageBudget {
+
+    private static final String LOG_TAG = "StorageBudget";
+
+    /**
+     * Kept free for the system, the database and what containers write when they are closed;
+     * a recording is stopped before it eats into this.
+     */
+    public static final long RESERVE_BYTES = 32L * 1024 * 1024;
+
+    /** Minutes left at which to warn, most first. */
+    private static final int[] WARNING_MINUTES = {10, 5, 1};
+
+    private final String mPath;
+    private StatFs mStatFs;
+    /** Index into {@link #WARNING_MINUTES} of the next warning. */
+    private int mNextWarning;
+
+    /**
+     * @param folder any existing folder on the volume to watch
+     */
+    public StorageBudget(File folder) {
+        mPath = folder.getPath();
+    }
+
+    /**
+     * @param pendingBytes space that will be taken later on top of what is written now, e.g.
+     *                     staged audio still to be copied into its output
+     * @return bytes that can still be recorded, negative once the reserve is reached, or
+     * {@link Long#MAX_VALUE} if the volume can't be queried
+     */
+    public long getRecordableBytes(long pendingBytes) {
+        try {
+            if (mStatFs == null) {
+                mStatFs = new StatFs(mPath);
+            } else {
+                mStatFs.restat(mPath);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, "Could not query " + mPath, e);
+            mStatFs = null;
+            return Long.MAX_VALUE;
+        }
+        return getAvailableBytes(mStatFs) - RESERVE_BYTES - pendingBytes;
+    }
+
+    /**
+     * @return how long {@code bytes} last at {@code bitrate} bits per second, or
+     * {@link Long#MAX_VALUE} if that isn't known
+     */
+    public static long toMillis(long bytes, long bitrate) {
+        if (bytes == Long.MAX_VALUE || bitrate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, bytes) * 8000 / bitrate;
+    }
+
+    /**
+     * Called with every new projection while recording.
+     *
+     * @return the threshold in minutes that was crossed for the first time, or 0 if there is
+     * nothing new to warn about
+     */
+    public int checkWarning(long millisLeft) {
+        int crossed = 0;
+        while (mNextWarning < WARNING_MINUTES.length
+                && millisLeft <= WARNING_MINUTES[mNextWarning] * 60000L) {
+            crossed = WARNING_MINUTES[mNextWarning];
+            mNextWarning++;
+        }
+        return crossed;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getAvailableBytes(StatFs statFs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return statFs.getAvailableBytes();
+        }
+        return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+    }
+}
@@ -0,0 +1,74 @@
+package org.borisveriga.soundrecorder.views;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import androidx.core.content.ContextCompat;
+
+import org.borisveriga.soundrecorder.R;
+import org.borisveriga.soundrecorder.recorder.LevelMeter;
+
+/**
+ * Horizontal input level bar: the filled part is the RMS level, the tick the peak. Levels
+ * below {@link #FLOOR_DBFS} draw as empty. Nothing is allocated while drawing.
+ */
+public class LevelMeterView extends View {
+
+    private static final float FLOOR_DBFS = -60f;
+
+    private final Paint mTrackPaint = new Paint();
+    private final Paint mRmsPaint = new Paint();
+    private final Paint mPeakPaint = new Paint();
+    private final float mPeakWidth;
+
+    private long mLevels = LevelMeter.SILENT;
+
+    public LevelMeterView(Context context) {
+        this(context, null);
+    }
+
+    public LevelMeterView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mTrackPaint.setColor(ContextCompat.getColor(context, R.color.selected_item));
+        mRmsPaint.setColor(ContextCompat.getColor(context, R.color.primary));
+        mPeakPaint.setColor(ContextCompat.getColor(context, R.color.primary_dark));
+        mPeakWidth = 2 * getResources().getDisplayMetrics().density;
+    }
+
+    /** @param levels as returned by {@link LevelMeter#getLevels()} */
+    public void setLevels(long levels) {
+        if (levels != mLevels) {
+            mLevels = levels;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final float left = getPaddingLeft();
+        final float top = getPaddingTop();
+        final float width = getWidth() - getPaddingRight() - left;
+        final float bottom = getHeight() - getPaddingBottom();
+        canvas.drawRect(left, top, left + width, bottom, mTrackPaint);
+
+        final float rms = LevelMeter.rmsOf(mLevels);
+        if (!Float.isNaN(rms)) {
+            canvas.drawRect(left, top, left + width * fraction(rms), bottom, mRmsPaint);
+        }
+        final float peak = LevelMeter.peakOf(mLevels);
+        if (peak > FLOOR_DBFS) {
+            final float x = left + (width - mPeakWidth) * fraction(peak);
+            canvas.drawRect(x, top, x + mPeakWidth, bottom, mPeakPaint);
+        }
+    }
+
+    private static float fraction(float dbfs) {
+        if (dbfs <= FLOOR_DBFS) {
+            return 0f;
+        }
+        return Math.min(1f, (dbfs - FLOOR_DBFS) / -FLOOR_DBFS);
+    }
+}
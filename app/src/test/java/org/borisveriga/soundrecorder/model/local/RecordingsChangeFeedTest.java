@@ -0,0 +1,105 @@
+package org.borisveriga.soundrecorder.model.local;
+
+import org.borisveriga.soundrecorder.model.local.RecordingsChangeFeed.Change;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Positions worked out once per write against the finished table, checked against asking the
+ * table after every change the way it used to be done.
+ */
+public class RecordingsChangeFeedTest {
+
+    @Test
+    public void positionsOfMixedWrites() {
+        final Random random = new Random(7);
+        for (int round = 0; round < 200; round++) {
+            final TreeSet<Integer> table = new TreeSet<>();
+            int nextId = 1;
+            for (int i = random.nextInt(300); i > 0; i--) {
+                // Gaps, as left by earlier deletes.
+                nextId += 1 + random.nextInt(3);
+                table.add(nextId);
+            }
+            final List<int[]> changes = new ArrayList<>();
+            final List<Integer> expected = new ArrayList<>();
+            for (int i = 1 + random.nextInt(40); i > 0; i--) {
+                final int type = table.isEmpty() ? Change.INSERTED : random.nextInt(3);
+                final int id;
+                if (type == Change.INSERTED) {
+                    // Anywhere, gaps included; nothing relies on ids growing.
+                    id = unused(table, nextId + 10, random);
+                    table.add(id);
+                } else {
+                    id = pick(table, random);
+                    if (type == Change.DELETED) {
+                        table.remove(id);
+                    }
+                }
+                changes.add(new int[]{type, id});
+                expected.add(table.headSet(id).size());
+            }
+            assertArrayEquals(toArray(expected), resolve(changes, table));
+        }
+    }
+
+    @Test
+    public void positionsOfARowChangedTwice() {
+        final TreeSet<Integer> table = new TreeSet<>(Arrays.asList(2, 4, 6, 8));
+        final List<int[]> changes = new ArrayList<>();
+        // Row 6 is updated, the rows ahead of it deleted, and then it is updated again.
+        changes.add(new int[]{Change.UPDATED, 6});
+        changes.add(new int[]{Change.DELETED, 2});
+        changes.add(new int[]{Change.DELETED, 4});
+        changes.add(new int[]{Change.UPDATED, 6});
+        table.remove(2);
+        table.remove(4);
+
+        assertArrayEquals(new int[]{2, 0, 0, 0}, resolve(changes, table));
+    }
+
+    private static int[] resolve(List<int[]> changes, TreeSet<Integer> finished) {
+        final int[] types = new int[changes.size()];
+        final int[] ids = new int[changes.size()];
+        final TreeSet<Integer> distinct = new TreeSet<>();
+        for (int i = 0; i < changes.size(); i++) {
+            types[i] = changes.get(i)[0];
+            ids[i] = changes.get(i)[1];
+            distinct.add(ids[i]);
+        }
+        final int[] sorted = toArray(new ArrayList<>(distinct));
+        final int[] before = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            before[i] = finished.headSet(sorted[i]).size();
+        }
+        return RecordingsChangeFeed.Batch.sequentialPositions(types, ids, sorted, before);
+    }
+
+    private static int unused(TreeSet<Integer> table, int bound, Random random) {
+        int id;
+        do {
+            id = 1 + random.nextInt(bound);
+        } while (table.contains(id));
+        return id;
+    }
+
+    private static int pick(TreeSet<Integer> table, Random random) {
+        final Integer[] rows = table.toArray(new Integer[0]);
+        return rows[random.nextInt(rows.length)];
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        final int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
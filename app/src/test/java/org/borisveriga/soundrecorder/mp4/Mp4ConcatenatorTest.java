@@ -0,0 +1,243 @@
+package org.borisveriga.soundrecorder.mp4;
+
+import com.coremedia.iso.boxes.Container;
+import com.googlecode.mp4parser.FileDataSourceImpl;
+import com.googlecode.mp4parser.authoring.Movie;
+import com.googlecode.mp4parser.authoring.Sample;
+import com.googlecode.mp4parser.authoring.Track;
+import com.googlecode.mp4parser.authoring.builder.DefaultMp4Builder;
+import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
+import com.googlecode.mp4parser.authoring.tracks.AACTrackImpl;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Joins synthetic ADTS streams, and MPEG-4 files built from them by mp4parser the way
+ * MediaRecorder lays them out, and reads the result back with mp4parser: every frame has to
+ * come out once, in order and unchanged, with the right timing.
+ */
+public class Mp4ConcatenatorTest {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final Random mRandom = new Random(11);
+
+    @Test
+    public void joinsAdtsSegments() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<File> segments = Arrays.asList(
+                adts("a.aac", 157, SAMPLE_RATE, frames),
+                adts("b.aac", 43, SAMPLE_RATE, frames),
+                adts("c.aac", 1, SAMPLE_RATE, frames));
+        final File output = mFolder.newFile("out.mp4");
+
+        final long durationMillis = concat(segments, output);
+
+        assertEquals(frames.size() * 1024L * 1000 / SAMPLE_RATE, durationMillis);
+        assertSamples(frames, output);
+    }
+
+    @Test
+    public void joinsMp4Segments() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<File> segments = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            segments.add(mp4(adts("s" + i + ".aac", 50 + 30 * i, SAMPLE_RATE, 256, frames)));
+        }
+        final File output = mFolder.newFile("out.mp4");
+
+        final long durationMillis = concat(segments, output);
+
+        assertEquals(frames.size() * 1024L * 1000 / SAMPLE_RATE, durationMillis);
+        assertSamples(frames, output);
+    }
+
+    @Test
+    public void outputCanBeJoinedAgain() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final File first = mFolder.newFile("first.mp4");
+        concat(Arrays.asList(adts("a.aac", 100, SAMPLE_RATE, frames),
+                adts("b.aac", 20, SAMPLE_RATE, frames)), first);
+        final File second = mFolder.newFile("second.mp4");
+        concat(Collections.singletonList(adts("c.aac", 70, SAMPLE_RATE, frames)), second);
+        final File output = mFolder.newFile("out.mp4");
+
+        concat(Arrays.asList(first, second), output);
+
+        assertSamples(frames, output);
+    }
+
+    @Test
+    public void reportsProgressPerSegment() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<File> segments = Arrays.asList(adts("a.aac", 10, SAMPLE_RATE, frames),
+                adts("b.aac", 10, SAMPLE_RATE, frames), adts("c.aac", 10, SAMPLE_RATE, frames));
+        final List<Integer> done = new ArrayList<>();
+
+        new Mp4Concatenator(mFolder.getRoot()).concat(segments, mFolder.newFile("out.mp4"),
+                new Mp4Concatenator.ProgressListener() {
+                    @Override
+                    public void onSegmentCopied(int copied, int total) {
+                        assertEquals(3, total);
+                        done.add(copied);
+                    }
+                });
+
+        assertEquals(Arrays.asList(1, 2, 3), done);
+    }
+
+    @Test
+    public void refusesSegmentsWithDifferentSettings() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final List<File> segments = Arrays.asList(adts("a.aac", 10, SAMPLE_RATE, frames),
+                adts("b.aac", 10, 48000, frames));
+        try {
+            concat(segments, mFolder.newFile("out.mp4"));
+            fail();
+        } catch (IOException expected) {
+            // A sample rate change can't be expressed in one track.
+        }
+    }
+
+    @Test
+    public void dropsTheTailOfACutShortAdtsStream() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        final File segment = adts("a.aac", 20, SAMPLE_RATE, frames);
+        final byte[] last = frames.remove(frames.size() - 1);
+        truncate(segment, segment.length() - last.length / 2);
+        final File output = mFolder.newFile("out.mp4");
+
+        concat(Collections.singletonList(segment), output);
+
+        assertSamples(frames, output);
+    }
+
+    @Test
+    public void tellsUsableSegments() throws IOException {
+        final List<byte[]> frames = new ArrayList<>();
+        assertTrue(Mp4Concatenator.isUsableSegment(adts("a.aac", 3, SAMPLE_RATE, frames)));
+        assertTrue(Mp4Concatenator.isUsableSegment(
+                mp4(adts("b.aac", 3, SAMPLE_RATE, 256, frames))));
+
+        final File headerOnly = adts("c.aac", 1, SAMPLE_RATE, frames);
+        truncate(headerOnly, Adts.HEADER_SIZE);
+        assertFalse(Mp4Concatenator.isUsableSegment(headerOnly));
+
+        // A recorder killed before it wrote moov leaves ftyp and a partial mdat.
+        final File noMoov = mFolder.newFile("killed.mp4");
+        final RandomAccessFile raf = new RandomAccessFile(noMoov, "rw");
+        raf.writeInt(16);
+        raf.writeInt(Box.type("ftyp"));
+        raf.writeInt(Box.type("mp42"));
+        raf.writeInt(0);
+        raf.writeInt(0);
+        raf.writeInt(Box.type("mdat"));
+        raf.write(new byte[100]);
+        raf.close();
+        assertFalse(Mp4Concatenator.isUsableSegment(noMoov));
+
+        assertFalse(Mp4Concatenator.isUsableSegment(mFolder.newFile("empty.mp4")));
+    }
+
+    private long concat(List<File> segments, File output) throws IOException {
+        return new Mp4Concatenator(mFolder.getRoot()).concat(segments, output, null);
+    }
+
+    /** Writes {@code count} mono AAC-LC frames of random content, adding their payloads. */
+    private File adts(String name, int count, int sampleRate, List<byte[]> frames)
+            throws IOException {
+        return adts(name, count, sampleRate, 0, frames);
+    }
+
+    /**
+     * @param payloadSize size of every frame, or 0 for random sizes. mp4parser puts the
+     *                    bit rate it measures into the sample description, so MPEG-4
+     *                    segments only match, as MediaRecorder's do, with a constant size.
+     */
+    private File adts(String name, int count, int sampleRate, int payloadSize,
+                      List<byte[]> frames) throws IOException {
+        final File file = mFolder.newFile(name);
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            final byte[] header = new byte[Adts.HEADER_SIZE];
+            for (int i = 0; i < count; i++) {
+                final byte[] payload =
+                        new byte[payloadSize > 0 ? payloadSize : 100 + mRandom.nextInt(300)];
+                mRandom.nextBytes(payload);
+                Adts.writeHeader(header, Adts.OBJECT_TYPE_AAC_LC, sampleRate, 1, payload.length);
+                out.write(header);
+                out.write(payload);
+                frames.add(payload);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /** Wraps an ADTS stream in an MPEG-4 file, moov first as MediaRecorder writes it. */
+    private File mp4(File adts) throws IOException {
+        final Movie movie = new Movie();
+        movie.addTrack(new AACTrackImpl(new FileDataSourceImpl(adts)));
+        final Container container = new DefaultMp4Builder().build(movie);
+        final File file = new File(adts.getPath().replace(".aac", ".mp4"));
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            container.writeContainer(out.getChannel());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void assertSamples(List<byte[]> expected, File output) throws IOException {
+        final Movie movie = MovieCreator.build(output.getPath());
+        assertEquals(1, movie.getTracks().size());
+        final Track track = movie.getTracks().get(0);
+        assertEquals("soun", track.getHandler());
+        assertEquals(SAMPLE_RATE, track.getTrackMetaData().getTimescale());
+
+        final List<Sample> samples = track.getSamples();
+        assertEquals(expected.size(), samples.size());
+        for (int i = 0; i < samples.size(); i++) {
+            final ByteBuffer data = samples.get(i).asByteBuffer();
+            final byte[] actual = new byte[data.remaining()];
+            data.get(actual);
+            assertArrayEquals("sample " + i, expected.get(i), actual);
+        }
+        for (long duration : track.getSampleDurations()) {
+            assertEquals(1024, duration);
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the capture and encoder threads against a synthetic source writing WAV, so what comes
+ * out can be compared sample for sample with what went in. Each recording stays shorter than
+ * the ring, so no sample can be dropped for the encoder falling behind.
+ */
+public class AudioRecordEngineTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int READ_SIZE = 250;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recordsEverySampleInOrder() throws Exception {
+        final SyntheticSource source = new SyntheticSource();
+        final TimedWavSink sink = new TimedWavSink();
+        final AudioRecordEngine engine = new AudioRecordEngine(source, sink, null, null);
+        final File output = mFolder.newFile("out.wav");
+        final short[] pcm = tone(0, 50000);
+
+        engine.start(output);
+        source.feed(pcm);
+        source.awaitDrained();
+        assertEquals(Collections.<String>emptyList(), engine.stop());
+
+        assertArrayEquals(pcm, readWav(output));
+        assertEquals(50000 * 1000L / SAMPLE_RATE, engine.getEncodedMillis());
+        assertNull(sink.mGap);
+        assertTrue(source.mReleased);
+    }
+
+    @Test
+    public void resumesWhereItPaused() throws Exception {
+        final SyntheticSource source = new SyntheticSource();
+        final TimedWavSink sink = new TimedWavSink();
+        final AudioRecordEngine engine = new AudioRecordEngine(source, sink, null, null);
+        final File output = mFolder.newFile("out.wav");
+        final short[] first = tone(0, 20000);
+        final short[] second = tone(20000, 30000);
+
+        engine.start(output);
+        source.feed(first);
+        source.awaitDrained();
+        engine.pause();
+        // Audio the microphone would deliver while paused never reaches the file.
+        source.feed(new short[4000]);
+        Thread.sleep(50);
+        source.discard();
+        engine.resume();
+        source.feed(second);
+        source.awaitDrained();
+        engine.stop();
+
+        assertArrayEquals(concat(first, second), readWav(output));
+        // Timestamps run on across the pause.
+        assertNull(sink.mGap);
+    }
+
+    @Test
+    public void writesTheStagingFileInstead() throws Exception {
+        final SyntheticSource source = new SyntheticSource();
+        final File staging = mFolder.newFile("staging.wav");
+        final File output = mFolder.newFile("out.wav");
+        final AudioRecordEngine engine =
+                new AudioRecordEngine(source, new WavSink(), staging, null);
+        final short[] pcm = tone(0, 10000);
+
+        engine.start(output);
+        source.feed(pcm);
+        source.awaitDrained();
+
+        assertEquals(Collections.singletonList(staging.getPath()), engine.stop());
+        assertArrayEquals(pcm, readWav(staging));
+        assertEquals(0, output.length());
+    }
+
+    @Test
+    public void failsWhenTheSourceDies() throws Exception {
+        final SyntheticSource source = new SyntheticSource();
+        final AudioRecordEngine engine =
+                new AudioRecordEngine(source, new WavSink(), null, null);
+
+        engine.start(mFolder.newFile("out.wav"));
+        source.feed(tone(0, 5000));
+        source.awaitDrained();
+        source.die();
+        source.awaitDeathNoticed();
+        // Gives the capture thread time to act on the failed read before stop() would hide it.
+        Thread.sleep(50);
+        try {
+            engine.stop();
+            fail();
+        } catch (IOException expected) {
+            // The recording is reported as failed rather than silently cut short.
+        }
+        assertTrue(source.mReleased);
+    }
+
+    @Test
+    public void leavesOutSilence() throws Exception {
+        final SyntheticSource source = new SyntheticSource();
+        final SilenceDetector silence = new SilenceDetector(SAMPLE_RATE, 100);
+        final AudioRecordEngine engine =
+                new AudioRecordEngine(source, new WavSink(), null, silence);
+        final File output = mFolder.newFile("out.wav");
+        final short[] before = tone(0, 2 * SAMPLE_RATE);
+        final short[] after = tone(0, 2 * SAMPLE_RATE);
+
+        engine.start(output);
+        source.feed(concat(before, new short[3 * SAMPLE_RATE], after));
+        source.awaitDrained();
+        engine.stop();
+
+        final short[] recorded = readWav(output);
+        // All of the speech and the hangover after it: the silence starts and ends on frame
+        // boundaries, so however the ring splits the audio no frame straddles an edge.
+        assertArrayEquals(before, Arrays.copyOf(recorded, before.length));
+        assertArrayEquals(after, Arrays.copyOfRange(recorded,
+                recorded.length - after.length, recorded.length));
+        final long keptSilence = recorded.length - before.length - after.length;
+        assertEquals(SAMPLE_RATE / 10, keptSilence);
+        assertEquals(3000 - keptSilence * 1000 / SAMPLE_RATE,
+                engine.getSkippedSilenceMillis(), 1);
+        assertEquals(recorded.length * 1000L / SAMPLE_RATE, engine.getEncodedMillis());
+        final String[] range = engine.getSkippedSilence().split("\\+");
+        assertEquals(2, range.length);
+        final long cutMillis = Long.parseLong(range[0]);
+        assertTrue("cut at " + cutMillis, cutMillis >= 2000
+                && cutMillis <= (before.length + keptSilence) * 1000 / SAMPLE_RATE);
+        assertEquals(engine.getSkippedSilenceMillis(), Long.parseLong(range[1]));
+        assertTrue(engine.getSilenceDetectionLoad() > 0);
+    }
+
+    /** A loud square wave with a ramp on top: voiced, and no two neighbours alike. */
+    private static short[] tone(int first, int count) {
+        final short[] pcm = new short[count];
+        for (int i = 0; i < count; i++) {
+            final int n = first + i;
+            pcm[i] = (short) ((n / 20 % 2 == 0 ? 8000 : -8000) + n % 1000);
+        }
+        return pcm;
+    }
+
+    private static short[] concat(short[]... parts) {
+        int length = 0;
+        for (short[] part : parts) {
+            length += part.length;
+        }
+        final short[] all = new short[length];
+        int offset = 0;
+        for (short[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+
+    private static short[] readWav(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            final ByteBuffer wav = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(bytes.length - 8, wav.getInt(4));
+            assertEquals(1, wav.getShort(22));
+            assertEquals(SAMPLE_RATE, wav.getInt(24));
+            final int dataSize = wav.getInt(40);
+            assertEquals(bytes.length - 44, dataSize);
+            final short[] pcm = new short[dataSize / 2];
+            wav.position(44);
+            wav.asShortBuffer().get(pcm);
+            return pcm;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** Mono microphone stand-in delivering whatever the test feeds it, like AudioRecord. */
+    private static final class SyntheticSource implements PcmSource {
+
+        private final Queue<Short> mPending = new ArrayDeque<>();
+        private boolean mStarted;
+        private boolean mDead;
+        private boolean mDeathNoticed;
+        volatile boolean mReleased;
+
+        synchronized void feed(short[] pcm) {
+            for (short sample : pcm) {
+                mPending.add(sample);
+            }
+            notifyAll();
+        }
+
+        /** Drops what a stopped microphone would never have delivered. */
+        synchronized void discard() {
+            mPending.clear();
+        }
+
+        synchronized void die() {
+            mDead = true;
+            notifyAll();
+        }
+
+        synchronized void awaitDeathNoticed() throws InterruptedException {
+            while (!mDeathNoticed) {
+                wait();
+            }
+        }
+
+        synchronized void awaitDrained() throws InterruptedException {
+            while (!mPending.isEmpty()) {
+                wait();
+            }
+        }
+
+        @Override
+        public synchronized void start() {
+            mStarted = true;
+        }
+
+        @Override
+        public synchronized int read(short[] buffer, int offset, int size) {
+            try {
+                while (mStarted && !mDead && mPending.isEmpty()) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                return 0;
+            }
+            if (mDead) {
+                mDeathNoticed = true;
+                notifyAll();
+                // AudioRecord.ERROR_DEAD_OBJECT
+                return -6;
+            }
+            if (!mStarted) {
+                return 0;
+            }
+            int count = 0;
+            while (count < size && !mPending.isEmpty()) {
+                buffer[offset + count++] = mPending.remove();
+            }
+            notifyAll();
+            return count;
+        }
+
+        @Override
+        public synchronized void stop() {
+            mStarted = false;
+            notifyAll();
+        }
+
+        @Override
+        public void release() {
+            mReleased = true;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return SAMPLE_RATE;
+        }
+
+        @Override
+        public int getChannelCount() {
+            return 1;
+        }
+
+        @Override
+        public int getReadSize() {
+            return READ_SIZE;
+        }
+    }
+
+    /** Remembers the first write whose timestamp doesn't follow on from the previous ones. */
+    private static final class TimedWavSink extends WavSink {
+
+        private long mSamples;
+        volatile String mGap;
+
+        @Override
+        public void write(short[] pcm, int offset, int length, long presentationTimeUs)
+                throws IOException {
+            final long expectedUs = mSamples * 1000000L / SAMPLE_RATE;
+            if (mGap == null && presentationTimeUs != expectedUs) {
+                mGap = "at " + expectedUs + " us: " + presentationTimeUs;
+            }
+            mSamples += length;
+            super.write(pcm, offset, length, presentationTimeUs);
+        }
+    }
+}
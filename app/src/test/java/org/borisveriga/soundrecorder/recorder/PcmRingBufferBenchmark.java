@@ -0,0 +1,127 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput and hand-off latency of {@link PcmRingBuffer} between two threads: once with the
+ * producer writing as fast as it can, once paced like a 48 kHz microphone delivering 1 ms
+ * bursts. Prints its results; the assertions only check that no audio went missing.
+ * Skipped unless asked for, with {@code ./gradlew test -Pbenchmarks}.
+ */
+public class PcmRingBufferBenchmark {
+
+    private static final int SAMPLE_RATE = 48000;
+    /** 1 ms at 48 kHz, the smallest burst a low-latency audio HAL delivers. */
+    private static final int FRAME_SIZE = SAMPLE_RATE / 1000;
+    private static final int RING_CAPACITY = 1 << 16;
+    private static final int READ_SIZE = 4096;
+
+    @Before
+    public void onlyWhenAskedFor() {
+        assumeTrue(Boolean.getBoolean("benchmarks"));
+    }
+
+    @Test
+    public void unpacedThroughput() throws InterruptedException {
+        final int frames = 500000;
+        // Once to warm up the JIT, once to measure.
+        run(frames / 4);
+        final long nanos = run(frames);
+        System.out.println(String.format(Locale.ENGLISH,
+                "PcmRingBuffer: %d frames of %d samples in %d ms, %.2fM frames/s, "
+                        + "%.0fx real time", frames, FRAME_SIZE, nanos / 1000000,
+                frames * 1e3 / nanos, frames * (double) FRAME_SIZE / SAMPLE_RATE * 1e9 / nanos));
+    }
+
+    @Test
+    public void pacedLatency() throws InterruptedException {
+        final int frames = 3000;
+        final PcmRingBuffer ring = new PcmRingBuffer(RING_CAPACITY);
+        final long[] written = new long[frames];
+        final long[] latencies = new long[frames];
+
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final short[] buffer = new short[READ_SIZE];
+                long read = 0;
+                while (read < (long) frames * FRAME_SIZE) {
+                    final int count = ring.read(buffer, 0, buffer.length);
+                    if (count == 0) {
+                        Thread.yield();
+                        continue;
+                    }
+                    final long now = System.nanoTime();
+                    // Every frame whose last sample came with this read arrived now.
+                    final long end = read + count;
+                    for (int f = (int) (read / FRAME_SIZE); (f + 1L) * FRAME_SIZE <= end; f++) {
+                        latencies[f] = now - written[f];
+                    }
+                    read = end;
+                }
+            }
+        }, "consumer");
+        consumer.start();
+
+        final short[] frame = new short[FRAME_SIZE];
+        final long started = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            final long due = started + i * 1000000L;
+            long now;
+            while ((now = System.nanoTime()) < due) {
+                LockSupport.parkNanos(due - now);
+            }
+            written[i] = System.nanoTime();
+            ring.write(frame, 0, FRAME_SIZE);
+        }
+        consumer.join();
+
+        assertEquals(0, ring.getOverrunSamples());
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.ENGLISH,
+                "PcmRingBuffer at 48 kHz: hand-off p50 %.1f us, p99 %.1f us, p99.9 %.1f us, "
+                        + "max %.1f us", percentile(latencies, 50), percentile(latencies, 99),
+                percentile(latencies, 99.9), latencies[frames - 1] / 1e3));
+    }
+
+    /** @return nanoseconds taken to pass {@code frames} frames through the ring */
+    private static long run(final int frames) throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(RING_CAPACITY);
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final short[] buffer = new short[READ_SIZE];
+                while (ring.getSamplesRead() < (long) frames * FRAME_SIZE) {
+                    ring.read(buffer, 0, buffer.length);
+                }
+            }
+        }, "consumer");
+        final short[] frame = new short[FRAME_SIZE];
+        final long started = System.nanoTime();
+        consumer.start();
+        for (int i = 0; i < frames; i++) {
+            int written = 0;
+            while (written < FRAME_SIZE) {
+                written += ring.write(frame, written, FRAME_SIZE - written);
+            }
+        }
+        consumer.join();
+        final long nanos = System.nanoTime() - started;
+        assertEquals((long) frames * FRAME_SIZE, ring.getSamplesRead());
+        return nanos;
+    }
+
+    /** @return the given percentile of sorted nanoseconds, in microseconds */
+    private static double percentile(long[] sorted, double percentile) {
+        final int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e3;
+    }
+}
@@ -0,0 +1,153 @@
+package org.borisveriga.soundrecorder.recorder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/** Single-threaded bookkeeping first, then a real producer and consumer. */
+public class PcmRingBufferTest {
+
+    @Test
+    public void roundsCapacityUpToAPowerOfTwo() {
+        assertEquals(1, new PcmRingBuffer(1).capacity());
+        assertEquals(1024, new PcmRingBuffer(1000).capacity());
+        assertEquals(1024, new PcmRingBuffer(1024).capacity());
+        assertEquals(2048, new PcmRingBuffer(1025).capacity());
+    }
+
+    @Test
+    public void rejectsImpossibleCapacities() {
+        for (int capacity : new int[]{0, -1, (1 << 30) + 1}) {
+            try {
+                new PcmRingBuffer(capacity);
+                fail("capacity " + capacity);
+            } catch (IllegalArgumentException expected) {
+                // As documented.
+            }
+        }
+    }
+
+    @Test
+    public void wrapsAround() {
+        final PcmRingBuffer ring = new PcmRingBuffer(8);
+        final short[] out = new short[8];
+        for (int round = 0; round < 5; round++) {
+            final short[] in = samples(round * 5, 5 + round % 3);
+            assertEquals(in.length, ring.write(in, 0, in.length));
+            assertEquals(in.length, ring.available());
+            assertEquals(in.length, ring.read(out, 0, out.length));
+            assertArrayEquals(in, Arrays.copyOf(out, in.length));
+            assertEquals(0, ring.available());
+        }
+        assertEquals(0, ring.getOverrunSamples());
+        assertEquals(ring.getSamplesWritten(), ring.getSamplesRead());
+    }
+
+    @Test
+    public void honoursOffsets() {
+        final PcmRingBuffer ring = new PcmRingBuffer(16);
+        final short[] in = samples(100, 10);
+        assertEquals(4, ring.write(in, 3, 4));
+        final short[] out = new short[10];
+        assertEquals(4, ring.read(out, 6, 4));
+        assertArrayEquals(new short[]{0, 0, 0, 0, 0, 0, 103, 104, 105, 106}, out);
+    }
+
+    @Test
+    public void truncatesAndCountsOverruns() {
+        final PcmRingBuffer ring = new PcmRingBuffer(8);
+        assertEquals(6, ring.write(samples(0, 6), 0, 6));
+        assertEquals(2, ring.write(samples(6, 5), 0, 5));
+        assertEquals(0, ring.write(samples(11, 4), 0, 4));
+        assertEquals(7, ring.getOverrunSamples());
+        assertEquals(8, ring.getSamplesWritten());
+
+        // What was kept is the oldest audio, intact.
+        final short[] out = new short[8];
+        assertEquals(8, ring.read(out, 0, 8));
+        assertArrayEquals(samples(0, 8), out);
+    }
+
+    @Test
+    public void countsUnderruns() {
+        final PcmRingBuffer ring = new PcmRingBuffer(8);
+        final short[] out = new short[4];
+        assertEquals(0, ring.read(out, 0, 4));
+        ring.write(samples(0, 2), 0, 2);
+        assertEquals(2, ring.read(out, 0, 4));
+        assertEquals(0, ring.read(out, 0, 4));
+        assertEquals(2, ring.getUnderruns());
+        assertEquals(2, ring.getSamplesRead());
+    }
+
+    /** One producer and one consumer with uneven chunk sizes: nothing lost, reordered or torn. */
+    @Test
+    public void handsOverInOrderBetweenThreads() throws InterruptedException {
+        final int total = 1000000;
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Random random = new Random(1);
+                final short[] chunk = new short[700];
+                int next = 0;
+                while (next < total) {
+                    final int length = Math.min(1 + random.nextInt(chunk.length), total - next);
+                    for (int i = 0; i < length; i++) {
+                        chunk[i] = (short) (next + i);
+                    }
+                    int written = 0;
+                    while (written < length) {
+                        if (failure.get() != null) {
+                            return;
+                        }
+                        written += ring.write(chunk, written, length - written);
+                    }
+                    next += length;
+                }
+            }
+        }, "producer");
+        final Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final Random random = new Random(2);
+                final short[] chunk = new short[900];
+                int expected = 0;
+                while (expected < total) {
+                    final int count = ring.read(chunk, 0, 1 + random.nextInt(chunk.length));
+                    for (int i = 0; i < count; i++, expected++) {
+                        if (chunk[i] != (short) expected) {
+                            failure.set("sample " + expected + " was " + chunk[i]);
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "consumer");
+        producer.start();
+        consumer.start();
+        producer.join();
+        consumer.join();
+
+        assertNull(failure.get());
+        assertEquals(total, ring.getSamplesWritten());
+        assertEquals(total, ring.getSamplesRead());
+    }
+
+    private static short[] samples(int first, int count) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) (first + i);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,219 @@
+package org.borisveriga.soundrecorder.services;
+
+import org.borisveriga.soundrecorder.model.dao.RecorderState;
+import org.borisveriga.soundrecorder.util.Command;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The transition table one cell at a time, then thousands of commands from several threads
+ * against a command thread that behaves like {@link RecordingService}'s.
+ */
+public class RecorderCommandsTest {
+
+    private static final RecorderState STOPPED = RecorderState.STOPPED;
+    private static final RecorderState PREPARING = RecorderState.PREPARING;
+    private static final RecorderState RECORDING = RecorderState.RECORDING;
+    private static final RecorderState PAUSED = RecorderState.PAUSED;
+
+    @Test
+    public void transitionTable() {
+        assertEquals(RECORDING, RecorderCommands.target(STOPPED, Command.START));
+        assertNull(RecorderCommands.target(STOPPED, Command.PAUSE));
+        assertEquals(STOPPED, RecorderCommands.target(STOPPED, Command.STOP));
+
+        assertNull(RecorderCommands.target(RECORDING, Command.START));
+        assertEquals(PAUSED, RecorderCommands.target(RECORDING, Command.PAUSE));
+        assertEquals(STOPPED, RecorderCommands.target(RECORDING, Command.STOP));
+
+        assertEquals(RECORDING, RecorderCommands.target(PAUSED, Command.START));
+        assertNull(RecorderCommands.target(PAUSED, Command.PAUSE));
+        assertEquals(STOPPED, RecorderCommands.target(PAUSED, Command.STOP));
+
+        for (RecorderState state : RecorderState.values()) {
+            assertNull(RecorderCommands.target(state, Command.INVALID));
+            assertNull(RecorderCommands.target(state, 3));
+        }
+        for (int command = Command.START; command <= Command.STOP; command++) {
+            assertNull(RecorderCommands.target(PREPARING, command));
+        }
+    }
+
+    @Test
+    public void dropsCommandsThatChangeNothing() {
+        final RecorderCommands commands = new RecorderCommands();
+        assertFalse(commands.offer(Command.PAUSE));
+        assertTrue(commands.offer(Command.START));
+        // The double tap.
+        assertFalse(commands.offer(Command.START));
+        assertTrue(commands.offer(Command.PAUSE));
+        assertTrue(commands.offer(Command.STOP));
+        assertFalse(commands.offer(Command.STOP));
+        assertEquals(STOPPED, commands.getExpectedState());
+    }
+
+    @Test
+    public void stopWhenStoppedStillReleasesTheService() {
+        final RecorderCommands commands = new RecorderCommands();
+        assertTrue(commands.offer(Command.STOP));
+        commands.onHandled(STOPPED, STOPPED, System.nanoTime());
+        assertTrue(commands.offer(Command.STOP));
+    }
+
+    @Test
+    public void fallsBackInStepAfterAFailedCommand() {
+        final RecorderCommands commands = new RecorderCommands();
+        assertTrue(commands.offer(Command.START));
+        assertTrue(commands.offer(Command.PAUSE));
+        assertEquals(PAUSED, commands.getExpectedState());
+
+        // The recorder could not start, so the PAUSE behind it finds nothing to pause.
+        commands.onHandled(STOPPED, STOPPED, System.nanoTime());
+        assertEquals(PAUSED, commands.getExpectedState());
+        commands.onHandled(STOPPED, null, System.nanoTime());
+        assertEquals(STOPPED, commands.getExpectedState());
+        assertTrue(commands.offer(Command.START));
+
+        final String latencies = commands.describeLatencies();
+        assertTrue(latencies, latencies.contains("STOPPED -> STOPPED: 1,"));
+        assertTrue(latencies, latencies.endsWith("ignored: 1"));
+    }
+
+    @Test
+    public void stressWithoutFailures() throws InterruptedException {
+        final CommandThread service = stress(0);
+        // Every command that was let into the queue found the state it was checked against.
+        assertEquals(0, service.mIgnored.get());
+    }
+
+    @Test
+    public void stressWithFailingStarts() throws InterruptedException {
+        stress(10);
+    }
+
+    /**
+     * Fires 10k random commands from four threads, tapping as fast as they can, and checks
+     * that the expected state ends up where the recorder is.
+     *
+     * @param failurePercent share of starts that fail, leaving the recorder stopped
+     */
+    private static CommandThread stress(int failurePercent) throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 2500;
+        final CommandThread service = new CommandThread(failurePercent);
+        service.start();
+
+        final Thread[] tappers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random random = new Random(t);
+            tappers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        service.send(random.nextInt(3));
+                        if (random.nextInt(8) == 0) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }, "tapper " + t);
+            tappers[t].start();
+        }
+        for (Thread tapper : tappers) {
+            tapper.join();
+        }
+        service.finish();
+
+        assertEquals(threads * perThread, service.mAccepted.get() + service.mDropped.get());
+        assertEquals(service.mAccepted.get(), service.mHandled);
+        assertEquals(service.mState, service.mCommands.getExpectedState());
+        // Every start from STOPPED was timed, whether or not it failed.
+        final String latencies = service.mCommands.describeLatencies();
+        assertTrue(latencies, latencies.contains("STOPPED -> RECORDING: "));
+        return service;
+    }
+
+    /**
+     * Stand-in for the service's command thread: commands are queued the way
+     * {@link RecordingService} queues them and carried out one at a time, starting the
+     * recorder taking the longest.
+     */
+    private static final class CommandThread extends Thread {
+
+        private static final long[] WORK_NANOS = {200000, 20000, 100000};
+
+        final RecorderCommands mCommands = new RecorderCommands();
+        final AtomicInteger mAccepted = new AtomicInteger();
+        final AtomicInteger mDropped = new AtomicInteger();
+        final AtomicInteger mIgnored = new AtomicInteger();
+        private final BlockingQueue<long[]> mQueue = new LinkedBlockingQueue<>();
+        private final Random mRandom = new Random(42);
+        private final int mFailurePercent;
+
+        /** Command thread only, until it has finished. */
+        RecorderState mState = STOPPED;
+        int mHandled;
+
+        CommandThread(int failurePercent) {
+            super("commands");
+            mFailurePercent = failurePercent;
+        }
+
+        void send(@Command int command) {
+            synchronized (mCommands) {
+                if (!mCommands.offer(command)) {
+                    mDropped.incrementAndGet();
+                    return;
+                }
+                mAccepted.incrementAndGet();
+                // Widens the window between checking and queueing for another tapper to
+                // get in, were it not for the lock.
+                Thread.yield();
+                mQueue.add(new long[]{command, System.nanoTime()});
+            }
+        }
+
+        void finish() throws InterruptedException {
+            mQueue.add(new long[]{Command.INVALID, 0});
+            join();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final long[] message;
+                try {
+                    message = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                final int command = (int) message[0];
+                if (command == Command.INVALID) {
+                    return;
+                }
+                final RecorderState from = mState;
+                final RecorderState to = RecorderCommands.target(from, command);
+                if (to == null) {
+                    mIgnored.incrementAndGet();
+                } else {
+                    LockSupport.parkNanos(WORK_NANOS[command]);
+                    final boolean failed = from == STOPPED && command == Command.START
+                            && mRandom.nextInt(100) < mFailurePercent;
+                    mState = failed ? STOPPED : to;
+                }
+                mCommands.onHandled(from, to != null ? mState : null, message[1]);
+                mHandled++;
+            }
+        }
+    }
+}
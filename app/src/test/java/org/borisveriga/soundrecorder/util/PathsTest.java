@@ -0,0 +1,50 @@
+package org.borisveriga.soundrecorder.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** The checks standing between a typed folder name and a rename outside the recordings. */
+public class PathsTest {
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    @Test
+    public void plainNames() {
+        assertTrue(Paths.isPlainName("Lectures"));
+        assertTrue(Paths.isPlainName("..hidden"));
+        assertTrue(Paths.isPlainName("a.b"));
+
+        assertFalse(Paths.isPlainName(""));
+        assertFalse(Paths.isPlainName("."));
+        assertFalse(Paths.isPlainName(".."));
+        assertFalse(Paths.isPlainName("../DCIM"));
+        assertFalse(Paths.isPlainName("a/b"));
+        assertFalse(Paths.isPlainName("/sdcard"));
+    }
+
+    @Test
+    public void directlyInside() throws IOException {
+        final File recordings = mTemp.newFolder("SoundRecorder");
+
+        assertTrue(Paths.isDirectlyInside(new File(recordings, "Lectures"), recordings));
+        assertFalse(Paths.isDirectlyInside(new File(recordings, "a/b"), recordings));
+        assertFalse(Paths.isDirectlyInside(new File(recordings, ".."), recordings));
+        assertFalse(Paths.isDirectlyInside(new File(recordings, "."), recordings));
+        assertFalse(Paths.isDirectlyInside(recordings, recordings));
+
+        // A link inside that leads somewhere else is judged by where it leads.
+        final File elsewhere = mTemp.newFolder("DCIM");
+        final File link = new File(recordings, "Photos");
+        Files.createSymbolicLink(link.toPath(), elsewhere.toPath());
+        assertFalse(Paths.isDirectlyInside(link, recordings));
+    }
+}
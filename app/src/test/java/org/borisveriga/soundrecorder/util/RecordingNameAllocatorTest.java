@@ -0,0 +1,260 @@
+package org.borisveriga.soundrecorder.util;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Names handed out over a recordings folder seeded with 10k earlier recordings, with gaps and
+ * files that didn't come from the app mixed in.
+ */
+public class RecordingNameAllocatorTest {
+
+    private static final String PREFIX = "My Recording_";
+    private static final int SEEDED = 10000;
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private CountingFolder mFolder;
+    private MemoryPreferences mPreferences;
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = new CountingFolder(mTemp.newFolder("SoundRecorder"));
+        mPreferences = new MemoryPreferences();
+        for (int i = 1; i <= SEEDED; i++) {
+            // Recordings the user deleted leave gaps.
+            if (i % 7 != 0) {
+                create(PREFIX + i + ".mp4");
+            }
+        }
+    }
+
+    @Test
+    public void carriesOnAfterTheSeededFiles() {
+        final RecordingNameAllocator names = allocator();
+        names.warmUp();
+
+        for (int i = 1; i <= 1000; i++) {
+            assertEquals(PREFIX + (SEEDED + i), names.next());
+        }
+
+        // One listing, made by warmUp(), however many names are handed out.
+        assertEquals(1, mFolder.mListings);
+        assertEquals(SEEDED + 1000, mPreferences.getInt("last_number", 0));
+    }
+
+    @Test
+    public void skipsNamesFromElsewhere() throws IOException {
+        // A split recording is a folder; a file copied from another device may be far ahead.
+        assertTrue(new File(mFolder, PREFIX + (SEEDED + 1)).mkdir());
+        create(PREFIX + "20000.m4a");
+
+        assertEquals(PREFIX + 20001, allocator().next());
+    }
+
+    @Test
+    public void ignoresNamesItCouldNotHaveGiven() throws IOException {
+        create("Meeting.mp4");
+        create(PREFIX + "draft.mp4");
+        create(PREFIX + ".mp4");
+        create(PREFIX + "1234567890.mp4");
+        create("Recording_99999.mp4");
+
+        assertEquals(PREFIX + (SEEDED + 1), allocator().next());
+    }
+
+    @Test
+    public void neverGoesBackToAFreedNumber() {
+        final RecordingNameAllocator names = allocator();
+        assertEquals(PREFIX + (SEEDED + 1), names.next());
+        assertEquals(PREFIX + (SEEDED + 2), names.next());
+
+        // The next process lists the folder again, finding the newest recordings deleted.
+        new File(mFolder, PREFIX + SEEDED + ".mp4").delete();
+        assertEquals(PREFIX + (SEEDED + 3), allocator().next());
+    }
+
+    @Test
+    public void startsAtOneInAnEmptyFolder() throws IOException {
+        mFolder = new CountingFolder(mTemp.newFolder("empty"));
+        assertEquals(PREFIX + 1, allocator().next());
+
+        // A folder that doesn't exist yet lists as nothing.
+        mFolder = new CountingFolder(new File(mTemp.getRoot(), "missing"));
+        mPreferences = new MemoryPreferences();
+        assertEquals(PREFIX + 1, allocator().next());
+    }
+
+    private RecordingNameAllocator allocator() {
+        return new RecordingNameAllocator(mPreferences, mFolder, PREFIX);
+    }
+
+    private void create(String name) throws IOException {
+        assertTrue(name, new File(mFolder, name).createNewFile());
+    }
+
+    /** Counts how often the folder is listed. */
+    private static final class CountingFolder extends File {
+
+        private static final long serialVersionUID = 1L;
+
+        int mListings;
+
+        CountingFolder(File folder) {
+            super(folder.getPath());
+        }
+
+        @Override
+        public String[] list() {
+            mListings++;
+            return super.list();
+        }
+    }
+
+    /** Just enough of SharedPreferences for the counter. */
+    private static final class MemoryPreferences implements SharedPreferences {
+
+        private final Map<String, Object> mValues = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(mValues);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mValues.containsKey(key) ? (String) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mValues.containsKey(key) ? (Integer) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mValues.containsKey(key) ? (Long) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mValues.containsKey(key) ? (Float) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mValues.containsKey(key) ? (Boolean) mValues.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mValues.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MemoryEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(
+                OnSharedPreferenceChangeListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        private final class MemoryEditor implements Editor {
+
+            private final Map<String, Object> mChanges = new HashMap<>();
+            private final Set<String> mRemoved = new HashSet<>();
+            private boolean mClear;
+
+            @Override
+            public Editor putString(String key, String value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                mRemoved.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                mClear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                if (mClear) {
+                    mValues.clear();
+                }
+                mValues.keySet().removeAll(mRemoved);
+                mValues.putAll(mChanges);
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        }
+    }
+}